@@ -0,0 +1,476 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append-only file. Threads executing write commands only copy the command's bytes into an in-memory buffer;
+// a dedicated writer thread group-commits whatever has accumulated with one write, and fsyncs per appendfsync:
+// always before the replies of the commands it holds are sent, everysec once a second, no never.
+// BGREWRITEAOF rewrites the log from a snapshot in the background and swaps it in atomically.
+public class AppendOnlyFile {
+    enum FsyncPolicy { ALWAYS, EVERYSEC, NO }
+
+    private static final long FSYNC_INTERVAL_MILLIS = 1000;
+    // entries encoded into the rewrite buffer before it is written out
+    private static final int REWRITE_FLUSH_ENTRIES = 1024;
+    private static final int REWRITE_ITEMS_PER_COMMAND = 64;
+
+    private static volatile boolean enabled = false;
+    private static FsyncPolicy policy = FsyncPolicy.EVERYSEC;
+    private static Path path;
+
+    // guards the pending buffer and the offsets; held only for memory copies, never for I/O
+    private static final ReentrantLock bufferLock = new ReentrantLock();
+    private static final Condition dataAvailable = bufferLock.newCondition();
+    private static final Condition durable = bufferLock.newCondition();
+    private static ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // bytes appended so far, and how many of them the writer has committed per the fsync policy
+    private static volatile long appendedOffset = 0;
+    private static volatile long committedOffset = 0;
+    // commands appended while a rewrite runs, replayed onto the rewritten file before it is swapped in
+    private static ByteArrayOutputStream rewriteBuffer;
+    // bumped when a rewrite swaps the file, so a batch taken for the old file is not written to the new one
+    private static long generation = 0;
+
+    // guards the channel; the writer holds it while writing and fsyncing
+    private static final ReentrantLock fileLock = new ReentrantLock();
+    private static FileChannel channel;
+    private static long lastFsyncTime = System.currentTimeMillis();
+    private static boolean unsynced = false;
+
+    private static final AtomicBoolean rewriting = new AtomicBoolean(false);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Path getPath() {
+        return path;
+    }
+
+    // Opens the log for appending and starts the writer thread. Call after the log has been replayed.
+    public static void open(String filePath, String fsync) throws IOException {
+        policy = switch (fsync.toLowerCase()) {
+            case "always" -> FsyncPolicy.ALWAYS;
+            case "everysec" -> FsyncPolicy.EVERYSEC;
+            case "no" -> FsyncPolicy.NO;
+            default -> throw new IllegalArgumentException("Invalid --appendfsync: " + fsync);
+        };
+        path = Path.of(filePath);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        enabled = true;
+        Thread writer = new Thread(AppendOnlyFile::writeLoop, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Called in execution order, under the replication stream lock, with a write command's RESP bytes.
+    public static void append(byte[] bytes) {
+        if (!enabled) {
+            return;
+        }
+        bufferLock.lock();
+        try {
+            pending.write(bytes, 0, bytes.length);
+            if (rewriteBuffer != null) {
+                rewriteBuffer.write(bytes, 0, bytes.length);
+            }
+            appendedOffset += bytes.length;
+            dataAvailable.signal();
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    // Under appendfsync always, waits until everything appended so far is on disk. Connections call this
+    // once per batch before flushing replies, so one fsync acknowledges every write in the batch.
+    public static void awaitDurable() {
+        if (policy != FsyncPolicy.ALWAYS || committedOffset == appendedOffset) {
+            return;
+        }
+        bufferLock.lock();
+        try {
+            long target = appendedOffset;
+            while (committedOffset < target) {
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            byte[] batch;
+            long batchEnd;
+            long batchGeneration;
+            bufferLock.lock();
+            try {
+                while (pending.size() == 0 && !fsyncDue()) {
+                    dataAvailable.await(FSYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                batch = pending.toByteArray();
+                pending.reset();
+                batchEnd = appendedOffset;
+                batchGeneration = generation;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                bufferLock.unlock();
+            }
+
+            fileLock.lock();
+            try {
+                // a rewrite swapped the file meanwhile; the new file already holds these commands
+                if (batchGeneration == generation) {
+                    writeFully(channel, batch);
+                    unsynced |= batch.length > 0;
+                    if (policy == FsyncPolicy.ALWAYS || (policy == FsyncPolicy.EVERYSEC && fsyncDue())) {
+                        channel.force(false);
+                        lastFsyncTime = System.currentTimeMillis();
+                        unsynced = false;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to write the append only file: " + e.getMessage());
+            } finally {
+                fileLock.unlock();
+            }
+
+            bufferLock.lock();
+            try {
+                if (batchEnd > committedOffset) {
+                    committedOffset = batchEnd;
+                }
+                durable.signalAll();
+            } finally {
+                bufferLock.unlock();
+            }
+        }
+    }
+
+    private static boolean fsyncDue() {
+        return policy == FsyncPolicy.EVERYSEC && unsynced && System.currentTimeMillis() - lastFsyncTime >= FSYNC_INTERVAL_MILLIS;
+    }
+
+    private static void writeFully(FileChannel target, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    // Starts BGREWRITEAOF on a background thread. Returns false if a rewrite is already running.
+    public static boolean backgroundRewrite() {
+        if (!enabled) {
+            throw new IllegalStateException("append only file is disabled");
+        }
+        if (!rewriting.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rewrite();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Background append only file rewriting failed: " + e.getMessage());
+                bufferLock.lock();
+                try {
+                    rewriteBuffer = null;
+                } finally {
+                    bufferLock.unlock();
+                }
+            } finally {
+                rewriting.set(false);
+            }
+        }, "aof-rewrite");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    // Writes the snapshot as the commands that rebuild each key (a SET, RPUSH, ZADD or HSET batches, or an XADD
+    // per stream entry) into a temporary file, appends the commands that ran meanwhile and atomically renames it
+    // over the log.
+    private static void rewrite() throws IOException {
+        long start = System.currentTimeMillis();
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Snapshot snapshot = beginRewriteSnapshot(keyValueStore);
+        Path temp = path.resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+        try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                writeSnapshot(keyValueStore, snapshot, tempChannel);
+            } finally {
+                keyValueStore.endSnapshot(snapshot);
+            }
+            // catch up on the commands buffered during the rewrite without holding up writers,
+            // then take the last few under the lock and swap the files
+            while (true) {
+                byte[] caughtUp;
+                bufferLock.lock();
+                try {
+                    caughtUp = rewriteBuffer.toByteArray();
+                    rewriteBuffer.reset();
+                } finally {
+                    bufferLock.unlock();
+                }
+                writeFully(tempChannel, caughtUp);
+                if (caughtUp.length < 64 * 1024) {
+                    break;
+                }
+            }
+            tempChannel.force(true);
+            fileLock.lock();
+            bufferLock.lock();
+            try {
+                writeFully(tempChannel, rewriteBuffer.toByteArray());
+                rewriteBuffer = null;
+                // the short tail is fsynced with the next batch, unless replies are waiting for it
+                if (policy == FsyncPolicy.ALWAYS) {
+                    tempChannel.force(false);
+                }
+                channel.close();
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                // whatever was pending is already in the new file, either through the snapshot or the rewrite buffer
+                pending.reset();
+                generation++;
+                committedOffset = appendedOffset;
+                unsynced = policy != FsyncPolicy.ALWAYS;
+                durable.signalAll();
+            } finally {
+                bufferLock.unlock();
+                fileLock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        System.out.println("Background append only file rewriting finished in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // The rewrite starts capturing commands at the snapshot point, between two writes.
+    private static Snapshot beginRewriteSnapshot(KeyValueStore keyValueStore) {
+        while (true) {
+            FullSync.writeGate.writeLock().lock();
+            try {
+                Snapshot snapshot = keyValueStore.beginSnapshot();
+                if (snapshot != null) {
+                    bufferLock.lock();
+                    try {
+                        rewriteBuffer = new ByteArrayOutputStream();
+                    } finally {
+                        bufferLock.unlock();
+                    }
+                    return snapshot;
+                }
+            } finally {
+                FullSync.writeGate.writeLock().unlock();
+            }
+            // another snapshot (BGSAVE or a full sync) is running; try again shortly
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static void writeSnapshot(KeyValueStore keyValueStore, Snapshot snapshot, FileChannel target) throws IOException {
+        RespEncoder out = new RespEncoder(Channels.newOutputStream(target));
+        long now = System.currentTimeMillis();
+        int buffered = 0;
+        for (int slot = 0; slot < KeyValueStore.SLOTS; slot++) {
+            for (Entry entry : keyValueStore.snapshotSlot(snapshot, slot)) {
+                if (entry.isExpired(now)) {
+                    continue;
+                }
+                writeEntry(out, entry);
+                if (++buffered == REWRITE_FLUSH_ENTRIES) {
+                    out.flush();
+                    buffered = 0;
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeEntry(RespEncoder out, Entry entry) {
+        if (entry.value instanceof QuickList list) {
+            writeList(out, entry.key, list);
+            writeExpiry(out, entry);
+            return;
+        }
+        if (entry.value instanceof SortedSet set) {
+            writeSortedSet(out, entry.key, set);
+            writeExpiry(out, entry);
+            return;
+        }
+        if (entry.value instanceof Hash hash) {
+            writeHash(out, entry.key, hash);
+            writeExpiry(out, entry);
+            return;
+        }
+        if (entry.value instanceof Stream stream) {
+            writeStream(out, entry.key, stream);
+            writeExpiry(out, entry);
+            return;
+        }
+        out.writeArrayHeader(entry.isVolatile() ? 5 : 3);
+        out.writeBulkString("SET");
+        out.writeBulkString(entry.key.bytes());
+        out.writeBulkString(IntValue.bytesOf(entry.value));
+        if (entry.isVolatile()) {
+            out.writeBulkString("PXAT");
+            out.writeBulkString(Long.toString(entry.expiresAt));
+        }
+    }
+
+    // RPUSH commands of up to REWRITE_ITEMS_PER_COMMAND elements each, as Redis splits big keys.
+    private static void writeList(RespEncoder out, Key key, QuickList list) {
+        long size = list.size();
+        long written = 0;
+        for (byte[] value : list) {
+            if (written % REWRITE_ITEMS_PER_COMMAND == 0) {
+                out.writeArrayHeader((int) Math.min(REWRITE_ITEMS_PER_COMMAND, size - written) + 2);
+                out.writeBulkString("RPUSH");
+                out.writeBulkString(key.bytes());
+            }
+            out.writeBulkString(value);
+            written++;
+        }
+    }
+
+    // ZADD commands of up to REWRITE_ITEMS_PER_COMMAND members each.
+    private static void writeSortedSet(RespEncoder out, Key key, SortedSet set) {
+        int size = set.size();
+        int[] written = {0};
+        set.forEach((member, score) -> {
+            if (written[0] % REWRITE_ITEMS_PER_COMMAND == 0) {
+                out.writeArrayHeader(Math.min(REWRITE_ITEMS_PER_COMMAND, size - written[0]) * 2 + 2);
+                out.writeBulkString("ZADD");
+                out.writeBulkString(key.bytes());
+            }
+            out.writeBulkString(KeyValueStore.formatDouble(score));
+            out.writeBulkString(member);
+            written[0]++;
+        });
+    }
+
+    // HSET commands of up to REWRITE_ITEMS_PER_COMMAND fields each.
+    private static void writeHash(RespEncoder out, Key key, Hash hash) {
+        int size = hash.size();
+        int[] written = {0};
+        hash.forEach((field, value) -> {
+            if (written[0] % REWRITE_ITEMS_PER_COMMAND == 0) {
+                out.writeArrayHeader(Math.min(REWRITE_ITEMS_PER_COMMAND, size - written[0]) * 2 + 2);
+                out.writeBulkString("HSET");
+                out.writeBulkString(key.bytes());
+            }
+            out.writeBulkString(field);
+            out.writeBulkString(value);
+            written[0]++;
+        });
+    }
+
+    // An XADD per entry with its ID. A stream trimmed to nothing still has a last ID, kept by adding an entry
+    // with it and trimming it away, as Redis does.
+    private static void writeStream(RespEncoder out, Key key, Stream stream) {
+        if (stream.length() == 0) {
+            out.writeArrayHeader(7);
+            out.writeBulkString("XADD");
+            out.writeBulkString(key.bytes());
+            out.writeBulkString("MAXLEN");
+            out.writeBulkString("0");
+            out.writeBulkString(stream.lastId().toBytes());
+            out.writeBulkString("x");
+            out.writeBulkString("y");
+            return;
+        }
+        stream.forEachBlock((first, masterFields, entries) -> {
+            for (Stream.StreamEntry streamEntry : entries) {
+                out.writeArrayHeader(streamEntry.fields().length + 3);
+                out.writeBulkString("XADD");
+                out.writeBulkString(key.bytes());
+                out.writeBulkString(streamEntry.id().toBytes());
+                for (byte[] field : streamEntry.fields()) {
+                    out.writeBulkString(field);
+                }
+            }
+        });
+    }
+
+    private static void writeExpiry(RespEncoder out, Entry entry) {
+        if (entry.isVolatile()) {
+            out.writeArrayHeader(3);
+            out.writeBulkString("PEXPIREAT");
+            out.writeBulkString(entry.key.bytes());
+            out.writeBulkString(Long.toString(entry.expiresAt));
+        }
+    }
+
+    // The bytes to log for a write command. Relative expiries become absolute so a replay does not extend them.
+    public static byte[] toLogEntry(Command command) {
+        if (command.getCommand() == CommandName.SET && command.getArgCount() == 4
+                && (command.argEqualsIgnoreCase(2, "EX") || command.argEqualsIgnoreCase(2, "PX"))) {
+            long ttl = command.argToLong(3);
+            if (command.argEqualsIgnoreCase(2, "EX")) {
+                ttl *= 1000;
+            }
+            List<byte[]> args = new ArrayList<>();
+            args.add("SET".getBytes(StandardCharsets.US_ASCII));
+            args.add(command.getArgBytes(0));
+            args.add(command.getArgBytes(1));
+            args.add("PXAT".getBytes(StandardCharsets.US_ASCII));
+            args.add(Long.toString(System.currentTimeMillis() + ttl).getBytes(StandardCharsets.US_ASCII));
+            return new Command(args).wireBytes();
+        }
+        return command.wireBytes();
+    }
+
+    // Replays the log into the keyspace: the file is read in large chunks and every command goes straight to
+    // the executor without replies, locking or propagation. A command cut short by a crash is truncated away.
+    // Returns false if there is no log.
+    public static boolean replay(String filePath) throws IOException {
+        long start = System.currentTimeMillis();
+        RespEncoder discard = new RespEncoder(java.io.OutputStream.nullOutputStream());
+        RespParser parser = new RespParser();
+        long commands = 0;
+        long consumed = 0;
+        try (FileChannel in = FileChannel.open(Path.of(filePath), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (parser.readFrom(in) != -1) {
+                Command command;
+                while ((command = parser.next()) != null) {
+                    if (command.getCommand() == null) {
+                        throw new IOException("Bad file format reading the append only file: unknown command at offset " + consumed);
+                    }
+                    if (!command.getCommand().acceptsArgCount(command.getArgCount())) {
+                        throw new IOException("Bad file format reading the append only file: wrong number of arguments at offset " + consumed);
+                    }
+                    CommandExecutor.execute(command, discard, true);
+                    consumed += command.wireLength();
+                    commands++;
+                }
+            }
+            if (consumed < in.size()) {
+                System.out.println("Append only file ends with an incomplete command; truncating " + (in.size() - consumed) + " bytes");
+                in.truncate(consumed);
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        System.out.println("Append only file loaded: " + commands + " commands in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+}
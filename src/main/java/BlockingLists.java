@@ -0,0 +1,149 @@
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// BLPOP/BRPOP callers parked until a push gives them an element. A waiter is a plain record queued on every key
+// it waits for, oldest first, so clients are served in the order they blocked; no thread waits for it, and a
+// single timer thread handles every timeout. The pushing command serves waiters itself, with the list's shard
+// still locked, so an element handed to a waiter is never visible to anyone else.
+public class BlockingLists {
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "blpop-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ReentrantLock lock = new ReentrantLock();
+    // written under lock; read without it to skip keys nobody waits for
+    private static final Map<Key, LinkedHashSet<Waiter>> waiting = new ConcurrentHashMap<>();
+
+    static {
+        // a served waiter's timeout is cancelled, and should not linger in the timer's queue until it is due
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static class Waiter {
+        final List<Key> keys;
+        final boolean fromLeft;
+        // completing it claims the waiter: only the first of a hand-off, the timeout or a disconnect counts
+        final CompletableFuture<DeferredReply> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+
+        Waiter(List<Key> keys, boolean fromLeft) {
+            this.keys = keys;
+            this.fromLeft = fromLeft;
+        }
+    }
+
+    // Parks the caller until one of keys gets an element or the timeout passes (0 waits forever). The caller
+    // has already found every list empty; a push that landed since then is caught here.
+    public static CompletableFuture<DeferredReply> block(List<Key> keys, boolean fromLeft, long timeoutMillis) {
+        Waiter waiter = new Waiter(keys, fromLeft);
+        lock.lock();
+        try {
+            for (Key key : keys) {
+                waiting.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+            }
+            if (timeoutMillis > 0) {
+                waiter.timeout = timer.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // a connection closed while blocked cancels the future
+        waiter.future.whenComplete((reply, error) -> {
+            if (error != null) {
+                withdraw(waiter);
+            }
+        });
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        for (Key key : keys) {
+            try {
+                keyValueStore.mutate(key, QuickList.class, null, list -> {
+                    if (list != null) {
+                        handOff(key, list);
+                    }
+                    return null;
+                });
+            } catch (IllegalArgumentException e) {
+                // not a list: nothing to serve from it
+            }
+        }
+        return waiter.future;
+    }
+
+    // Called by a command that pushed onto list, with the key's shard write-locked. Pops an element for each
+    // waiter on key in the order they blocked, until the list or the queue runs out; each pop is propagated
+    // after the push as the LPOP or RPOP it amounts to.
+    static void handOff(Key key, QuickList list) {
+        if (!waiting.containsKey(key)) {
+            return;
+        }
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue;
+            while (!list.isEmpty() && (queue = waiting.get(key)) != null) {
+                Waiter waiter = queue.iterator().next();
+                dequeue(waiter);
+                byte[] value = waiter.fromLeft ? list.popHead() : list.popTail();
+                if (!waiter.future.complete(out -> {
+                    out.writeArrayHeader(2);
+                    out.writeBulkString(key.bytes());
+                    out.writeBulkString(value);
+                })) {
+                    // the client went away while blocked: the element goes back where it came from
+                    if (waiter.fromLeft) {
+                        list.pushHead(value);
+                    } else {
+                        list.pushTail(value);
+                    }
+                    continue;
+                }
+                if (waiter.timeout != null) {
+                    waiter.timeout.cancel(false);
+                }
+                CommandExecutor.deferPropagation(new Command(List.of((waiter.fromLeft ? "LPOP" : "RPOP").getBytes(), key.bytes())));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void withdraw(Waiter waiter) {
+        lock.lock();
+        try {
+            dequeue(waiter);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void expire(Waiter waiter) {
+        lock.lock();
+        try {
+            if (waiter.future.complete(out -> out.writeRaw(RespEncoder.NULL_ARRAY))) {
+                dequeue(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with lock held: removes the waiter from the queue of every key it waits for.
+    private static void dequeue(Waiter waiter) {
+        for (Key key : waiter.keys) {
+            LinkedHashSet<Waiter> queue = waiting.get(key);
+            if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                waiting.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// XREAD BLOCK callers parked until an XADD gives one of their streams an entry past the ID they read from.
+// As for BlockingLists, a waiter is a plain record queued on every key it waits for and one timer thread handles
+// every timeout; no thread polls. Readers do not consume entries, so an XADD wakes every waiter on the stream,
+// with the stream's shard still locked so the reply holds exactly what the stream held.
+public class BlockingStreams {
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "xread-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ReentrantLock lock = new ReentrantLock();
+    // written under lock; read without it to skip streams nobody waits for
+    private static final Map<Key, LinkedHashSet<Waiter>> waiting = new ConcurrentHashMap<>();
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static class Waiter {
+        final List<Key> keys;
+        // for each key, the ID the entries must come after
+        final List<StreamId> after;
+        final long count;
+        // completing it claims the waiter: only the first of an XADD, the timeout or a disconnect counts
+        final CompletableFuture<DeferredReply> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+
+        Waiter(List<Key> keys, List<StreamId> after, long count) {
+            this.keys = keys;
+            this.after = after;
+            this.count = count;
+        }
+    }
+
+    // Parks the caller until one of keys gets an entry after the matching ID or the timeout passes (0 waits
+    // forever). The caller has already found nothing to read; an XADD that landed since then is caught here.
+    public static CompletableFuture<DeferredReply> block(List<Key> keys, List<StreamId> after, long count, long timeoutMillis) {
+        Waiter waiter = new Waiter(keys, after, count);
+        lock.lock();
+        try {
+            for (Key key : keys) {
+                waiting.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+            }
+            if (timeoutMillis > 0) {
+                waiter.timeout = timer.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // a connection closed while blocked cancels the future
+        waiter.future.whenComplete((reply, error) -> {
+            if (error != null) {
+                withdraw(waiter);
+            }
+        });
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        for (Key key : keys) {
+            try {
+                keyValueStore.read(key, Stream.class, stream -> {
+                    if (stream != null) {
+                        signal(key, stream);
+                    }
+                    return null;
+                });
+            } catch (IllegalArgumentException e) {
+                // no longer a stream: nothing to read from it
+            }
+        }
+        return waiter.future;
+    }
+
+    // Called by XADD with the stream's shard write-locked: replies to every waiter on key with the entries
+    // after its ID.
+    static void signal(Key key, Stream stream) {
+        if (!waiting.containsKey(key)) {
+            return;
+        }
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue = waiting.get(key);
+            if (queue == null) {
+                return;
+            }
+            for (Waiter waiter : new ArrayList<>(queue)) {
+                StreamId from = waiter.after.get(waiter.keys.indexOf(key)).next();
+                if (from == null) {
+                    continue;
+                }
+                List<Stream.StreamEntry> entries = stream.range(from, StreamId.MAX, waiter.count, false);
+                if (entries.isEmpty()) {
+                    continue;
+                }
+                if (waiter.future.complete(out -> {
+                    out.writeArrayHeader(1);
+                    out.writeArrayHeader(2);
+                    out.writeBulkString(key.bytes());
+                    CommandExecutor.writeStreamEntries(entries, out);
+                })) {
+                    dequeue(waiter);
+                    if (waiter.timeout != null) {
+                        waiter.timeout.cancel(false);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void withdraw(Waiter waiter) {
+        lock.lock();
+        try {
+            dequeue(waiter);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void expire(Waiter waiter) {
+        lock.lock();
+        try {
+            if (waiter.future.complete(out -> out.writeRaw(RespEncoder.NULL_ARRAY))) {
+                dequeue(waiter);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with lock held: removes the waiter from the queue of every key it waits for.
+    private static void dequeue(Waiter waiter) {
+        for (Key key : waiter.keys) {
+            LinkedHashSet<Waiter> queue = waiting.get(key);
+            if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                waiting.remove(key);
+            }
+        }
+    }
+}
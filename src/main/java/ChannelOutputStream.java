@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Sink for a non-blocking Connection: every write becomes one buffer on the connection's outbound queue.
+// Safe to call from any thread, so replication can write to a replica's connection off its event loop;
+// such writers are held back while the connection has a large backlog of unsent bytes.
+public class ChannelOutputStream extends OutputStream {
+    private final Connection connection;
+
+    public ChannelOutputStream(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        connection.enqueue(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
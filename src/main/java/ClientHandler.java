@@ -1,8 +1,9 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
 
+// Blocking per-connection handler, run on its own virtual thread in --io-mode=virtual.
 public class ClientHandler implements Runnable {
     private final Socket clientSocket;
 
@@ -12,32 +13,33 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
+        RespEncoder out = null;
         try {
-            DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-            while (true) {
-                Command command = CommandParser.parse(in);
-                System.out.println("Received command from client: " + command.getCommand());
-                if (Main.masterHostAndPort != null && Main.masterInputStream == null) {
-                    String host = Main.masterHostAndPort.split(" ")[0];
-                    int port = Integer.parseInt(Main.masterHostAndPort.split(" ")[1]);
-                    Main.sendHandshakeToMaster(host, port);
+            InputStream in = clientSocket.getInputStream();
+            // the encoder buffers replies, so socket writes only happen on flush and nothing holds a monitor
+            out = new RespEncoder(clientSocket.getOutputStream());
+            RespParser parser = new RespParser();
+            while (parser.readFrom(in) != -1) {
+                Command command;
+                while ((command = nextCommand(parser, out)) != null) {
+                    CompletableFuture<DeferredReply> blocked = handleCommand(command, out);
+                    if (blocked != null) {
+                        // park this virtual thread until the command completes
+                        AppendOnlyFile.awaitDurable();
+                        out.flush();
+                        blocked.join().writeTo(out);
+                    }
                 }
-                if (command.getCommand().equals(CommandName.REPLCONF) && command.getArgs()[0].equalsIgnoreCase("ACK") && CommandExecutor.latch != null) {
-                    // decrement the number of replicas that need to acknowledge
-                    CommandExecutor.latch.countDown();
-                    System.out.println("Number of replicas that need to acknowledge: " + CommandExecutor.latch.getCount());
-                } else {
-                    CommandExecutor.execute(command, out);
-                }
-                if (command.getCommand().equals(CommandName.PSYNC)) {
-                    Main.replicaMap.put(out, in);
-                }
-                
+                // one write for every reply produced by this read
+                AppendOnlyFile.awaitDurable();
+                out.flush();
             }
         } catch (Exception e) {
             System.out.println(Thread.currentThread().getName() + " Failed to read/write from client socket: " + e.getMessage());
         } finally {
+            if (out != null) {
+                Replica.connectionClosed(out.sink());
+            }
             try {
                 System.out.println("Closing client socket");
                 clientSocket.close();
@@ -46,4 +48,39 @@ public class ClientHandler implements Runnable {
             }
         }
     }
+
+    // The next complete command, or null if more bytes are needed. A malformed frame leaves nothing after it
+    // parseable: the protocol error is replied and rethrown for the caller to close the connection, as Redis does.
+    public static Command nextCommand(RespParser parser, RespEncoder out) throws IOException {
+        try {
+            return parser.next();
+        } catch (IllegalArgumentException e) {
+            out.writeError("ERR " + e.getMessage());
+            out.flush();
+            throw e;
+        }
+    }
+
+    // Shared by the blocking handler and the non-blocking Connection once a command has been parsed.
+    // Returns null once the reply is written, or a future for commands that block until something happens.
+    public static CompletableFuture<DeferredReply> handleCommand(Command command, RespEncoder out) throws IOException {
+        if (CommandExecutor.rejectMalformed(command, out)) {
+            return null;
+        }
+        switch (command.getCommand()) {
+            case WAIT -> {
+                return CommandExecutor.executeWait(command, out);
+            }
+            case BLPOP, BRPOP -> {
+                return CommandExecutor.executeBlockingPop(command, out);
+            }
+            case XREAD -> {
+                return CommandExecutor.executeXread(command, out);
+            }
+            default -> {
+            }
+        }
+        CommandExecutor.execute(command, out);
+        return null;
+    }
 }
@@ -1,37 +1,190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 public class Command {
     private final CommandName command;
-    private final String[] args;
+    // arguments are (offset, length) slices of buffer; slice 0 is the command name
+    private final byte[] buffer;
+    private final int[] slices;
+    // the exact RESP frame the command was parsed from, or -1 when it was built in code
+    private final int wireOffset;
+    private final int wireLength;
+    private String[] args;
+
+    public Command(byte[] buffer, int[] slices) {
+        this(buffer, slices, -1, 0);
+    }
+
+    public Command(byte[] buffer, int[] slices, int wireOffset, int wireLength) {
+        this.buffer = buffer;
+        this.slices = slices;
+        this.wireOffset = wireOffset;
+        this.wireLength = wireLength;
+        this.command = CommandName.lookup(buffer, slices[0], slices[1]);
+    }
+
     public Command(String command, String[] args) {
-        this.command = CommandName.fromName(command);
+        this(concat(command, args));
         this.args = args;
     }
 
-    public Command(List<String> args) {
-        this.command = CommandName.fromName(args.get(0));
-        this.args = args.subList(1, args.size()).toArray(new String[0]);
+    public Command(List<byte[]> args) {
+        this(concat(args.toArray(new byte[0][])));
+    }
+
+    private Command(Command source) {
+        this(source.buffer, source.slices);
+    }
+
+    private static Command concat(String command, String[] args) {
+        byte[][] parts = new byte[args.length + 1][];
+        parts[0] = command.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < args.length; i++) {
+            parts[i + 1] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return concat(parts);
+    }
+
+    private static Command concat(byte[][] parts) {
+        int total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+        byte[] buffer = new byte[total];
+        int[] slices = new int[parts.length * 2];
+        int offset = 0;
+        for (int i = 0; i < parts.length; i++) {
+            System.arraycopy(parts[i], 0, buffer, offset, parts[i].length);
+            slices[2 * i] = offset;
+            slices[2 * i + 1] = parts[i].length;
+            offset += parts[i].length;
+        }
+        return new Command(buffer, slices);
     }
 
+    // null when the name is not in the command table
     public CommandName getCommand() {
         return command;
     }
+
+    // The name as the client sent it.
+    public String getNameText() {
+        return new String(buffer, slices[0], slices[1], StandardCharsets.UTF_8);
+    }
+
+    // Decodes the arguments on first use; hot paths should read the byte slices instead.
     public String[] getArgs() {
+        if (args == null) {
+            String[] decoded = new String[getArgCount()];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = new String(buffer, argOffset(i), argLength(i), StandardCharsets.UTF_8);
+            }
+            args = decoded;
+        }
         return args;
     }
 
-    public String[] toArray() {
-        String[] array = new String[args.length + 1];
-        array[0] = command.getName();
-        System.arraycopy(args, 0, array, 1, args.length);
-        return array;
+    public int getArgCount() {
+        return slices.length / 2 - 1;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int argOffset(int index) {
+        return slices[2 * index + 2];
     }
 
-    public int getLengthInBytes() {
-        int length = command.getName().length();
-        for (String arg : args) {
-            length += arg.length();
+    public int argLength(int index) {
+        return slices[2 * index + 3];
+    }
+
+    public byte[] getArgBytes(int index) {
+        return Arrays.copyOfRange(buffer, argOffset(index), argOffset(index) + argLength(index));
+    }
+
+    public Key getKey(int index) {
+        return new Key(getArgBytes(index));
+    }
+
+    // Case-insensitive comparison against an ASCII keyword such as "PX", without decoding the argument.
+    public boolean argEqualsIgnoreCase(int index, String keyword) {
+        int length = argLength(index);
+        if (length != keyword.length()) {
+            return false;
+        }
+        int offset = argOffset(index);
+        for (int i = 0; i < length; i++) {
+            if (Character.toUpperCase((char) buffer[offset + i]) != Character.toUpperCase(keyword.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long argToLong(int index) {
+        int offset = argOffset(index);
+        int end = offset + argLength(index);
+        boolean isNegative = end > offset && buffer[offset] == CommandParser.MINUS_BYTE;
+        int i = isNegative ? offset + 1 : offset;
+        if (i == end) {
+            throw new NumberFormatException("value is not an integer or out of range");
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("value is not an integer or out of range");
+            }
+            // accumulate negatively so Long.MIN_VALUE parses without overflowing
+            if (result < Long.MIN_VALUE / 10 || result * 10 < Long.MIN_VALUE + digit) {
+                throw new NumberFormatException("value is not an integer or out of range");
+            }
+            result = result * 10 - digit;
+        }
+        if (!isNegative && result == Long.MIN_VALUE) {
+            throw new NumberFormatException("value is not an integer or out of range");
+        }
+        return isNegative ? result : -result;
+    }
+
+    // Copies the command out of the connection's read buffer so it can outlive the next read.
+    public Command retain() {
+        int start = wireOffset >= 0 ? wireOffset : slices[0];
+        int end = wireOffset >= 0 ? wireOffset + wireLength : slices[slices.length - 2] + slices[slices.length - 1];
+        int[] rebased = new int[slices.length];
+        for (int i = 0; i < slices.length; i += 2) {
+            rebased[i] = slices[i] - start;
+            rebased[i + 1] = slices[i + 1];
+        }
+        Command copy = new Command(Arrays.copyOfRange(buffer, start, end), rebased, wireOffset >= 0 ? 0 : -1, wireLength);
+        copy.args = args;
+        return copy;
+    }
+
+    // Size of the RESP frame the command arrived in.
+    public int wireLength() {
+        return wireOffset >= 0 ? wireLength : wireBytes().length;
+    }
+
+    // The command as RESP bytes: a copy of the frame it arrived in, so replication forwards exactly what the
+    // client sent, or an encoding of it when the command was built in code.
+    public byte[] wireBytes() {
+        if (wireOffset >= 0) {
+            return Arrays.copyOfRange(buffer, wireOffset, wireOffset + wireLength);
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        RespEncoder encoder = new RespEncoder(encoded);
+        encoder.writeCommand(this);
+        try {
+            encoder.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return length + 1;
+        return encoded.toByteArray();
     }
 }
@@ -1,26 +1,98 @@
 import java.io.*;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class CommandExecutor {
-    private static final ExecutorService replicaThreadPool = Executors.newCachedThreadPool();
-    public static CountDownLatch latch;
-    public static void execute(Command command, DataOutputStream out) {
-        boolean isWriteCommand = command.getCommand() == CommandName.SET;
-        execute(command, out, false);
-        if (isWriteCommand) {
-            System.out.println("received write command. Propagating to replicas");
+    // orders appends to the backlog with hand-offs to replicas, and freezes the stream while a replica joins
+    private static final ReentrantLock replicationStreamLock = new ReentrantLock();
+    // replication offset just after the last write command; WAIT needs acks up to here, GETACKs aside
+    private static volatile long lastWriteOffset = 0;
+    // replication offset at which the last GETACK was sent; acks for it cover every write before it
+    private static final AtomicLong lastGetAckOffset = new AtomicLong(-1);
+    // pops a push handed to blocked clients while it ran, propagated right after the push
+    private static final ThreadLocal<List<Command>> deferredPropagation = ThreadLocal.withInitial(ArrayList::new);
+    // set while a client's write runs on this thread; the master's stream and append only file replay propagate nothing
+    private static final ThreadLocal<Boolean> propagating = ThreadLocal.withInitial(() -> false);
+    // what the running write propagates as: its own bytes, or a rewrite such as XADD with the ID it generated;
+    // appended by propagateWrite once the keyspace has applied it
+    private static final ThreadLocal<Command> pendingPropagation = new ThreadLocal<>();
+
+    // Replies with an error and returns true if the command is not in the table or has the wrong number of
+    // arguments for it, so executors only ever see argument counts their arity allows.
+    public static boolean rejectMalformed(Command command, RespEncoder out) {
+        CommandName name = command.getCommand();
+        if (name == null) {
+            StringBuilder error = new StringBuilder("ERR unknown command '").append(command.getNameText())
+                    .append("', with args beginning with: ");
+            // as Redis does, quote the arguments until the message passes 128 characters
+            for (int i = 0; i < command.getArgCount() && error.length() < 128; i++) {
+                error.append('\'').append(command.getArgs()[i]).append("' ");
+            }
+            out.writeError(error.toString());
+            return true;
+        }
+        if (!name.acceptsArgCount(command.getArgCount())) {
+            out.writeError("ERR wrong number of arguments for '" + name.getName().toLowerCase() + "' command");
+            return true;
+        }
+        return false;
+    }
+
+    public static void execute(Command command, RespEncoder out) {
+        CommandName name = command.getCommand();
+        // blocking writes (BLPOP, BRPOP) run through their own executors and propagate as the pop they made
+        if (!name.isWrite() || name.hasFlag(CommandName.BLOCKING)) {
+            execute(command, out, false);
+            return;
+        }
+        // a full sync picks its snapshot point between writes, never between a write and its propagation
+        FullSync.writeGate.readLock().lock();
+        propagating.set(true);
+        try {
+            // writes without DENYOOM only free memory and are allowed over maxmemory
+            if (name.hasFlag(CommandName.DENYOOM) && !Eviction.freeMemoryIfNeeded()) {
+                out.writeError("OOM command not allowed when used memory > 'maxmemory'.");
+                return;
+            }
+            pendingPropagation.set(command);
+            execute(command, out, false);
+        } finally {
+            // still set if the command failed before changing anything: it is not propagated
+            pendingPropagation.remove();
+            propagating.set(false);
+            FullSync.writeGate.readLock().unlock();
+        }
+    }
+
+    // Called by KeyValueStore after every write it applied, with the shards written still locked: appends the
+    // running command, then the pops it handed to blocked clients, to the replication stream. Two writes to a
+    // key hold its shard in turn, so they reach replicas and the append only file in the order they were applied.
+    // A write that failed throws before getting here. Only the command's first write appends it.
+    static void propagateWrite() {
+        if (!propagating.get()) {
+            return;
+        }
+        Command command = pendingPropagation.get();
+        if (command != null) {
+            pendingPropagation.remove();
             propagateToReplicas(command);
-            // incremeent the master replication offset by the number of bytes in the command
-            Main.masterReplOffset += command.getLengthInBytes();
         }
+        propagateDeferred();
     }
 
-    public static void execute(Command command, DataOutputStream out, boolean isSilent) {
+    // Replaces what the running write propagates as; called from inside its mutation, before propagateWrite.
+    private static void propagateAs(Command command) {
+        if (pendingPropagation.get() != null) {
+            pendingPropagation.set(command);
+        }
+    }
+
+    public static void execute(Command command, RespEncoder out, boolean isSilent) {
         switch (command.getCommand()) {
             case PING -> {
                 executePing(command, out, isSilent);
@@ -31,6 +103,106 @@ public class CommandExecutor {
             case SET -> {
                 executeSet(command, out, isSilent);
             }
+            case MSET -> {
+                executeMset(command, out, isSilent);
+            }
+            case MGET -> {
+                executeMget(command, out, isSilent);
+            }
+            case DEL -> {
+                executeDel(command, out, isSilent);
+            }
+            case RENAME -> {
+                executeRename(command, out, isSilent);
+            }
+            case INCR, DECR, INCRBY, DECRBY -> {
+                executeIncrBy(command, out, isSilent);
+            }
+            case INCRBYFLOAT -> {
+                executeIncrByFloat(command, out, isSilent);
+            }
+            case PEXPIREAT -> {
+                executePexpireat(command, out, isSilent);
+            }
+            case LPUSH, RPUSH -> {
+                executePush(command, out, isSilent);
+            }
+            case LPOP, RPOP -> {
+                executePop(command, out, isSilent);
+            }
+            case BLPOP, BRPOP -> {
+                if (!isSilent) {
+                    CompletableFuture<DeferredReply> blocked = executeBlockingPop(command, out);
+                    if (blocked != null) {
+                        blocked.join().writeTo(out);
+                    }
+                }
+            }
+            case LRANGE -> {
+                executeLrange(command, out, isSilent);
+            }
+            case LLEN -> {
+                executeLlen(command, out, isSilent);
+            }
+            case LINDEX -> {
+                executeLindex(command, out, isSilent);
+            }
+            case ZADD, ZINCRBY -> {
+                executeZadd(command, out, isSilent);
+            }
+            case ZREM -> {
+                executeZrem(command, out, isSilent);
+            }
+            case ZSCORE -> {
+                executeZscore(command, out, isSilent);
+            }
+            case ZRANK -> {
+                executeZrank(command, out, isSilent);
+            }
+            case ZRANGE -> {
+                executeZrange(command, out, isSilent);
+            }
+            case HSET -> {
+                executeHset(command, out, isSilent);
+            }
+            case HGET -> {
+                executeHget(command, out, isSilent);
+            }
+            case HMGET -> {
+                executeHmget(command, out, isSilent);
+            }
+            case HDEL -> {
+                executeHdel(command, out, isSilent);
+            }
+            case HGETALL -> {
+                executeHgetall(command, out, isSilent);
+            }
+            case HINCRBY -> {
+                executeHincrby(command, out, isSilent);
+            }
+            case HSCAN -> {
+                executeHscan(command, out, isSilent);
+            }
+            case XADD -> {
+                executeXadd(command, out, isSilent);
+            }
+            case XRANGE, XREVRANGE -> {
+                executeXrange(command, out, isSilent);
+            }
+            case XLEN -> {
+                executeXlen(command, out, isSilent);
+            }
+            case XTRIM -> {
+                executeXtrim(command, out, isSilent);
+            }
+            case XREAD -> {
+                if (!isSilent) {
+                    CompletableFuture<DeferredReply> blocked = executeXread(command, out);
+                    if (blocked != null) {
+                        blocked.join().writeTo(out);
+                    }
+                }
+            }
             case GET -> {
                 executeGet(command, out, isSilent);
             }
@@ -50,69 +222,175 @@ public class CommandExecutor {
                 executePsync(command, out, isSilent);
             }
             case WAIT -> {
-                executeWait(command, out, isSilent);
+                if (!isSilent) {
+                    CompletableFuture<DeferredReply> blocked = executeWait(command, out);
+                    if (blocked != null) {
+                        blocked.join().writeTo(out);
+                    }
+                }
             }
             case TYPE -> {
                 executeType(command, out, isSilent);
             }
-            default -> {
-                throw new IllegalArgumentException("Invalid command");
+            case SCAN -> {
+                executeScan(command, out, isSilent);
+            }
+            case SAVE -> {
+                executeSave(command, out, isSilent);
+            }
+            case BGSAVE -> {
+                executeBgsave(command, out, isSilent);
+            }
+            case LASTSAVE -> {
+                executeLastsave(command, out, isSilent);
+            }
+            case BGREWRITEAOF -> {
+                executeBgrewriteaof(command, out, isSilent);
+            }
+            case COMMAND -> {
+                executeCommand(command, out, isSilent);
             }
         }
     }
 
+    // Appends the command to the replication stream: the backlog, and every replica's queue.
+    // One copy of the client's own bytes is shared by all of them.
+    // The append only file is written in the same order, under the same lock.
     private static void propagateToReplicas(Command command) {
-        if (Main.replicaMap != null) {
-            for (DataOutputStream replicaOut : Main.replicaMap.keySet()) {
-                // print out the host and port of the replica
-                System.out.println("Propagating to replica: " + replicaOut);
-                replicaThreadPool.execute(() -> {
-                    try {
-                        String[] commandStrings = command.toArray();
-                        System.out.println("Propagating command to replica: " + commandStrings);
-                        writeArray(replicaOut, commandStrings);
-                    } catch (Exception e) {
-                        System.out.println(Thread.currentThread().getName() + " Failed to propagate command to replica: " + e.getMessage());
-                    }
-                });
+        byte[] logEntry = AppendOnlyFile.isEnabled() ? AppendOnlyFile.toLogEntry(command) : null;
+        replicationStreamLock.lock();
+        try {
+            appendToReplicationStream(command.wireBytes(), true);
+            if (logEntry != null) {
+                AppendOnlyFile.append(logEntry);
+            }
+        } finally {
+            replicationStreamLock.unlock();
+        }
+    }
+
+    static void deferPropagation(Command command) {
+        if (propagating.get()) {
+            deferredPropagation.get().add(command);
+        }
+    }
+
+    private static void propagateDeferred() {
+        List<Command> deferred = deferredPropagation.get();
+        if (deferred.isEmpty()) {
+            return;
+        }
+        for (Command command : deferred) {
+            propagateToReplicas(command);
+        }
+        deferred.clear();
+    }
+
+    // An evicted key reaches replicas and the append only file as a DEL, ahead of the write that evicted it.
+    // Called with the key's shard still locked.
+    static void propagateEviction(Key key) {
+        propagateToReplicas(new Command(List.of("DEL".getBytes(), key.bytes())));
+    }
+
+    private static void appendToReplicationStream(byte[] bytes, boolean isWrite) {
+        replicationStreamLock.lock();
+        try {
+            Main.backlog.append(bytes);
+            Main.masterReplOffset = Main.backlog.offset();
+            if (isWrite) {
+                lastWriteOffset = Main.masterReplOffset;
             }
+            for (Replica replica : Main.replicas) {
+                replica.enqueue(bytes);
+            }
+        } finally {
+            replicationStreamLock.unlock();
         }
     }
 
-    private static void executePsync(Command command, DataOutputStream out, boolean isSilent) {
+    // PSYNC replid offset: continues from the backlog when it still holds the replica's offset, otherwise
+    // hands the replica to a full sync.
+    private static void executePsync(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        writeSimpleString(out, "FULLRESYNC " + Main.masterReplId + " " + Main.masterReplOffset);
-        String emptyFileContents = "UkVESVMwMDEx+glyZWRpcy12ZXIFNy4yLjD6CnJlZGlzLWJpdHPAQPoFY3RpbWXCbQi8ZfoIdXNlZC1tZW3CsMQQAPoIYW9mLWJhc2XAAP/wbjv+wP9aog==";
-        byte[] bytes = Base64.getDecoder().decode(emptyFileContents);
+        // the sync reply and what follows it are written to the socket directly,
+        // after every reply already buffered for this connection
         try {
-            out.writeBytes("$" + bytes.length + "\r\n");
-            out.write(bytes);
             out.flush();
+            if (!continueFromBacklog(command, out.sink())) {
+                FullSync.attach(new Replica(out.sink()));
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
-        }   
+        }
+    }
+
+    private static boolean continueFromBacklog(Command command, OutputStream sink) throws IOException {
+        if (!command.getArgs()[0].equals(Main.masterReplId)) {
+            return false;
+        }
+        long requested;
+        try {
+            requested = command.argToLong(1);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        Replica replica;
+        byte[] tail;
+        replicationStreamLock.lock();
+        try {
+            // the replica asks for the offset of the next byte it needs, counting from 1
+            tail = Main.backlog.copyFrom(requested - 1);
+            if (tail == null) {
+                return false;
+            }
+            replica = new Replica(sink, Replica.State.SENDING_RDB, Main.backlog.offset());
+            Main.replicas.add(replica);
+        } finally {
+            replicationStreamLock.unlock();
+        }
+        System.out.println("Partial resynchronization from offset " + requested + ": sending " + tail.length + " backlog bytes");
+        RespEncoder encoder = new RespEncoder(sink);
+        encoder.writeSimpleString("CONTINUE " + Main.masterReplId);
+        encoder.writeRaw(tail);
+        try {
+            encoder.flush();
+        } catch (IOException e) {
+            replica.disconnect();
+            throw e;
+        }
+        replica.syncFinished();
+        return true;
     }
 
-    private static void executeReplConf(Command command, DataOutputStream out, boolean isSilent) {
-        System.out.println("received REPLCONF command");
-        if (command.getArgs()[0].equalsIgnoreCase("getack")) {
-            writeArray(out, new String[]{"REPLCONF", "ACK", String.valueOf(CommandParser.totalCommandBytesProcessed - 37)});
+    private static void executeReplConf(Command command, RespEncoder out, boolean isSilent) {
+        if (command.argEqualsIgnoreCase(0, "GETACK")) {
+            // on a replica: the master's stream applied so far, not counting this GETACK
+            out.writeArray(new String[]{"REPLCONF", "ACK", String.valueOf(Main.masterReplOffset)});
+        } else if (command.argEqualsIgnoreCase(0, "ACK")) {
+            // on a master: a replica reporting its offset; acks get no reply, and a malformed one is ignored
+            // rather than trusted by WAIT
+            Replica replica = Replica.forSink(out.sink());
+            if (replica == null || command.getArgCount() != 2) {
+                return;
+            }
+            long offset;
+            try {
+                offset = command.argToLong(1);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            replica.acknowledged(offset);
         } else {
             executeReplConfOk(command, out, isSilent);
         }
     }
 
-    private static void executeReplConfOk(Command command, DataOutputStream out, boolean isSilent) {
+    private static void executeReplConfOk(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        writeSimpleString(out, "OK");
-        try {
-            out.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        out.writeRaw(RespEncoder.OK);
     }
 
-    private static void executeInfo(Command command, DataOutputStream out, boolean isSilent) {
+    private static void executeInfo(Command command, RespEncoder out, boolean isSilent) {
         StringBuilder info = new StringBuilder();
         if (Main.masterHostAndPort != null) {
             info.append("role:slave\r\n");
@@ -122,203 +400,1494 @@ public class CommandExecutor {
 
         info.append("master_replid:"+ Main.masterReplId +"\r\n");
         info.append("master_repl_offset:" + Main.masterReplOffset + "\r\n");
+        info.append("used_memory:" + KeyValueStore.getInstance().usedMemory() + "\r\n");
+        info.append("maxmemory:" + Eviction.getMaxMemory() + "\r\n");
+        info.append("maxmemory_policy:" + Eviction.getPolicyName() + "\r\n");
+        info.append("evicted_keys:" + Eviction.getEvictedKeys() + "\r\n");
+        if (Main.masterHostAndPort == null) {
+            info.append("connected_slaves:" + Main.replicas.size() + "\r\n");
+            int index = 0;
+            for (Replica replica : Main.replicas) {
+                info.append("slave" + index++ + ":" + replica.info() + "\r\n");
+            }
+        }
 
         if (!isSilent) {
-            writeBulkString(out, info.toString());
+            out.writeBulkString(info.toString());
         }
     }
 
-    private static void executeKeys(Command command, DataOutputStream out, boolean isSilent) {
-        String rdbFilePath = Main.rdbFilePath;
-        RdbFileReader rdbFileReader = new RdbFileReader();
-        try {
-            List<RdbEntry> keys = rdbFileReader.getEntries(rdbFilePath);
-            // write the list of keys as a bulk string array
-            if (!isSilent) {
-                writeArray(out, keys.stream().map(RdbEntry::getKey).toArray(String[]::new));
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private static void executeKeys(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        List<Key> keys = new ArrayList<>();
+        KeyValueStore.getInstance().keys(GlobPattern.compile(command.getArgBytes(0)), keys);
+        out.writeArrayHeader(keys.size());
+        for (Key key : keys) {
+            out.writeBulkString(key.bytes());
         }
     }
 
-    private static void executeConfig(Command command, DataOutputStream out, boolean isSilent) {
+    // SCAN cursor [MATCH pattern] [COUNT count]
+    private static void executeScan(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        // if the first argument is "GET", then the command is of the form:
-        // CONFIG GET key
-        if (command.getArgs()[0].equalsIgnoreCase("GET")) {
-            // if the key is "dir", return the directory where the RDB file is stored
-            String rdbFileDirectory = Main.rdbFilePath.substring(0, Main.rdbFilePath.lastIndexOf("/"));
-            if (rdbFileDirectory == null) {
+        int cursor;
+        try {
+            long parsed = command.argToLong(0);
+            cursor = parsed >= KeyValueStore.SLOTS ? KeyValueStore.SLOTS : (int) parsed;
+        } catch (NumberFormatException e) {
+            cursor = -1;
+        }
+        if (cursor < 0) {
+            out.writeError("ERR invalid cursor");
+            return;
+        }
+        ScanOptions options = parseScanOptions(command, 1, false, out);
+        if (options == null) {
+            return;
+        }
+        List<Key> keys = new ArrayList<>();
+        int nextCursor = KeyValueStore.getInstance().scan(cursor, options.count(), options.pattern(), keys);
+        out.writeArrayHeader(2);
+        out.writeBulkString(Integer.toString(nextCursor));
+        out.writeArrayHeader(keys.size());
+        for (Key key : keys) {
+            out.writeBulkString(key.bytes());
+        }
+    }
+
+    private record ScanOptions(GlobPattern pattern, int count, boolean withValues) {
+    }
+
+    // [MATCH pattern] [COUNT count], and for HSCAN [NOVALUES], from argument first on. Returns null once an
+    // error is written.
+    private static ScanOptions parseScanOptions(Command command, int first, boolean isHscan, RespEncoder out) {
+        GlobPattern pattern = GlobPattern.MATCH_ALL;
+        int count = 10;
+        boolean withValues = true;
+        for (int i = first; i < command.getArgCount(); i += 2) {
+            if (isHscan && command.argEqualsIgnoreCase(i, "NOVALUES")) {
+                withValues = false;
+                i--;
+                continue;
+            }
+            if (i + 1 >= command.getArgCount()) {
+                out.writeError("ERR syntax error");
+                return null;
+            }
+            if (command.argEqualsIgnoreCase(i, "MATCH")) {
+                pattern = GlobPattern.compile(command.getArgBytes(i + 1));
+            } else if (command.argEqualsIgnoreCase(i, "COUNT")) {
+                long parsed;
                 try {
-                    out.writeBytes("$-1\r\n");
-                    out.flush();
-                } catch (IOException e) {
-                    System.out.println("Failed to write to client " + e.getMessage());
+                    parsed = command.argToLong(i + 1);
+                } catch (NumberFormatException e) {
+                    parsed = 0;
+                }
+                if (parsed < 1) {
+                    out.writeError("ERR value is not an integer or out of range");
+                    return null;
                 }
+                count = (int) Math.min(parsed, Integer.MAX_VALUE);
             } else {
-                String[] returnArray = new String[2];
-                returnArray[0] = command.getArgs()[1];
-                returnArray[1] = rdbFileDirectory;
-                writeArray(out, returnArray);
+                out.writeError("ERR syntax error");
+                return null;
             }
-        } else {
-            throw new IllegalArgumentException("Invalid command");
         }
+        return new ScanOptions(pattern, count, withValues);
     }
 
-    public static void writeArray(DataOutputStream out, String[] returnArray) {
+    private static void executeSave(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
         try {
-            out.writeBytes("*" + returnArray.length + "\r\n");
-            for (String s : returnArray) {
-                writeBulkString(out, s);
+            if (Persistence.save()) {
+                out.writeRaw(RespEncoder.OK);
+            } else {
+                out.writeError("ERR Background save already in progress");
             }
-            out.flush();
         } catch (IOException e) {
-            System.out.println("Failed to write array to client " + e.getMessage());
+            System.out.println("Failed to save RDB file: " + e.getMessage());
+            out.writeError("ERR " + e.getMessage());
         }
     }
 
-    private static void executeGet(Command command, DataOutputStream out, boolean isSilent) {
+    private static void executeBgsave(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        System.out.println("received GET command");
-        KeyValueStore keyValueStore = KeyValueStore.getInstance();
-        String value = (String) keyValueStore.get(command.getArgs()[0]);
-        if (value == null) {
-            try {
-                out.writeBytes("$-1\r\n");
-                out.flush();
-            } catch (IOException e) {
-                System.out.println("Failed to write to client " + e.getMessage());
-            }
+        if (Persistence.backgroundSave()) {
+            out.writeSimpleString("Background saving started");
         } else {
-            writeBulkString(out, value);
-            try {
-                out.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            out.writeError("ERR Background save already in progress");
         }
     }
 
-    private static void executeSet(Command command, DataOutputStream out, boolean isSilent) {
-        System.out.println("received SET command");
-        KeyValueStore keyValueStore = KeyValueStore.getInstance();
-        // check if the command provides an expiry time. If it does, the command will be of the form:
-        // SET key value px milliseconds
-        if (command.getArgs().length == 4) {
-            long expiryTime = Long.parseLong(command.getArgs()[3]);
-            keyValueStore.put(command.getArgs()[0], command.getArgs()[1], expiryTime);
+    private static void executeBgrewriteaof(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        if (!AppendOnlyFile.isEnabled()) {
+            out.writeError("ERR Append only file is disabled");
+        } else if (AppendOnlyFile.backgroundRewrite()) {
+            out.writeSimpleString("Background append only file rewriting started");
         } else {
-            keyValueStore.put(command.getArgs()[0], command.getArgs()[1]);
+            out.writeError("ERR Background append only file rewriting already in progress");
         }
-        if (!isSilent) {
-            try {
-                out.writeBytes("+OK\r\n");
-                out.flush();
-            } catch (IOException e) {
-                System.out.println("Failed to write to client " + e.getMessage());
+    }
+
+    private static void executeLastsave(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        out.writeInteger(Persistence.getLastSaveTime());
+    }
+
+    // CONFIG GET parameter [parameter ...]: the RDB file's dir and dbfilename; other parameters are left out.
+    private static void executeConfig(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        if (!command.argEqualsIgnoreCase(0, "GET")) {
+            out.writeError("ERR unknown subcommand '" + command.getArgs()[0] + "'. Try CONFIG HELP.");
+            return;
+        }
+        if (command.getArgCount() < 2) {
+            out.writeError("ERR wrong number of arguments for 'config|get' command");
+            return;
+        }
+        File rdbFile = new File(Main.rdbFilePath);
+        List<String> reply = new ArrayList<>();
+        for (int i = 1; i < command.getArgCount(); i++) {
+            if (command.argEqualsIgnoreCase(i, "dir")) {
+                reply.add("dir");
+                reply.add(rdbFile.getParent() != null ? rdbFile.getParent() : ".");
+            } else if (command.argEqualsIgnoreCase(i, "dbfilename")) {
+                reply.add("dbfilename");
+                reply.add(rdbFile.getName());
             }
         }
-        System.out.println("SET command executed successfully");
+        out.writeArray(reply.toArray(new String[0]));
     }
 
-    private static void executeEcho(Command command, DataOutputStream out, boolean isSilent) {
+    private static void executeGet(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        writeBulkString(out, command.getArgs()[0]);
-        try {
-            out.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Object stored = keyValueStore.get(command.getKey(0));
+        byte[] value = IntValue.bytesOf(stored);
+        if (stored == null) {
+            out.writeNullBulkString();
+        } else if (value == null) {
+            out.writeError(KeyValueStore.WRONGTYPE);
+        } else {
+            out.writeBulkString(value);
         }
     }
 
-    public static void writeBulkString(DataOutputStream out, String arg) {
+    // SET key value [EX seconds | PX milliseconds | EXAT unix-time-seconds | PXAT unix-time-milliseconds]
+    // The append only file logs relative expiries as PXAT. NX, XX, GET and KEEPTTL are not supported.
+    private static void executeSet(Command command, RespEncoder out, boolean isSilent) {
+        int expiryIndex = -1;
+        for (int i = 2; i < command.getArgCount(); i += 2) {
+            boolean isExpiry = command.argEqualsIgnoreCase(i, "EX") || command.argEqualsIgnoreCase(i, "PX")
+                    || command.argEqualsIgnoreCase(i, "EXAT") || command.argEqualsIgnoreCase(i, "PXAT");
+            if (!isExpiry || expiryIndex >= 0 || i + 1 >= command.getArgCount()) {
+                if (!isSilent) out.writeError("ERR syntax error");
+                return;
+            }
+            expiryIndex = i;
+        }
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        if (expiryIndex < 0) {
+            keyValueStore.put(command.getKey(0), command.getArgBytes(1));
+            if (!isSilent) {
+                out.writeRaw(RespEncoder.OK);
+            }
+            return;
+        }
+        long expiryTime;
         try {
-            out.writeBytes("$" + arg.length() + "\r\n");
-            out.writeBytes(arg + "\r\n");
-        } catch (IOException e) {
-            System.out.println("Failed to write bulk string to client " + e.getMessage());
+            expiryTime = command.argToLong(expiryIndex + 1);
+        } catch (NumberFormatException e) {
+            if (!isSilent) out.writeError("ERR value is not an integer or out of range");
+            return;
+        }
+        boolean inSeconds = command.argEqualsIgnoreCase(expiryIndex, "EX") || command.argEqualsIgnoreCase(expiryIndex, "EXAT");
+        boolean isAbsolute = command.argEqualsIgnoreCase(expiryIndex, "EXAT") || command.argEqualsIgnoreCase(expiryIndex, "PXAT");
+        // the time in milliseconds, and for EX and PX the absolute time it becomes, must fit in a long
+        if (expiryTime <= 0 || (inSeconds && expiryTime > Long.MAX_VALUE / 1000)
+                || (!isAbsolute && (inSeconds ? expiryTime * 1000 : expiryTime) > Long.MAX_VALUE - System.currentTimeMillis())) {
+            if (!isSilent) out.writeError("ERR invalid expire time in 'set' command");
+            return;
+        }
+        if (inSeconds) {
+            expiryTime *= 1000;
+        }
+        if (isAbsolute) {
+            keyValueStore.putAt(command.getKey(0), command.getArgBytes(1), expiryTime);
+        } else {
+            keyValueStore.put(command.getKey(0), command.getArgBytes(1), expiryTime);
+        }
+        if (!isSilent) {
+            out.writeRaw(RespEncoder.OK);
         }
     }
 
-    public static void writeSimpleString(DataOutputStream out, String arg) {
-        try {
-            out.writeBytes("+" + arg + "\r\n");
-        } catch (IOException e) {
-            System.out.println("Failed to write simple string to client " + e.getMessage());
+    // MSET key value [key value ...]: every pair becomes visible at once.
+    private static void executeMset(Command command, RespEncoder out, boolean isSilent) {
+        // the arity only says at least one pair; an unpaired key is still an argument count error
+        if (command.getArgCount() % 2 != 0) {
+            if (!isSilent) out.writeError("ERR wrong number of arguments for 'mset' command");
+            return;
+        }
+        List<Key> keys = new ArrayList<>(command.getArgCount() / 2);
+        List<byte[]> values = new ArrayList<>(command.getArgCount() / 2);
+        for (int i = 0; i < command.getArgCount(); i += 2) {
+            keys.add(command.getKey(i));
+            values.add(command.getArgBytes(i + 1));
+        }
+        KeyValueStore.getInstance().putAll(keys, values);
+        if (!isSilent) {
+            out.writeRaw(RespEncoder.OK);
         }
     }
 
-    private static void executePing(Command command, DataOutputStream out, boolean isSilent) {
+    // MGET key [key ...]: values read at one point in time; missing keys and non-strings are nil.
+    private static void executeMget(Command command, RespEncoder out, boolean isSilent) {
         if (isSilent) return;
-        try {
-            out.writeBytes("+PONG\r\n");
-            out.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        Object[] values = KeyValueStore.getInstance().getAll(keysOf(command));
+        out.writeArrayHeader(values.length);
+        for (Object value : values) {
+            byte[] bytes = IntValue.bytesOf(value);
+            if (bytes != null) {
+                out.writeBulkString(bytes);
+            } else {
+                out.writeNullBulkString();
+            }
         }
     }
 
-    private static void executeType(Command command, DataOutputStream out, boolean isSilent) {
-        if (isSilent) return;
-        KeyValueStore keyValueStore = KeyValueStore.getInstance();
-        String key = command.getArgs()[0];
-        Object value = keyValueStore.get(key);
-        if (value != null) {
-             writeSimpleString(out, "string");
-        } else {
-            writeSimpleString(out, "none");
+    // DEL key [key ...]: replies with how many of the keys existed.
+    private static void executeDel(Command command, RespEncoder out, boolean isSilent) {
+        int deleted = KeyValueStore.getInstance().deleteAll(keysOf(command));
+        if (!isSilent) {
+            out.writeInteger(deleted);
         }
     }
 
-    private static void executeWait(Command command, DataOutputStream out, boolean isSilent) {
+    // RENAME key newkey: moves the value and its TTL, overwriting newkey.
+    private static void executeRename(Command command, RespEncoder out, boolean isSilent) {
+        boolean renamed = KeyValueStore.getInstance().rename(command.getKey(0), command.getKey(1));
         if (isSilent) return;
-        int numReplicas = Integer.parseInt(command.getArgs()[0]);
-        int timeout = Integer.parseInt(command.getArgs()[1]);
+        if (renamed) {
+            out.writeRaw(RespEncoder.OK);
+        } else {
+            out.writeError("ERR no such key");
+        }
+    }
 
-        // Check if there are pending write operations
-        if (Main.masterReplOffset == 0) {
-            // No pending write operations, return the number of connected replicas
+    // INCR key, DECR key, INCRBY key increment, DECRBY key decrement: replies with the new value.
+    private static void executeIncrBy(Command command, RespEncoder out, boolean isSilent) {
+        CommandName name = command.getCommand();
+        boolean hasAmount = name == CommandName.INCRBY || name == CommandName.DECRBY;
+        long delta = 1;
+        if (hasAmount) {
             try {
-                out.writeBytes(":" + Main.replicaMap.size() + "\r\n");
-                out.flush();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                delta = command.argToLong(1);
+            } catch (NumberFormatException e) {
+                if (!isSilent) out.writeError("ERR value is not an integer or out of range");
+                return;
+            }
+        }
+        if (name == CommandName.DECR || name == CommandName.DECRBY) {
+            if (delta == Long.MIN_VALUE) {
+                if (!isSilent) out.writeError("ERR decrement would overflow");
+                return;
+            }
+            delta = -delta;
+        }
+        try {
+            long value = KeyValueStore.getInstance().incrementBy(command.getKey(0), delta);
+            if (!isSilent) {
+                out.writeInteger(value);
             }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // INCRBYFLOAT key increment: replies with the new value as a bulk string.
+    private static void executeIncrByFloat(Command command, RespEncoder out, boolean isSilent) {
+        Double delta = KeyValueStore.parseFloat(command.getArgBytes(1));
+        if (delta == null) {
+            if (!isSilent) out.writeError("ERR value is not a valid float");
             return;
         }
+        try {
+            byte[] value = KeyValueStore.getInstance().incrementByFloat(command.getKey(0), delta);
+            if (!isSilent) {
+                out.writeBulkString(value);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
 
-        latch = new CountDownLatch(numReplicas);
-        System.out.println("Current thread executing WAIT: " + Thread.currentThread().getName());
-        for (DataOutputStream replicaOut : Main.replicaMap.keySet()) {
-            new Thread(() -> {
-                try {
-                    CommandExecutor.writeArray(replicaOut, new String[]{"REPLCONF", "GETACK", "*"});
-                } catch (Exception e) {
-                    System.out.println("Failed to send REPLCONF GETACK to replica: " + e.getMessage());
+    // PEXPIREAT key unix-time-milliseconds [NX | XX | GT | LT]: replies 1 if the expiry was set, 0 if the key does
+    // not exist or the option's condition was not met. A key without an expiry counts as never expiring for GT/LT.
+    private static void executePexpireat(Command command, RespEncoder out, boolean isSilent) {
+        long expiresAt;
+        try {
+            expiresAt = command.argToLong(1);
+        } catch (NumberFormatException e) {
+            if (!isSilent) out.writeError("ERR value is not an integer or out of range");
+            return;
+        }
+        boolean nx = false, xx = false, gt = false, lt = false;
+        for (int i = 2; i < command.getArgCount(); i++) {
+            if (command.argEqualsIgnoreCase(i, "NX")) {
+                nx = true;
+            } else if (command.argEqualsIgnoreCase(i, "XX")) {
+                xx = true;
+            } else if (command.argEqualsIgnoreCase(i, "GT")) {
+                gt = true;
+            } else if (command.argEqualsIgnoreCase(i, "LT")) {
+                lt = true;
+            } else {
+                if (!isSilent) out.writeError("ERR Unsupported option " + command.getArgs()[i]);
+                return;
+            }
+        }
+        if (nx && (xx || gt || lt)) {
+            if (!isSilent) out.writeError("ERR NX and XX, GT or LT options at the same time are not compatible");
+            return;
+        }
+        if (gt && lt) {
+            if (!isSilent) out.writeError("ERR GT and LT options at the same time are not compatible");
+            return;
+        }
+        boolean onlyPersistent = nx, onlyVolatile = xx, onlyLater = gt, onlyEarlier = lt;
+        boolean set = KeyValueStore.getInstance().expireAt(command.getKey(0), expiresAt, current -> {
+            boolean isVolatile = current != Entry.NO_EXPIRY;
+            return !(onlyPersistent && isVolatile) && !(onlyVolatile && !isVolatile)
+                    && !(onlyLater && (!isVolatile || expiresAt <= current))
+                    && !(onlyEarlier && isVolatile && expiresAt >= current);
+        });
+        if (!isSilent) {
+            out.writeInteger(set ? 1 : 0);
+        }
+    }
+
+    // LPUSH key element [element ...], RPUSH: replies with the list's length after the push. Clients blocked
+    // on the key are then served from it, before anyone else can see the elements.
+    private static void executePush(Command command, RespEncoder out, boolean isSilent) {
+        boolean toHead = command.getCommand() == CommandName.LPUSH;
+        Key key = command.getKey(0);
+        try {
+            long length = KeyValueStore.getInstance().mutate(key, QuickList.class, QuickList::new, list -> {
+                for (int i = 1; i < command.getArgCount(); i++) {
+                    if (toHead) {
+                        list.pushHead(command.buffer(), command.argOffset(i), command.argLength(i));
+                    } else {
+                        list.pushTail(command.buffer(), command.argOffset(i), command.argLength(i));
+                    }
+                }
+                long pushed = list.size();
+                // the replication stream and the append only file have no blocked clients to serve
+                if (!isSilent) {
+                    BlockingLists.handOff(key, list);
+                }
+                return pushed;
+            });
+            if (!isSilent) {
+                out.writeInteger(length);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // LPOP key [count], RPOP: one element as a bulk string, or with a count up to count elements as an array.
+    private static void executePop(Command command, RespEncoder out, boolean isSilent) {
+        boolean fromHead = command.getCommand() == CommandName.LPOP;
+        // the arity has no upper bound, so the optional count is the only argument allowed after the key
+        if (command.getArgCount() > 2) {
+            if (!isSilent) out.writeError("ERR wrong number of arguments for '" + command.getCommand().getName().toLowerCase() + "' command");
+            return;
+        }
+        boolean hasCount = command.getArgCount() == 2;
+        long count = 1;
+        if (hasCount) {
+            try {
+                count = command.argToLong(1);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                if (!isSilent) out.writeError("ERR value is out of range, must be positive");
+                return;
+            }
+        }
+        long wanted = count;
+        List<byte[]> popped;
+        try {
+            popped = KeyValueStore.getInstance().mutate(command.getKey(0), QuickList.class, null, list -> {
+                if (list == null) {
+                    return null;
                 }
-            }).start();
+                List<byte[]> values = new ArrayList<>((int) Math.min(wanted, list.size()));
+                while (values.size() < wanted && !list.isEmpty()) {
+                    values.add(fromHead ? list.popHead() : list.popTail());
+                }
+                return values;
+            });
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        if (isSilent) return;
+        if (!hasCount) {
+            if (popped == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(popped.get(0));
+            }
+        } else if (popped == null) {
+            out.writeRaw(RespEncoder.NULL_ARRAY);
+        } else {
+            writeBulkStrings(popped, out);
         }
+    }
 
+    // BLPOP key [key ...] timeout, BRPOP: pops from the first non-empty list, or parks the caller until a push
+    // serves it or the timeout in seconds passes (0 waits forever). Returns null once the reply is written.
+    public static CompletableFuture<DeferredReply> executeBlockingPop(Command command, RespEncoder out) {
+        boolean fromHead = command.getCommand() == CommandName.BLPOP;
+        int argCount = command.getArgCount();
+        Double timeout = KeyValueStore.parseFloat(command.getArgBytes(argCount - 1));
+        if (timeout == null) {
+            out.writeError("ERR timeout is not a float or out of range");
+            return null;
+        }
+        if (timeout < 0) {
+            out.writeError("ERR timeout is negative");
+            return null;
+        }
+        long timeoutMillis = timeout > 0 ? Math.max(1, (long) (timeout * 1000)) : 0;
+        List<Key> keys = new ArrayList<>(argCount - 1);
+        for (int i = 0; i < argCount - 1; i++) {
+            keys.add(command.getKey(i));
+        }
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        FullSync.writeGate.readLock().lock();
+        propagating.set(true);
         try {
-            boolean completed = latch.await(timeout, TimeUnit.MILLISECONDS);
-            System.out.println("countdown completed? " + completed);
-            out.writeBytes(":" + (completed ? numReplicas : numReplicas - latch.getCount()) + "\r\n");
-            out.flush();
-        } catch (InterruptedException | IOException e) {
-            throw new RuntimeException(e);
+            for (Key key : keys) {
+                byte[] value;
+                try {
+                    // propagated as the pop it makes, from inside the write like any other command
+                    value = keyValueStore.mutate(key, QuickList.class, null, list -> {
+                        byte[] popped = list == null ? null : fromHead ? list.popHead() : list.popTail();
+                        if (popped != null) {
+                            pendingPropagation.set(new Command(List.of((fromHead ? "LPOP" : "RPOP").getBytes(), key.bytes())));
+                        }
+                        return popped;
+                    });
+                } catch (IllegalArgumentException e) {
+                    out.writeError(e.getMessage());
+                    return null;
+                }
+                if (value != null) {
+                    out.writeArrayHeader(2);
+                    out.writeBulkString(key.bytes());
+                    out.writeBulkString(value);
+                    return null;
+                }
+            }
+            // block may serve this or an earlier waiter from a push that raced with the attempts above; the pops
+            // it makes are propagated from inside its writes
+            return BlockingLists.block(keys, fromHead, timeoutMillis);
         } finally {
-            // Reset masterReplOffset after processing the WAIT command
-            Main.masterReplOffset = 0;
+            pendingPropagation.remove();
+            propagating.set(false);
+            FullSync.writeGate.readLock().unlock();
         }
     }
 
-    public static void writeRdbFile(byte[] rdbFileData, String rdbFilePath) {
-        try (FileOutputStream fos = new FileOutputStream(rdbFilePath)) {
-            fos.write(rdbFileData);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    // LRANGE key start stop
+    private static void executeLrange(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        long start;
+        long stop;
+        try {
+            start = command.argToLong(1);
+            stop = command.argToLong(2);
+        } catch (NumberFormatException e) {
+            out.writeError("ERR value is not an integer or out of range");
+            return;
+        }
+        List<byte[]> values;
+        try {
+            values = KeyValueStore.getInstance().read(command.getKey(0), QuickList.class, list -> {
+                List<byte[]> range = new ArrayList<>();
+                if (list != null) {
+                    list.range(start, stop, range::add);
+                }
+                return range;
+            });
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        writeBulkStrings(values, out);
+    }
+
+    // LLEN key
+    private static void executeLlen(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        try {
+            out.writeInteger(KeyValueStore.getInstance().read(command.getKey(0), QuickList.class,
+                    list -> list == null ? 0 : list.size()));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+        }
+    }
+
+    // LINDEX key index: negative indexes count from the tail.
+    private static void executeLindex(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        long index;
+        try {
+            index = command.argToLong(1);
+        } catch (NumberFormatException e) {
+            out.writeError("ERR value is not an integer or out of range");
+            return;
+        }
+        byte[] value;
+        try {
+            value = KeyValueStore.getInstance().read(command.getKey(0), QuickList.class,
+                    list -> list == null ? null : list.get(index));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        if (value == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(value);
+        }
+    }
+
+    // ZADD key [NX|XX] [GT|LT] [CH] [INCR] score member [score member ...], and ZINCRBY key increment member,
+    // which is ZADD INCR. Replies with the number of members added (or changed, with CH), or with INCR the new
+    // score, nil if a condition stopped the update.
+    private static void executeZadd(Command command, RespEncoder out, boolean isSilent) {
+        boolean isZincrby = command.getCommand() == CommandName.ZINCRBY;
+        boolean nx = false, xx = false, gt = false, lt = false, ch = false, incr = isZincrby;
+        int first = 1;
+        if (!isZincrby) {
+            for (; first < command.getArgCount(); first++) {
+                if (command.argEqualsIgnoreCase(first, "NX")) {
+                    nx = true;
+                } else if (command.argEqualsIgnoreCase(first, "XX")) {
+                    xx = true;
+                } else if (command.argEqualsIgnoreCase(first, "GT")) {
+                    gt = true;
+                } else if (command.argEqualsIgnoreCase(first, "LT")) {
+                    lt = true;
+                } else if (command.argEqualsIgnoreCase(first, "CH")) {
+                    ch = true;
+                } else if (command.argEqualsIgnoreCase(first, "INCR")) {
+                    incr = true;
+                } else {
+                    break;
+                }
+            }
+        }
+        int pairs = (command.getArgCount() - first) / 2;
+        String error = null;
+        if (pairs == 0 || (command.getArgCount() - first) % 2 != 0) {
+            error = "ERR syntax error";
+        } else if (nx && xx) {
+            error = "ERR XX and NX options at the same time are not compatible";
+        } else if ((gt && lt) || (nx && (gt || lt))) {
+            error = "ERR GT, LT, and/or NX options at the same time are not compatible";
+        } else if (incr && pairs > 1) {
+            error = "ERR INCR option supports a single increment-element pair";
+        }
+        if (error != null) {
+            if (!isSilent) out.writeError(error);
+            return;
+        }
+        double[] scores = new double[pairs];
+        for (int i = 0; i < pairs; i++) {
+            Double score = KeyValueStore.parseScore(command.getArgBytes(first + 2 * i));
+            if (score == null) {
+                if (!isSilent) out.writeError("ERR value is not a valid float");
+                return;
+            }
+            scores[i] = score;
+        }
+        boolean onlyNew = nx, onlyExisting = xx, onlyGreater = gt, onlyLess = lt, isIncr = incr;
+        int firstPair = first;
+        // [added, changed], and the INCR result
+        long[] counts = new long[2];
+        Double[] incremented = new Double[1];
+        try {
+            KeyValueStore.getInstance().mutate(command.getKey(0), SortedSet.class, SortedSet::new, set -> {
+                for (int i = 0; i < pairs; i++) {
+                    byte[] member = command.getArgBytes(firstPair + 2 * i + 1);
+                    Double current = set.score(member);
+                    if (current == null ? onlyExisting : onlyNew) {
+                        continue;
+                    }
+                    double score = isIncr && current != null ? current + scores[i] : scores[i];
+                    if (Double.isNaN(score)) {
+                        throw new IllegalArgumentException("ERR resulting score is not a number (NaN)");
+                    }
+                    if (current != null && ((onlyGreater && score <= current) || (onlyLess && score >= current))) {
+                        continue;
+                    }
+                    if (set.put(member, score)) {
+                        counts[0]++;
+                    } else if (score != current) {
+                        counts[1]++;
+                    }
+                    incremented[0] = score;
+                }
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        if (isSilent) return;
+        if (incr) {
+            if (incremented[0] == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(KeyValueStore.formatDouble(incremented[0]));
+            }
+        } else {
+            out.writeInteger(ch ? counts[0] + counts[1] : counts[0]);
+        }
+    }
+
+    // ZREM key member [member ...]: replies with how many members were removed.
+    private static void executeZrem(Command command, RespEncoder out, boolean isSilent) {
+        try {
+            long removed = KeyValueStore.getInstance().mutate(command.getKey(0), SortedSet.class, null, set -> {
+                long count = 0;
+                for (int i = 1; set != null && i < command.getArgCount(); i++) {
+                    if (set.remove(command.getArgBytes(i))) {
+                        count++;
+                    }
+                }
+                return count;
+            });
+            if (!isSilent) {
+                out.writeInteger(removed);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // ZSCORE key member
+    private static void executeZscore(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        Double score;
+        try {
+            score = KeyValueStore.getInstance().read(command.getKey(0), SortedSet.class,
+                    set -> set == null ? null : set.score(command.getArgBytes(1)));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        if (score == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(KeyValueStore.formatDouble(score));
+        }
+    }
+
+    // ZRANK key member: the 0-based rank by ascending score, or nil.
+    private static void executeZrank(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        // the arity leaves room for Redis's WITHSCORE, which is not supported here
+        if (command.getArgCount() != 2) {
+            out.writeError("ERR wrong number of arguments for 'zrank' command");
+            return;
+        }
+        long rank;
+        try {
+            rank = KeyValueStore.getInstance().read(command.getKey(0), SortedSet.class,
+                    set -> set == null ? -1 : set.rank(command.getArgBytes(1)));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        if (rank < 0) {
+            out.writeNullBulkString();
+        } else {
+            out.writeInteger(rank);
+        }
+    }
+
+    // ZRANGE key start stop [BYSCORE | BYLEX] [REV] [LIMIT offset count] [WITHSCORES]
+    // Every form is turned into a range of ascending ranks, found in O(log n) on the skiplist.
+    private static void executeZrange(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        boolean byScore = false, byLex = false, rev = false, withScores = false, hasLimit = false;
+        long offset = 0, count = -1;
+        for (int i = 3; i < command.getArgCount(); i++) {
+            if (command.argEqualsIgnoreCase(i, "BYSCORE")) {
+                byScore = true;
+            } else if (command.argEqualsIgnoreCase(i, "BYLEX")) {
+                byLex = true;
+            } else if (command.argEqualsIgnoreCase(i, "REV")) {
+                rev = true;
+            } else if (command.argEqualsIgnoreCase(i, "WITHSCORES")) {
+                withScores = true;
+            } else if (command.argEqualsIgnoreCase(i, "LIMIT") && i + 2 < command.getArgCount()) {
+                try {
+                    offset = command.argToLong(i + 1);
+                    count = command.argToLong(i + 2);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR value is not an integer or out of range");
+                    return;
+                }
+                hasLimit = true;
+                i += 2;
+            } else {
+                out.writeError("ERR syntax error");
+                return;
+            }
+        }
+        if (byScore && byLex) {
+            out.writeError("ERR syntax error");
+            return;
+        }
+        if (hasLimit && !byScore && !byLex) {
+            out.writeError("ERR syntax error, LIMIT is only supported in combination with either BYSCORE or BYLEX");
+            return;
+        }
+        if (withScores && byLex) {
+            out.writeError("ERR syntax error, WITHSCORES not supported in combination with BYLEX");
+            return;
+        }
+        // with REV the first bound is the high one
+        byte[] low = command.getArgBytes(rev && (byScore || byLex) ? 2 : 1);
+        byte[] high = command.getArgBytes(rev && (byScore || byLex) ? 1 : 2);
+        ZRangeBounds bounds;
+        if (byScore) {
+            bounds = ZRangeBounds.byScore(low, high);
+            if (bounds == null) {
+                out.writeError("ERR min or max is not a float");
+                return;
+            }
+        } else if (byLex) {
+            bounds = ZRangeBounds.byLex(low, high);
+            if (bounds == null) {
+                out.writeError("ERR min or max not valid string range item");
+                return;
+            }
+        } else {
+            try {
+                bounds = ZRangeBounds.byRank(command.argToLong(1), command.argToLong(2), rev);
+            } catch (NumberFormatException e) {
+                out.writeError("ERR value is not an integer or out of range");
+                return;
+            }
+        }
+        boolean reverse = rev;
+        long skip = offset, limit = count;
+        List<byte[]> members = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        try {
+            KeyValueStore.getInstance().read(command.getKey(0), SortedSet.class, set -> {
+                if (set == null) {
+                    return null;
+                }
+                long[] ranks = bounds.resolve(set);
+                long start = ranks[0];
+                long end = ranks[1];
+                // LIMIT counts from the end the range is walked from
+                if (skip < 0) {
+                    return null;
+                }
+                if (reverse) {
+                    end -= skip;
+                    if (limit >= 0) {
+                        start = Math.max(start, end - limit + 1);
+                    }
+                } else {
+                    start += skip;
+                    if (limit >= 0) {
+                        end = Math.min(end, start + limit - 1);
+                    }
+                }
+                if (start <= end) {
+                    set.range(start, end, reverse, (member, score) -> {
+                        members.add(member);
+                        scores.add(score);
+                    });
+                }
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        out.writeArrayHeader(withScores ? members.size() * 2 : members.size());
+        for (int i = 0; i < members.size(); i++) {
+            out.writeBulkString(members.get(i));
+            if (withScores) {
+                out.writeBulkString(KeyValueStore.formatDouble(scores.get(i)));
+            }
+        }
+    }
+
+    // HSET key field value [field value ...]: replies with how many fields were added.
+    private static void executeHset(Command command, RespEncoder out, boolean isSilent) {
+        // the arity only says at least one field and value; a field without its value is still a count error
+        if (command.getArgCount() % 2 == 0) {
+            if (!isSilent) out.writeError("ERR wrong number of arguments for 'hset' command");
+            return;
+        }
+        try {
+            long added = KeyValueStore.getInstance().mutate(command.getKey(0), Hash.class, Hash::new, hash -> {
+                long count = 0;
+                for (int i = 1; i < command.getArgCount(); i += 2) {
+                    if (hash.put(command.getArgBytes(i), command.getArgBytes(i + 1))) {
+                        count++;
+                    }
+                }
+                return count;
+            });
+            if (!isSilent) {
+                out.writeInteger(added);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // HGET key field
+    private static void executeHget(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        byte[] value;
+        try {
+            value = KeyValueStore.getInstance().read(command.getKey(0), Hash.class,
+                    hash -> hash == null ? null : hash.get(command.getArgBytes(1)));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        if (value == null) {
+            out.writeNullBulkString();
+        } else {
+            out.writeBulkString(value);
+        }
+    }
+
+    // HMGET key field [field ...]: nil for each missing field.
+    private static void executeHmget(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        byte[][] values = new byte[command.getArgCount() - 1][];
+        try {
+            KeyValueStore.getInstance().read(command.getKey(0), Hash.class, hash -> {
+                for (int i = 0; hash != null && i < values.length; i++) {
+                    values[i] = hash.get(command.getArgBytes(i + 1));
+                }
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        out.writeArrayHeader(values.length);
+        for (byte[] value : values) {
+            if (value == null) {
+                out.writeNullBulkString();
+            } else {
+                out.writeBulkString(value);
+            }
+        }
+    }
+
+    // HDEL key field [field ...]: replies with how many fields were removed.
+    private static void executeHdel(Command command, RespEncoder out, boolean isSilent) {
+        try {
+            long removed = KeyValueStore.getInstance().mutate(command.getKey(0), Hash.class, null, hash -> {
+                long count = 0;
+                for (int i = 1; hash != null && i < command.getArgCount(); i++) {
+                    if (hash.remove(command.getArgBytes(i))) {
+                        count++;
+                    }
+                }
+                return count;
+            });
+            if (!isSilent) {
+                out.writeInteger(removed);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // HGETALL key: fields and values, alternating.
+    private static void executeHgetall(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        List<byte[]> fields;
+        try {
+            fields = KeyValueStore.getInstance().read(command.getKey(0), Hash.class, hash -> {
+                List<byte[]> all = new ArrayList<>(hash == null ? 0 : hash.size() * 2);
+                if (hash != null) {
+                    hash.forEach((field, value) -> {
+                        all.add(field);
+                        all.add(value);
+                    });
+                }
+                return all;
+            });
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        writeBulkStrings(fields, out);
+    }
+
+    // HINCRBY key field increment: a missing field counts as 0. Replies with the new value.
+    private static void executeHincrby(Command command, RespEncoder out, boolean isSilent) {
+        long delta;
+        try {
+            delta = command.argToLong(2);
+        } catch (NumberFormatException e) {
+            if (!isSilent) out.writeError("ERR value is not an integer or out of range");
+            return;
+        }
+        byte[] field = command.getArgBytes(1);
+        try {
+            long value = KeyValueStore.getInstance().mutate(command.getKey(0), Hash.class, Hash::new, hash -> {
+                byte[] current = hash.get(field);
+                long parsed = 0;
+                if (current != null) {
+                    Long canonical = IntValue.parseCanonical(current);
+                    if (canonical == null) {
+                        throw new IllegalArgumentException("ERR hash value is not an integer");
+                    }
+                    parsed = canonical;
+                }
+                long result = parsed + delta;
+                if (((parsed ^ result) & (delta ^ result)) < 0) {
+                    throw new IllegalArgumentException("ERR increment or decrement would overflow");
+                }
+                hash.put(field, Long.toString(result).getBytes(StandardCharsets.US_ASCII));
+                return result;
+            });
+            if (!isSilent) {
+                out.writeInteger(value);
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+        }
+    }
+
+    // HSCAN key cursor [MATCH pattern] [COUNT count] [NOVALUES]
+    private static void executeHscan(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        long cursor;
+        try {
+            cursor = command.argToLong(1);
+        } catch (NumberFormatException e) {
+            cursor = -1;
+        }
+        if (cursor < 0) {
+            out.writeError("ERR invalid cursor");
+            return;
+        }
+        ScanOptions options = parseScanOptions(command, 2, true, out);
+        if (options == null) {
+            return;
+        }
+        long from = cursor;
+        List<byte[]> fields = new ArrayList<>();
+        long nextCursor;
+        try {
+            nextCursor = KeyValueStore.getInstance().read(command.getKey(0), Hash.class, hash -> hash == null ? 0L
+                    : hash.scan(from, options.count(), options.pattern(), options.withValues(), fields));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        out.writeArrayHeader(2);
+        out.writeBulkString(Long.toString(nextCursor));
+        writeBulkStrings(fields, out);
+    }
+
+    // XADD key [NOMKSTREAM] [MAXLEN [=|~] threshold] <* | ms-* | ms-seq | ms> field value [field value ...]
+    // Replies with the new entry's ID, or nil with NOMKSTREAM when the key does not exist. Propagated with the
+    // ID it got and the length a trim left, so replicas and the append only file hold the same entries.
+    private static void executeXadd(Command command, RespEncoder out, boolean isSilent) {
+        int argCount = command.getArgCount();
+        boolean noMkStream = false;
+        long maxLength = -1;
+        boolean approximately = false;
+        int index = 1;
+        try {
+            while (index < argCount) {
+                if (command.argEqualsIgnoreCase(index, "NOMKSTREAM")) {
+                    noMkStream = true;
+                    index++;
+                } else if (command.argEqualsIgnoreCase(index, "MAXLEN")) {
+                    approximately = index + 1 < argCount && command.argEqualsIgnoreCase(index + 1, "~");
+                    if (approximately || (index + 1 < argCount && command.argEqualsIgnoreCase(index + 1, "="))) {
+                        index++;
+                    }
+                    maxLength = parseMaxLength(command, index + 1);
+                    index += 2;
+                } else {
+                    break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        // the options before the ID have variable length, so only now is the count of field arguments known
+        int fieldArgs = argCount - index - 1;
+        if (fieldArgs < 2 || fieldArgs % 2 != 0) {
+            if (!isSilent) out.writeError("ERR wrong number of arguments for 'xadd' command");
+            return;
+        }
+        // an ID of "*" generates both parts, "ms-*" the sequence number only; "ms" alone is the explicit ms-0
+        byte[] idArg = command.getArgBytes(index);
+        boolean autoId = idArg.length == 1 && idArg[0] == '*';
+        boolean autoSeq = false;
+        StreamId explicitId = null;
+        if (!autoId) {
+            int dash = StreamId.indexOfDash(idArg);
+            autoSeq = dash >= 0 && dash == idArg.length - 2 && idArg[idArg.length - 1] == '*';
+            explicitId = autoSeq ? parseMillisOnly(idArg, dash) : StreamId.parse(idArg, 0);
+            if (explicitId == null) {
+                if (!isSilent) out.writeError("ERR Invalid stream ID specified as stream command argument");
+                return;
+            }
+            if (!autoSeq && explicitId.equals(StreamId.MIN)) {
+                if (!isSilent) out.writeError("ERR The ID specified in XADD must be greater than 0-0");
+                return;
+            }
+        }
+        byte[][] fields = new byte[fieldArgs][];
+        for (int i = 0; i < fieldArgs; i++) {
+            fields[i] = command.getArgBytes(index + 1 + i);
+        }
+        Key key = command.getKey(0);
+        boolean isAutoSeq = autoSeq, isApproximate = approximately;
+        long trimTo = maxLength;
+        StreamId requested = explicitId;
+        StreamId id;
+        try {
+            id = KeyValueStore.getInstance().mutate(key, Stream.class, noMkStream ? null : Stream::new, stream -> {
+                if (stream == null) {
+                    return null;
+                }
+                StreamId last = stream.lastId();
+                StreamId next;
+                if (autoId) {
+                    long now = System.currentTimeMillis();
+                    next = Long.compareUnsigned(now, last.ms()) > 0 ? new StreamId(now, 0) : last.next();
+                    if (next == null) {
+                        throw new IllegalArgumentException("ERR The stream has exhausted the last possible ID, unable to add more items");
+                    }
+                } else if (isAutoSeq) {
+                    next = requested.ms() == last.ms() ? last.next() : new StreamId(requested.ms(), 0);
+                    if (next == null || next.ms() != requested.ms() || next.compareTo(last) <= 0) {
+                        throw new IllegalArgumentException("ERR The ID specified in XADD is equal or smaller than the target stream top item");
+                    }
+                } else {
+                    if (requested.compareTo(last) <= 0) {
+                        throw new IllegalArgumentException("ERR The ID specified in XADD is equal or smaller than the target stream top item");
+                    }
+                    next = requested;
+                }
+                stream.append(next, fields);
+                if (trimTo >= 0) {
+                    stream.trimToLength(trimTo, isApproximate);
+                }
+                // propagated with the ID it got and the exact length the trim left, so replicas end up identical
+                List<byte[]> args = new ArrayList<>(fieldArgs + 6);
+                args.add("XADD".getBytes(StandardCharsets.US_ASCII));
+                args.add(key.bytes());
+                if (trimTo >= 0) {
+                    args.add("MAXLEN".getBytes(StandardCharsets.US_ASCII));
+                    args.add("=".getBytes(StandardCharsets.US_ASCII));
+                    args.add(Long.toString(stream.length()).getBytes(StandardCharsets.US_ASCII));
+                }
+                args.add(next.toBytes());
+                args.addAll(Arrays.asList(fields));
+                propagateAs(new Command(args));
+                BlockingStreams.signal(key, stream);
+                return next;
+            });
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        if (isSilent) return;
+        if (id == null) {
+            out.writeNullBulkString();
+            return;
+        }
+        out.writeBulkString(id.toBytes());
+    }
+
+    // "ms-*" as the ID ms-0; null if ms is malformed.
+    private static StreamId parseMillisOnly(byte[] idArg, int dash) {
+        Long ms = StreamId.parseUnsigned(idArg, 0, dash);
+        return ms != null ? new StreamId(ms, 0) : null;
+    }
+
+    // The MAXLEN threshold at argument index.
+    private static long parseMaxLength(Command command, int index) {
+        if (index >= command.getArgCount()) {
+            throw new IllegalArgumentException("ERR syntax error");
+        }
+        long maxLength;
+        try {
+            maxLength = command.argToLong(index);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("ERR value is not an integer or out of range");
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("ERR The MAXLEN argument must be >= 0.");
+        }
+        return maxLength;
+    }
+
+    // XRANGE key start end [COUNT count], XREVRANGE key end start [COUNT count]. "-" and "+" are the smallest and
+    // largest IDs, "ms" alone covers every sequence number, and a "(" prefix excludes the bound itself.
+    private static void executeXrange(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        boolean reverse = command.getCommand() == CommandName.XREVRANGE;
+        int argCount = command.getArgCount();
+        long count = -1;
+        if (argCount > 3) {
+            if (argCount != 5 || !command.argEqualsIgnoreCase(3, "COUNT")) {
+                out.writeError("ERR syntax error");
+                return;
+            }
+            try {
+                count = Math.max(0, command.argToLong(4));
+            } catch (NumberFormatException e) {
+                out.writeError("ERR value is not an integer or out of range");
+                return;
+            }
+        }
+        StreamId from;
+        StreamId to;
+        try {
+            from = parseRangeBound(command.getArgBytes(reverse ? 2 : 1), true);
+            to = parseRangeBound(command.getArgBytes(reverse ? 1 : 2), false);
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        long limit = count;
+        List<Stream.StreamEntry> entries;
+        try {
+            entries = KeyValueStore.getInstance().read(command.getKey(0), Stream.class,
+                    stream -> stream == null ? List.<Stream.StreamEntry>of() : stream.range(from, to, limit, reverse));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+            return;
+        }
+        writeStreamEntries(entries, out);
+    }
+
+    private static StreamId parseRangeBound(byte[] arg, boolean isStart) {
+        if (arg.length == 1 && arg[0] == '-') {
+            return StreamId.MIN;
+        }
+        if (arg.length == 1 && arg[0] == '+') {
+            return StreamId.MAX;
+        }
+        boolean exclusive = arg.length > 0 && arg[0] == '(';
+        StreamId id = StreamId.parse(exclusive ? Arrays.copyOfRange(arg, 1, arg.length) : arg, isStart ? 0 : -1L);
+        if (id == null) {
+            throw new IllegalArgumentException("ERR Invalid stream ID specified as stream command argument");
+        }
+        if (exclusive) {
+            id = isStart ? id.next() : id.previous();
+            if (id == null) {
+                throw new IllegalArgumentException(isStart ? "ERR invalid start ID for the interval" : "ERR invalid end ID for the interval");
+            }
+        }
+        return id;
+    }
+
+    // XLEN key
+    private static void executeXlen(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        try {
+            out.writeInteger(KeyValueStore.getInstance().read(command.getKey(0), Stream.class,
+                    stream -> stream == null ? 0 : stream.length()));
+        } catch (IllegalArgumentException e) {
+            out.writeError(e.getMessage());
+        }
+    }
+
+    // XTRIM key MAXLEN [=|~] threshold: replies with how many entries were removed. With "~" only whole blocks
+    // go, so the result is propagated as the exact length it left.
+    private static void executeXtrim(Command command, RespEncoder out, boolean isSilent) {
+        int argCount = command.getArgCount();
+        if (!command.argEqualsIgnoreCase(1, "MAXLEN")) {
+            if (!isSilent) out.writeError("ERR syntax error");
+            return;
+        }
+        boolean approximately = command.argEqualsIgnoreCase(2, "~");
+        int thresholdIndex = approximately || command.argEqualsIgnoreCase(2, "=") ? 3 : 2;
+        long maxLength;
+        try {
+            maxLength = parseMaxLength(command, thresholdIndex);
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        if (argCount != thresholdIndex + 1) {
+            if (!isSilent) out.writeError("ERR syntax error");
+            return;
+        }
+        Key key = command.getKey(0);
+        long removed;
+        try {
+            removed = KeyValueStore.getInstance().mutate(key, Stream.class, null, stream -> {
+                if (stream == null) {
+                    return 0L;
+                }
+                long trimmed = stream.trimToLength(maxLength, approximately);
+                // an approximate trim depends on block boundaries; the exact length left replays the same anywhere
+                propagateAs(new Command(List.of("XTRIM".getBytes(StandardCharsets.US_ASCII), key.bytes(),
+                        "MAXLEN".getBytes(StandardCharsets.US_ASCII), "=".getBytes(StandardCharsets.US_ASCII),
+                        Long.toString(stream.length()).getBytes(StandardCharsets.US_ASCII))));
+                return trimmed;
+            });
+        } catch (IllegalArgumentException e) {
+            if (!isSilent) out.writeError(e.getMessage());
+            return;
+        }
+        if (isSilent) return;
+        out.writeInteger(removed);
+    }
+
+    // XREAD [COUNT count] [BLOCK milliseconds] STREAMS key [key ...] id [id ...]: the entries after each ID, "$"
+    // meaning the stream's last ID. With BLOCK and nothing to read yet, parks the caller until an XADD or the
+    // timeout (0 waits forever). Returns null once the reply is written.
+    public static CompletableFuture<DeferredReply> executeXread(Command command, RespEncoder out) {
+        int argCount = command.getArgCount();
+        long count = -1;
+        long timeoutMillis = -1;
+        int index = 0;
+        for (; index < argCount && !command.argEqualsIgnoreCase(index, "STREAMS"); index += 2) {
+            if (index + 1 >= argCount) {
+                out.writeError("ERR syntax error");
+                return null;
+            }
+            if (command.argEqualsIgnoreCase(index, "COUNT")) {
+                try {
+                    long parsed = command.argToLong(index + 1);
+                    count = parsed > 0 ? parsed : -1;
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR value is not an integer or out of range");
+                    return null;
+                }
+            } else if (command.argEqualsIgnoreCase(index, "BLOCK")) {
+                try {
+                    timeoutMillis = command.argToLong(index + 1);
+                } catch (NumberFormatException e) {
+                    out.writeError("ERR timeout is not an integer or out of range");
+                    return null;
+                }
+                if (timeoutMillis < 0) {
+                    out.writeError("ERR timeout is negative");
+                    return null;
+                }
+            } else {
+                out.writeError("ERR syntax error");
+                return null;
+            }
+        }
+        // the options before STREAMS have variable length, so only now is the count of keys and IDs known
+        int streamArgs = argCount - index - 1;
+        if (index >= argCount || streamArgs == 0) {
+            out.writeError(index >= argCount ? "ERR syntax error" : "ERR wrong number of arguments for 'xread' command");
+            return null;
+        }
+        if (streamArgs % 2 != 0) {
+            out.writeError("ERR Unbalanced 'xread' list of streams: for each stream key an ID or '$' must be specified.");
+            return null;
+        }
+        int streams = streamArgs / 2;
+        List<Key> keys = new ArrayList<>(streams);
+        List<StreamId> after = new ArrayList<>(streams);
+        for (int i = 0; i < streams; i++) {
+            keys.add(command.getKey(index + 1 + i));
+            byte[] idArg = command.getArgBytes(index + 1 + streams + i);
+            // "$" is resolved below, against the stream as it is read
+            StreamId id = idArg.length == 1 && idArg[0] == '$' ? null : StreamId.parse(idArg, 0);
+            if (id == null && !(idArg.length == 1 && idArg[0] == '$')) {
+                out.writeError("ERR Invalid stream ID specified as stream command argument");
+                return null;
+            }
+            after.add(id);
+        }
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        long limit = count;
+        List<Integer> found = new ArrayList<>();
+        List<List<Stream.StreamEntry>> results = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            int position = i;
+            List<Stream.StreamEntry> entries;
+            try {
+                entries = keyValueStore.read(keys.get(i), Stream.class, stream -> {
+                    if (after.get(position) == null) {
+                        after.set(position, stream == null ? StreamId.MIN : stream.lastId());
+                        return List.<Stream.StreamEntry>of();
+                    }
+                    StreamId from = after.get(position).next();
+                    return stream == null || from == null ? List.<Stream.StreamEntry>of() : stream.range(from, StreamId.MAX, limit, false);
+                });
+            } catch (IllegalArgumentException e) {
+                out.writeError(e.getMessage());
+                return null;
+            }
+            if (!entries.isEmpty()) {
+                found.add(i);
+                results.add(entries);
+            }
+        }
+        if (!found.isEmpty()) {
+            out.writeArrayHeader(found.size());
+            for (int i = 0; i < found.size(); i++) {
+                out.writeArrayHeader(2);
+                out.writeBulkString(keys.get(found.get(i)).bytes());
+                writeStreamEntries(results.get(i), out);
+            }
+            return null;
+        }
+        if (timeoutMillis < 0) {
+            out.writeRaw(RespEncoder.NULL_ARRAY);
+            return null;
+        }
+        return BlockingStreams.block(keys, after, count, timeoutMillis);
+    }
+
+    // Each entry as [id, [field, value, ...]].
+    static void writeStreamEntries(List<Stream.StreamEntry> entries, RespEncoder out) {
+        out.writeArrayHeader(entries.size());
+        for (Stream.StreamEntry entry : entries) {
+            out.writeArrayHeader(2);
+            out.writeBulkString(entry.id().toBytes());
+            writeBulkStrings(Arrays.asList(entry.fields()), out);
+        }
+    }
+
+    private static void writeBulkStrings(List<byte[]> values, RespEncoder out) {
+        out.writeArrayHeader(values.size());
+        for (byte[] value : values) {
+            out.writeBulkString(value);
+        }
+    }
+
+    private static List<Key> keysOf(Command command) {
+        List<Key> keys = new ArrayList<>(command.getArgCount());
+        for (int i = 0; i < command.getArgCount(); i++) {
+            keys.add(command.getKey(i));
+        }
+        return keys;
+    }
+
+    // COMMAND [COUNT | INFO [name ...]]: the command table, all of it or the named commands (nil for unknown).
+    private static void executeCommand(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        CommandName[] all = CommandName.values();
+        if (command.getArgCount() == 0) {
+            out.writeArrayHeader(all.length);
+            for (CommandName name : all) {
+                name.writeInfo(out);
+            }
+        } else if (command.argEqualsIgnoreCase(0, "COUNT") && command.getArgCount() == 1) {
+            out.writeInteger(all.length);
+        } else if (command.argEqualsIgnoreCase(0, "INFO")) {
+            if (command.getArgCount() == 1) {
+                out.writeArrayHeader(all.length);
+                for (CommandName name : all) {
+                    name.writeInfo(out);
+                }
+                return;
+            }
+            out.writeArrayHeader(command.getArgCount() - 1);
+            for (int i = 1; i < command.getArgCount(); i++) {
+                CommandName name = CommandName.lookup(command.buffer(), command.argOffset(i), command.argLength(i));
+                if (name != null) {
+                    name.writeInfo(out);
+                } else {
+                    out.writeRaw(RespEncoder.NULL_ARRAY);
+                }
+            }
+        } else {
+            out.writeError("ERR unknown subcommand '" + command.getArgs()[0] + "'. Try COMMAND HELP.");
+        }
+    }
+
+    private static void executeEcho(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        out.writeBulkString(command.buffer(), command.argOffset(0), command.argLength(0));
+    }
+
+    private static void executePing(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        out.writeRaw(RespEncoder.PONG);
+    }
+
+    private static void executeType(Command command, RespEncoder out, boolean isSilent) {
+        if (isSilent) return;
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Object value = keyValueStore.get(command.getKey(0));
+        if (value instanceof MutableValue mutable) {
+            out.writeSimpleString(mutable.typeName());
+        } else if (value != null) {
+            out.writeSimpleString("string");
+        } else {
+            out.writeSimpleString("none");
+        }
+    }
+
+    // WAIT numreplicas timeout: blocks until numreplicas replicas have acknowledged every write made so far.
+    // Returns null when it could answer straight away, otherwise a future completed by an ack or the timeout.
+    public static CompletableFuture<DeferredReply> executeWait(Command command, RespEncoder out) {
+        long numReplicas;
+        long timeout;
+        try {
+            numReplicas = command.argToLong(0);
+            timeout = command.argToLong(1);
+        } catch (NumberFormatException e) {
+            out.writeError("ERR value is not an integer or out of range");
+            return null;
+        }
+        if (timeout < 0) {
+            out.writeError("ERR timeout is negative");
+            return null;
+        }
+        // the caller's writes all precede this point in the stream
+        long offset = lastWriteOffset;
+        int acked = ReplicaAckWaiters.countAcked(offset);
+        if (acked >= numReplicas) {
+            out.writeInteger(acked);
+            return null;
+        }
+        requestAcks(offset);
+        return ReplicaAckWaiters.await(offset, (int) Math.min(numReplicas, Integer.MAX_VALUE), timeout);
+    }
+
+    // Sends REPLCONF GETACK down the replication stream, unless one sent after offset is already on its way.
+    // It travels like any write, so replica offsets stay in step with ours.
+    private static void requestAcks(long offset) {
+        long previous = lastGetAckOffset.get();
+        if (previous >= offset || !lastGetAckOffset.compareAndSet(previous, Main.masterReplOffset)) {
+            return;
         }
+        appendToReplicationStream(new Command("REPLCONF", new String[]{"GETACK", "*"}).wireBytes(), false);
     }
 }
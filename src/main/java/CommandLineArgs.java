@@ -5,6 +5,7 @@ import java.util.ArrayList;
 public class CommandLineArgs {
 
     private static final int DEFAULT_PORT = 6379;
+    private static final int DEFAULT_REPL_BACKLOG_SIZE = 1024 * 1024;
 
     @Parameter
     private List<String> parameters = new ArrayList<>();
@@ -20,4 +21,40 @@ public class CommandLineArgs {
 
     @Parameter(names = {"--replicaof", "-r"}, description = "Host and port of the master")
     public String replicaof = null;
+
+    @Parameter(names = {"--io-threads"}, description = "Number of I/O event loop threads")
+    public int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--io-mode"}, description = "Connection handling: nio (event loops) or virtual (one virtual thread per connection)")
+    public String ioMode = "nio";
+
+    @Parameter(names = {"--repl-backlog-size"}, description = "Bytes of replication stream kept for partial resynchronization")
+    public int replBacklogSize = DEFAULT_REPL_BACKLOG_SIZE;
+
+    @Parameter(names = {"--replica-output-buffer-limit"}, description = "Replica output buffer limit as \"<hard> <soft> <seconds>\"; a replica is disconnected above the hard limit or when above the soft limit for that long")
+    public String replicaOutputBufferLimit = "256mb 64mb 60";
+
+    @Parameter(names = {"--appendonly"}, description = "Log every write command to the append only file: yes or no")
+    public String appendonly = "no";
+
+    @Parameter(names = {"--appendfilename"}, description = "Name of the append only file, inside --dir")
+    public String appendfilename = "appendonly.aof";
+
+    @Parameter(names = {"--appendfsync"}, description = "When the append only file is fsynced: always, everysec or no")
+    public String appendfsync = "everysec";
+
+    @Parameter(names = {"--maxmemory"}, description = "Memory limit for the keyspace, e.g. 100mb; 0 means no limit")
+    public String maxmemory = "0";
+
+    @Parameter(names = {"--maxmemory-policy"}, description = "What to do at the memory limit: noeviction, allkeys-lru, allkeys-lfu or volatile-ttl")
+    public String maxmemoryPolicy = "noeviction";
+
+    @Parameter(names = {"--maxmemory-samples"}, description = "Keys sampled per eviction round")
+    public int maxmemorySamples = 5;
+
+    @Parameter(names = {"--hash-max-listpack-entries"}, description = "Most fields a hash keeps in its packed encoding")
+    public int hashMaxListpackEntries = 128;
+
+    @Parameter(names = {"--hash-max-listpack-value"}, description = "Longest field or value, in bytes, a hash keeps in its packed encoding")
+    public int hashMaxListpackValue = 64;
 }
@@ -1,32 +1,184 @@
+import java.nio.charset.StandardCharsets;
+
+// The command table: every command the server knows with its arity, flags and key positions, as Redis's
+// COMMAND INFO reports them. Dispatch, argument count checks, propagation and the maxmemory check all read it.
+// Arity counts the name: N means exactly N arguments, -N at least N.
+// Key positions are first key, last key (negative counts from the end) and step; 0 0 0 when the command takes
+// no keys or finds them by parsing its arguments (XREAD's STREAMS).
 public enum CommandName {
-    PING("PING"),
-    ECHO("ECHO"),
-    GET("GET"),
-    SET("SET"),
-    CONFIG("CONFIG"),
-    KEYS("KEYS"),
-    INFO("INFO"),
-    REPLCONF("REPLCONF"),
-    PSYNC("PSYNC"),
-    WAIT("WAIT"),
-    TYPE("TYPE");
+    PING(-1, 0, 0, 0, 0),
+    ECHO(2, 0, 0, 0, 0),
+    GET(2, CommandName.READONLY, 1, 1, 1),
+    SET(-3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    MSET(-3, CommandName.WRITE | CommandName.DENYOOM, 1, -1, 2),
+    MGET(-2, CommandName.READONLY, 1, -1, 1),
+    DEL(-2, CommandName.WRITE, 1, -1, 1),
+    RENAME(3, CommandName.WRITE | CommandName.DENYOOM, 1, 2, 1),
+    INCR(2, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    DECR(2, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    INCRBY(3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    DECRBY(3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    INCRBYFLOAT(3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    PEXPIREAT(-3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    LPUSH(-3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    RPUSH(-3, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    LPOP(-2, CommandName.WRITE, 1, 1, 1),
+    RPOP(-2, CommandName.WRITE, 1, 1, 1),
+    // propagated as the pop they end up making, never as themselves
+    BLPOP(-3, CommandName.WRITE | CommandName.BLOCKING, 1, -2, 1),
+    BRPOP(-3, CommandName.WRITE | CommandName.BLOCKING, 1, -2, 1),
+    LRANGE(4, CommandName.READONLY, 1, 1, 1),
+    LLEN(2, CommandName.READONLY, 1, 1, 1),
+    LINDEX(3, CommandName.READONLY, 1, 1, 1),
+    ZADD(-4, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    ZINCRBY(4, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    ZREM(-3, CommandName.WRITE, 1, 1, 1),
+    ZSCORE(3, CommandName.READONLY, 1, 1, 1),
+    ZRANK(-3, CommandName.READONLY, 1, 1, 1),
+    ZRANGE(-4, CommandName.READONLY, 1, 1, 1),
+    HSET(-4, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    HGET(3, CommandName.READONLY, 1, 1, 1),
+    HMGET(-3, CommandName.READONLY, 1, 1, 1),
+    HDEL(-3, CommandName.WRITE, 1, 1, 1),
+    HGETALL(2, CommandName.READONLY, 1, 1, 1),
+    HINCRBY(4, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    HSCAN(-3, CommandName.READONLY, 1, 1, 1),
+    XADD(-5, CommandName.WRITE | CommandName.DENYOOM, 1, 1, 1),
+    XRANGE(-4, CommandName.READONLY, 1, 1, 1),
+    XREVRANGE(-4, CommandName.READONLY, 1, 1, 1),
+    XLEN(2, CommandName.READONLY, 1, 1, 1),
+    XTRIM(-4, CommandName.WRITE, 1, 1, 1),
+    XREAD(-4, CommandName.READONLY | CommandName.BLOCKING, 0, 0, 0),
+    CONFIG(-2, CommandName.ADMIN, 0, 0, 0),
+    KEYS(2, CommandName.READONLY, 0, 0, 0),
+    INFO(-1, 0, 0, 0, 0),
+    REPLCONF(-1, CommandName.ADMIN, 0, 0, 0),
+    PSYNC(-3, CommandName.ADMIN, 0, 0, 0),
+    WAIT(3, CommandName.BLOCKING, 0, 0, 0),
+    TYPE(2, CommandName.READONLY, 1, 1, 1),
+    SCAN(-2, CommandName.READONLY, 0, 0, 0),
+    SAVE(1, CommandName.ADMIN, 0, 0, 0),
+    BGSAVE(-1, CommandName.ADMIN, 0, 0, 0),
+    LASTSAVE(1, 0, 0, 0, 0),
+    BGREWRITEAOF(1, CommandName.ADMIN, 0, 0, 0),
+    COMMAND(-1, 0, 0, 0, 0);
+
+    // changes the keyspace: runs under the write gate, is propagated to replicas and the append only file
+    public static final int WRITE = 1;
+    public static final int READONLY = 1 << 1;
+    // may use more memory: refused over maxmemory once eviction cannot make room
+    public static final int DENYOOM = 1 << 2;
+    public static final int ADMIN = 1 << 3;
+    // may park the client until something happens
+    public static final int BLOCKING = 1 << 4;
+    private static final String[] FLAG_NAMES = {"write", "readonly", "denyoom", "admin", "blocking"};
 
-    private String name;
+    private static final CommandName[] table;
+    private static final int tableMask;
+    private static final int multiplier;
 
-    CommandName(String name) {
-        this.name = name;
+    // Builds a perfect hash of the names: the smallest table, and the first multiplier for it, that gives every
+    // command a slot of its own, so a lookup hashes the name once and compares it with a single candidate.
+    static {
+        CommandName[] values = values();
+        int size = Integer.highestOneBit(values.length * 2 - 1) << 1;
+        CommandName[] candidate = null;
+        int found = 0;
+        search:
+        while (true) {
+            for (int m = 31; m < 1 << 16; m += 2) {
+                candidate = new CommandName[size];
+                boolean collides = false;
+                for (CommandName command : values) {
+                    int slot = hash(command.lowerCaseName, 0, command.lowerCaseName.length, m) & (size - 1);
+                    if (candidate[slot] != null) {
+                        collides = true;
+                        break;
+                    }
+                    candidate[slot] = command;
+                }
+                if (!collides) {
+                    found = m;
+                    break search;
+                }
+            }
+            size *= 2;
+        }
+        table = candidate;
+        tableMask = size - 1;
+        multiplier = found;
+    }
+
+    private final int arity;
+    private final int flags;
+    private final int firstKey;
+    private final int lastKey;
+    private final int keyStep;
+    private final byte[] lowerCaseName;
+
+    CommandName(int arity, int flags, int firstKey, int lastKey, int keyStep) {
+        this.arity = arity;
+        this.flags = flags;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.keyStep = keyStep;
+        this.lowerCaseName = name().toLowerCase().getBytes(StandardCharsets.US_ASCII);
     }
 
     public String getName() {
-        return name;
+        return name();
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean isWrite() {
+        return hasFlag(WRITE);
     }
 
-    public static CommandName fromName(String name) {
-        for (CommandName commandName : CommandName.values()) {
-            if (commandName.getName().equalsIgnoreCase(name)) {
-                return commandName;
+    // Whether argCount arguments, the name not included, satisfy the arity.
+    public boolean acceptsArgCount(int argCount) {
+        return arity >= 0 ? argCount + 1 == arity : argCount + 1 >= -arity;
+    }
+
+    // COMMAND INFO's entry: name, arity, flags, first key, last key, step.
+    public void writeInfo(RespEncoder out) {
+        out.writeArrayHeader(6);
+        out.writeBulkString(lowerCaseName);
+        out.writeInteger(arity);
+        out.writeArrayHeader(Integer.bitCount(flags));
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            if (hasFlag(1 << i)) {
+                out.writeSimpleString(FLAG_NAMES[i]);
+            }
+        }
+        out.writeInteger(firstKey);
+        out.writeInteger(lastKey);
+        out.writeInteger(keyStep);
+    }
+
+    // The command named by buffer[offset, offset + length) in any case, or null if there is none.
+    public static CommandName lookup(byte[] buffer, int offset, int length) {
+        CommandName command = table[hash(buffer, offset, length, multiplier) & tableMask];
+        if (command == null || command.lowerCaseName.length != length) {
+            return null;
+        }
+        byte[] name = command.lowerCaseName;
+        for (int i = 0; i < length; i++) {
+            // names are letters only, and a byte that folds to a lower case letter with 0x20 is that letter
+            if ((buffer[offset + i] | 0x20) != name[i]) {
+                return null;
             }
         }
-        return null;
+        return command;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length, int multiplier) {
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * multiplier + (buffer[i] | 0x20);
+        }
+        return hash ^ (hash >>> 15);
     }
 }
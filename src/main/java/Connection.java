@@ -0,0 +1,215 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A non-blocking client connection owned by a single EventLoop.
+public final class Connection {
+    private static final int MAX_GATHER = 64;
+    // threads other than the event loop (replication streams) block above the high mark until the socket
+    // has drained below the low mark, so a slow peer cannot make the outbound queue grow without bound
+    private static final long HIGH_WATER_MARK = 4 * 1024 * 1024;
+    private static final long LOW_WATER_MARK = 1024 * 1024;
+    // input a client may pipeline behind a blocked command; past it reads pause until the command replies
+    private static final int SUSPENDED_INPUT_LIMIT = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop eventLoop;
+    private final RespEncoder out;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final RespParser parser = new RespParser();
+    private boolean suspended = false;
+    // the command the connection is suspended on, cancelled if the client goes away first
+    private volatile CompletableFuture<DeferredReply> blocked;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = drainLock.newCondition();
+    private final AtomicInteger waitingWriters = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public Connection(SocketChannel channel, SelectionKey key, EventLoop eventLoop) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.out = new RespEncoder(new ChannelOutputStream(this));
+    }
+
+    public void onReadable() throws IOException {
+        int read = parser.readFrom(channel);
+        if (read == -1) {
+            close();
+            return;
+        }
+        if (suspended && parser.bufferedBytes() > SUSPENDED_INPUT_LIMIT) {
+            // the client's TCP window now holds it back; a disconnect goes unnoticed until the command replies
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+        processInput();
+    }
+
+    public void onWritable() {
+        flushOutbound();
+    }
+
+    // Executes every complete command sitting in the read buffer, keeping any partial frame for the next read.
+    // Replies are gathered in the output stream and written once for the whole batch.
+    private void processInput() throws IOException {
+        Command command;
+        while (!suspended && (command = ClientHandler.nextCommand(parser, out)) != null) {
+            dispatch(command);
+        }
+        if (!suspended) {
+            AppendOnlyFile.awaitDurable();
+            out.flush();
+        }
+    }
+
+    private void dispatch(Command command) throws IOException {
+        CompletableFuture<DeferredReply> blocked = ClientHandler.handleCommand(command, out);
+        if (blocked == null) {
+            return;
+        }
+        // stop executing until the blocked command has replied so later commands keep their order; reads go on
+        // buffering, so a client that disconnects meanwhile is noticed and its command cancelled (a blocked
+        // BLPOP must not be handed an element nobody will receive).
+        // No thread waits for it, the reply is written here when the future completes.
+        AppendOnlyFile.awaitDurable();
+        out.flush();
+        suspended = true;
+        this.blocked = blocked;
+        blocked.whenComplete((reply, error) -> eventLoop.submit(() -> {
+            if (reply != null) {
+                reply.writeTo(out);
+            } else {
+                out.writeError("ERR " + error.getMessage());
+            }
+            resume();
+        }));
+    }
+
+    private void resume() {
+        suspended = false;
+        blocked = null;
+        if (!key.isValid()) {
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            processInput();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to read/write from client socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    // Queues bytes for the socket. Safe to call from any thread.
+    public void enqueue(ByteBuffer buffer) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        queuedBytes.addAndGet(buffer.remaining());
+        outbound.add(buffer);
+        eventLoop.execute(this::flushOutbound);
+        if (queuedBytes.get() > HIGH_WATER_MARK && !eventLoop.inEventLoop()) {
+            awaitDrained();
+        }
+    }
+
+    private void awaitDrained() throws IOException {
+        waitingWriters.incrementAndGet();
+        drainLock.lock();
+        try {
+            while (queuedBytes.get() > LOW_WATER_MARK && !closed) {
+                drained.await(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            drainLock.unlock();
+            waitingWriters.decrementAndGet();
+        }
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void signalDrained() {
+        if (waitingWriters.get() == 0 || (queuedBytes.get() > LOW_WATER_MARK && !closed)) {
+            return;
+        }
+        drainLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private void flushOutbound() {
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            while (!outbound.isEmpty()) {
+                // gathering write of everything queued, dropping the buffers the socket fully accepted
+                int count = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                channel.write(gather, 0, count);
+                for (int i = 0; i < count; i++) {
+                    if (gather[i].hasRemaining()) {
+                        Arrays.fill(gather, null);
+                        signalDrained();
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                    queuedBytes.addAndGet(-gather[i].limit());
+                    gather[i] = null;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            signalDrained();
+        } catch (IOException e) {
+            System.out.println("Failed to write to client socket: " + e.getMessage());
+            close();
+        }
+    }
+
+    // Safe to call from any thread.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        System.out.println("Closing client socket");
+        Replica.connectionClosed(out.sink());
+        CompletableFuture<DeferredReply> pending = blocked;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        signalDrained();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
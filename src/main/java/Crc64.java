@@ -0,0 +1,29 @@
+// CRC-64/Jones, the checksum Redis appends to RDB files (reflected, init 0, no final xor).
+public final class Crc64 {
+    private static final long POLY = 0x95AC9329AC4BC9B5L;
+    private static final long[] TABLE = new long[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            long crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private long crc = 0;
+
+    public void update(byte[] bytes, int offset, int length) {
+        long c = crc;
+        for (int i = offset; i < offset + length; i++) {
+            c = TABLE[(int) ((c ^ bytes[i]) & 0xFF)] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    public long getValue() {
+        return crc;
+    }
+}
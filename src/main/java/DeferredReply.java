@@ -0,0 +1,6 @@
+// The reply of a command that blocked (WAIT). The connection writes it on its own thread once the
+// command's future completes, so nothing else ever touches the connection's encoder.
+@FunctionalInterface
+public interface DeferredReply {
+    void writeTo(RespEncoder out);
+}
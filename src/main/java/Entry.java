@@ -0,0 +1,50 @@
+// A keyspace entry: the value plus the metadata stored next to it, such as the absolute expiry time.
+public class Entry {
+    static final long NO_EXPIRY = 0;
+
+    final Key key;
+    final Object value;
+    // absolute unix time in milliseconds, or NO_EXPIRY
+    final long expiresAt;
+    // LRU clock or LFU counter, maintained by Eviction
+    int access;
+    // the Snapshot epoch this entry's MutableValue was copied or created under, 0 if none
+    int snapshotEpoch;
+
+    // object headers and references of the entry, its Key and the map node holding it
+    private static final long ENTRY_OVERHEAD = 32 + 24 + 32;
+
+    Entry(Key key, Object value, long expiresAt) {
+        this.key = key;
+        this.value = value;
+        this.expiresAt = expiresAt;
+        this.access = Eviction.initialAccess();
+    }
+
+    // Approximate heap footprint, counted against maxmemory.
+    long estimatedSize() {
+        return ENTRY_OVERHEAD + arraySize(key.bytes().length) + valueSize(value);
+    }
+
+    private static long valueSize(Object value) {
+        if (value instanceof byte[] bytes) {
+            return arraySize(bytes.length);
+        }
+        if (value instanceof MutableValue mutable) {
+            return mutable.estimatedSize();
+        }
+        return 16;
+    }
+
+    private static long arraySize(int length) {
+        return (16 + length + 7) & ~7L;
+    }
+
+    boolean isVolatile() {
+        return expiresAt != NO_EXPIRY;
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt != NO_EXPIRY && expiresAt <= now;
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// maxmemory and the eviction policies. Memory is the keyspace's estimated size, not the JVM heap.
+// Every entry carries a 32-bit access field: a coarse LRU clock for allkeys-lru, or for allkeys-lfu a logarithmic
+// access counter in the low 8 bits under the minute it was last decayed. Eviction samples a few random keys
+// per round into a small pool of the best candidates seen so far, as Redis does, instead of keeping a global
+// ordering of every key.
+public class Eviction {
+    enum Policy { NOEVICTION, ALLKEYS_LRU, ALLKEYS_LFU, VOLATILE_TTL }
+
+    private static final long LRU_CLOCK_RESOLUTION_MILLIS = 100;
+    private static final int LFU_INIT_VAL = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final int LFU_DECAY_MINUTES = 1;
+    private static final int POOL_SIZE = 16;
+    // sampling rounds per evicted key before giving up, e.g. when no key has a TTL under volatile-ttl
+    private static final int MAX_ROUNDS = 16;
+
+    private static volatile long maxMemory = 0;
+    private static volatile Policy policy = Policy.NOEVICTION;
+    private static int samples = 5;
+    private static final AtomicLong evictedKeys = new AtomicLong();
+
+    // one thread evicts at a time; the others find memory back under the limit when they get the lock
+    private static final ReentrantLock evictionLock = new ReentrantLock();
+    // candidates ordered by ascending score; the best one is at the highest index
+    private static final Entry[] pool = new Entry[POOL_SIZE];
+    private static final long[] poolScores = new long[POOL_SIZE];
+    private static int poolSize = 0;
+
+    public static void configure(String maxMemorySetting, String policySetting, int sampleCount) {
+        maxMemory = Replica.parseBytes(maxMemorySetting);
+        policy = switch (policySetting.toLowerCase()) {
+            case "noeviction" -> Policy.NOEVICTION;
+            case "allkeys-lru" -> Policy.ALLKEYS_LRU;
+            case "allkeys-lfu" -> Policy.ALLKEYS_LFU;
+            case "volatile-ttl" -> Policy.VOLATILE_TTL;
+            default -> throw new IllegalArgumentException("Invalid --maxmemory-policy: " + policySetting);
+        };
+        if (sampleCount < 1) {
+            throw new IllegalArgumentException("Invalid --maxmemory-samples: " + sampleCount);
+        }
+        samples = sampleCount;
+    }
+
+    public static long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public static String getPolicyName() {
+        return policy.name().toLowerCase().replace('_', '-');
+    }
+
+    public static long getEvictedKeys() {
+        return evictedKeys.get();
+    }
+
+    // The access field of a new entry.
+    static int initialAccess() {
+        if (policy == Policy.ALLKEYS_LFU) {
+            return (lfuMinutes() << 8) | LFU_INIT_VAL;
+        }
+        return lruClock();
+    }
+
+    // Records a read or write of the entry. Racy on purpose: a lost update only makes eviction slightly less exact.
+    static void touch(Entry entry) {
+        switch (policy) {
+            case ALLKEYS_LRU -> entry.access = lruClock();
+            case ALLKEYS_LFU -> {
+                int counter = lfuIncrement(lfuDecayedCounter(entry.access));
+                entry.access = (lfuMinutes() << 8) | counter;
+            }
+            default -> {
+            }
+        }
+    }
+
+    // Under LFU an overwritten key keeps its access history, and the write counts as an access.
+    static void inherit(Entry replacement, Entry previous) {
+        if (policy == Policy.ALLKEYS_LFU) {
+            replacement.access = previous.access;
+            touch(replacement);
+        }
+    }
+
+    // Evicts keys until memory is back under maxmemory. Called before a write command runs, with the write gate
+    // held so the DELs it propagates are ordered with the writes. Returns false if memory cannot be freed and
+    // the command should be refused.
+    public static boolean freeMemoryIfNeeded() {
+        if (maxMemory == 0) {
+            return true;
+        }
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        if (keyValueStore.usedMemory() <= maxMemory) {
+            return true;
+        }
+        if (policy == Policy.NOEVICTION) {
+            return false;
+        }
+        evictionLock.lock();
+        try {
+            while (keyValueStore.usedMemory() > maxMemory) {
+                Entry victim = nextVictim(keyValueStore);
+                if (victim == null) {
+                    return false;
+                }
+                if (keyValueStore.evict(victim)) {
+                    evictedKeys.incrementAndGet();
+                }
+            }
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static Entry nextVictim(KeyValueStore keyValueStore) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            for (int i = 0; i < samples; i++) {
+                Entry sampled = keyValueStore.randomEntry(random);
+                if (sampled == null) {
+                    break;
+                }
+                if (policy == Policy.VOLATILE_TTL && !sampled.isVolatile()) {
+                    continue;
+                }
+                addToPool(sampled, score(sampled));
+            }
+            // the best candidate may have been overwritten or deleted since it was pooled
+            while (poolSize > 0) {
+                Entry best = pool[--poolSize];
+                pool[poolSize] = null;
+                if (keyValueStore.isCurrent(best)) {
+                    return best;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Higher is a better eviction candidate.
+    private static long score(Entry entry) {
+        return switch (policy) {
+            case ALLKEYS_LRU -> lruClock() - entry.access;
+            case ALLKEYS_LFU -> 255 - lfuDecayedCounter(entry.access);
+            case VOLATILE_TTL -> Long.MAX_VALUE - entry.expiresAt;
+            case NOEVICTION -> 0;
+        };
+    }
+
+    private static void addToPool(Entry entry, long score) {
+        for (int i = 0; i < poolSize; i++) {
+            if (pool[i] == entry) {
+                return;
+            }
+        }
+        if (poolSize == POOL_SIZE) {
+            if (score <= poolScores[0]) {
+                return;
+            }
+            // drop the worst candidate
+            System.arraycopy(pool, 1, pool, 0, POOL_SIZE - 1);
+            System.arraycopy(poolScores, 1, poolScores, 0, POOL_SIZE - 1);
+            poolSize--;
+        }
+        int index = poolSize;
+        while (index > 0 && poolScores[index - 1] > score) {
+            pool[index] = pool[index - 1];
+            poolScores[index] = poolScores[index - 1];
+            index--;
+        }
+        pool[index] = entry;
+        poolScores[index] = score;
+        poolSize++;
+    }
+
+    // Wraps around, but differences stay correct for idle times far beyond any realistic uptime.
+    private static int lruClock() {
+        return (int) (System.currentTimeMillis() / LRU_CLOCK_RESOLUTION_MILLIS);
+    }
+
+    private static int lfuMinutes() {
+        return (int) ((System.currentTimeMillis() / 60000) & 0xFFFF);
+    }
+
+    // The counter after one decrement per LFU_DECAY_MINUTES elapsed since it was last updated.
+    private static int lfuDecayedCounter(int access) {
+        int counter = access & 0xFF;
+        int elapsed = (lfuMinutes() - (access >>> 8)) & 0xFFFF;
+        return Math.max(0, counter - elapsed / LFU_DECAY_MINUTES);
+    }
+
+    // Logarithmic increment: the higher the counter, the less likely a hit moves it.
+    private static int lfuIncrement(int counter) {
+        if (counter == 255) {
+            return counter;
+        }
+        int base = Math.max(0, counter - LFU_INIT_VAL);
+        double probability = 1.0 / (base * LFU_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < probability ? counter + 1 : counter;
+    }
+}
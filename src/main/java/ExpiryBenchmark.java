@@ -0,0 +1,36 @@
+import java.nio.charset.StandardCharsets;
+
+// Measures SET PX throughput and retained heap for the keyspace's expiry engine.
+// Run with: java -Xmx4g -cp codecrafters-redis.jar ExpiryBenchmark [keys]
+public class ExpiryBenchmark {
+    private static final int DEFAULT_KEYS = 10_000_000;
+    private static final long TTL_MILLIS = 60 * 60 * 1000;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_KEYS;
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        byte[] value = "value".getBytes(StandardCharsets.US_ASCII);
+        long heapBefore = usedHeap();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            Key key = new Key(("key:" + i).getBytes(StandardCharsets.US_ASCII));
+            keyValueStore.put(key, value, TTL_MILLIS + (i % 1000));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long heapAfter = usedHeap();
+        System.out.printf("SET PX: %d keys in %d ms (%.0f ops/s)%n", keys, elapsed / 1_000_000, keys / (elapsed / 1e9));
+        System.out.printf("Heap: %d MB retained, %d bytes per key%n", (heapAfter - heapBefore) >> 20, (heapAfter - heapBefore) / keys);
+        System.out.println("Keys in store: " + keyValueStore.size());
+        System.exit(0);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// Hashed timing wheel of entries that carry a TTL. A slot holds plain Entry references, so a volatile key costs
+// one array slot here instead of a scheduled task. The entry stays authoritative: references to entries that
+// were overwritten or deleted are dropped when their slot comes round, and entries due in a later rotation wait.
+public class ExpiryWheel {
+    static final long TICK_MILLIS = 100;
+    private static final int SLOTS = 1024;
+    private static final int INITIAL_SLOT_CAPACITY = 16;
+
+    private final Slot[] slots = new Slot[SLOTS];
+    // last tick the sweeper finished; volatile because writers read it to avoid scheduling into the past
+    private volatile long lastTick;
+
+    public ExpiryWheel(long now) {
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+        lastTick = now / TICK_MILLIS;
+    }
+
+    public void schedule(Entry entry) {
+        // a slot whose tick already passed would not be visited for a whole rotation
+        long tick = Math.max(entry.expiresAt / TICK_MILLIS, lastTick + 1);
+        slots[(int) (tick % SLOTS)].add(entry);
+    }
+
+    // Visits every slot whose tick has fully passed, so each entry found there for this rotation is due. isLive tells whether the entry is still the one in the keyspace;
+    // expire removes it. Only called from the sweeper thread.
+    public int advance(long now, Predicate<Entry> isLive, Predicate<Entry> expire) {
+        long lastPassedTick = now / TICK_MILLIS - 1;
+        // a full rotation visits every slot once, so there is no point going further back
+        long fromTick = Math.max(lastTick + 1, lastPassedTick - SLOTS + 1);
+        int expired = 0;
+        for (long tick = fromTick; tick <= lastPassedTick; tick++) {
+            Slot slot = slots[(int) (tick % SLOTS)];
+            Entry[] drained = slot.drain();
+            for (int i = 0; i < drained.length && drained[i] != null; i++) {
+                Entry entry = drained[i];
+                if (!entry.isVolatile() || !isLive.test(entry)) {
+                    continue;
+                }
+                if (entry.isExpired(now)) {
+                    if (expire.test(entry)) {
+                        expired++;
+                    }
+                } else {
+                    // due in a later rotation
+                    slotFor(entry.expiresAt).add(entry);
+                }
+            }
+        }
+        lastTick = lastPassedTick;
+        return expired;
+    }
+
+    private Slot slotFor(long expiresAt) {
+        return slots[(int) ((expiresAt / TICK_MILLIS) % SLOTS)];
+    }
+
+    // A growable array of entries; the lock is a ReentrantLock so writers on virtual threads are not pinned.
+    private static final class Slot {
+        private static final Entry[] EMPTY = new Entry[0];
+        private final ReentrantLock lock = new ReentrantLock();
+        private Entry[] entries = EMPTY;
+        private int size = 0;
+
+        void add(Entry entry) {
+            lock.lock();
+            try {
+                if (size == entries.length) {
+                    entries = Arrays.copyOf(entries, Math.max(INITIAL_SLOT_CAPACITY, size * 2));
+                }
+                entries[size++] = entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Takes the slot's current contents, leaving it empty; the returned array is null-terminated if not full.
+        Entry[] drain() {
+            lock.lock();
+            try {
+                Entry[] drained = entries;
+                entries = EMPTY;
+                size = 0;
+                return drained;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Diskless full resynchronization. Replicas that send PSYNC close together join one job, which takes a single
+// copy-on-write snapshot of the keyspace and streams its RDB image to all of their sockets at once.
+public class FullSync {
+    // a short window so replicas connecting together share one snapshot
+    private static final long SYNC_DELAY_MILLIS = 100;
+    private static final long SNAPSHOT_RETRY_MILLIS = 10;
+
+    // Write commands hold the read side from execution until they are propagated. A sync job takes the write
+    // side to pick its snapshot point, so every write is either in the snapshot or replayed after it, never both.
+    static final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock();
+
+    private static List<Replica> forming;
+
+    // Adds a replica that asked for a full resync to the next sync job, starting one if needed.
+    public static synchronized void attach(Replica replica) {
+        Main.replicas.add(replica);
+        if (forming == null) {
+            forming = new ArrayList<>();
+            Thread thread = new Thread(FullSync::run, "repl-full-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        forming.add(replica);
+    }
+
+    private static synchronized List<Replica> claim() {
+        List<Replica> replicas = forming;
+        forming = null;
+        return replicas;
+    }
+
+    private static void run() {
+        try {
+            Thread.sleep(SYNC_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        List<Replica> replicas = claim();
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Snapshot snapshot = null;
+        long offset = 0;
+        while (snapshot == null) {
+            writeGate.writeLock().lock();
+            try {
+                snapshot = keyValueStore.beginSnapshot(2);
+                if (snapshot != null) {
+                    offset = Main.masterReplOffset;
+                    for (Replica replica : replicas) {
+                        replica.snapshotTaken(offset);
+                    }
+                }
+            } finally {
+                writeGate.writeLock().unlock();
+            }
+            if (snapshot == null) {
+                // only one snapshot runs at a time; wait for a BGSAVE to finish
+                try {
+                    Thread.sleep(SNAPSHOT_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        long start = System.currentTimeMillis();
+        try {
+            FanOutChannel channel = new FanOutChannel(replicas);
+            channel.writeLine("+FULLRESYNC " + Main.masterReplId + " " + offset);
+            // replicas expect a length-prefixed payload; the snapshot is read twice, so a counting pass gives
+            // the exact size of the image without staging it in memory or on disk
+            CountingChannel counter = new CountingChannel();
+            new RdbFileWriter(counter).write(keyValueStore, snapshot);
+            channel.writeLine("$" + counter.count);
+            new RdbFileWriter(channel).write(keyValueStore, snapshot);
+            for (Replica replica : channel.live) {
+                replica.syncFinished();
+            }
+            System.out.println("Full sync of " + counter.count + " bytes to " + channel.live.size() + " replicas in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Full sync failed: " + e.getMessage());
+            for (Replica replica : replicas) {
+                replica.disconnect();
+            }
+        } finally {
+            keyValueStore.endSnapshot(snapshot);
+        }
+    }
+
+    private static void drop(Replica replica, IOException cause) {
+        System.out.println("Dropping replica during full sync: " + cause.getMessage());
+        replica.disconnect();
+    }
+
+    // Writes every chunk of the image to each replica still attached to the job.
+    private static class FanOutChannel implements WritableByteChannel {
+        private final List<Replica> live;
+
+        FanOutChannel(List<Replica> replicas) {
+            this.live = new ArrayList<>(replicas);
+        }
+
+        void writeLine(String line) throws IOException {
+            write(ByteBuffer.wrap((line + "\r\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            for (int i = live.size() - 1; i >= 0; i--) {
+                OutputStream sink = live.get(i).sink();
+                try {
+                    sink.write(src.array(), src.arrayOffset() + src.position(), length);
+                } catch (IOException e) {
+                    drop(live.remove(i), e);
+                }
+            }
+            if (live.isEmpty()) {
+                throw new IOException("no replicas left");
+            }
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class CountingChannel implements WritableByteChannel {
+        private long count;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            count += length;
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.nio.charset.StandardCharsets;
+
+// A Redis-style glob (*, ?, [abc], [^a-z], \x) compiled once into an op array and matched against raw key bytes.
+public class GlobPattern {
+    private static final byte LITERAL = 0;
+    private static final byte ANY = 1;
+    private static final byte STAR = 2;
+    private static final byte CLASS = 3;
+
+    public static final GlobPattern MATCH_ALL = compile("*".getBytes(StandardCharsets.US_ASCII));
+
+    private final byte[] ops;
+    private final byte[] literals;
+    // 256-bit membership set for each CLASS op
+    private final long[][] classes;
+    private final boolean matchesAll;
+    private final byte[] exact;
+
+    private GlobPattern(byte[] ops, byte[] literals, long[][] classes, int length, byte[] exact) {
+        this.ops = ops;
+        this.literals = literals;
+        this.classes = classes;
+        this.matchesAll = length == 1 && ops[0] == STAR;
+        this.exact = exact;
+    }
+
+    public static GlobPattern compile(byte[] pattern) {
+        byte[] ops = new byte[pattern.length];
+        byte[] literals = new byte[pattern.length];
+        long[][] classes = new long[pattern.length][];
+        int length = 0;
+        boolean hasWildcards = false;
+        for (int i = 0; i < pattern.length; i++) {
+            byte b = pattern[i];
+            switch (b) {
+                case '*' -> {
+                    hasWildcards = true;
+                    // consecutive stars match the same as one
+                    if (length > 0 && ops[length - 1] == STAR) {
+                        continue;
+                    }
+                    ops[length++] = STAR;
+                }
+                case '?' -> {
+                    hasWildcards = true;
+                    ops[length++] = ANY;
+                }
+                case '[' -> {
+                    hasWildcards = true;
+                    long[] set = new long[4];
+                    i++;
+                    boolean negate = i < pattern.length && pattern[i] == '^';
+                    if (negate) {
+                        i++;
+                    }
+                    while (i < pattern.length && pattern[i] != ']') {
+                        if (pattern[i] == '\\' && i + 1 < pattern.length) {
+                            i++;
+                            add(set, pattern[i], pattern[i]);
+                        } else if (i + 2 < pattern.length && pattern[i + 1] == '-' && pattern[i + 2] != ']') {
+                            int from = pattern[i] & 0xFF;
+                            int to = pattern[i + 2] & 0xFF;
+                            add(set, Math.min(from, to), Math.max(from, to));
+                            i += 2;
+                        } else {
+                            add(set, pattern[i], pattern[i]);
+                        }
+                        i++;
+                    }
+                    if (negate) {
+                        for (int w = 0; w < set.length; w++) {
+                            set[w] = ~set[w];
+                        }
+                    }
+                    classes[length] = set;
+                    ops[length++] = CLASS;
+                }
+                case '\\' -> {
+                    if (i + 1 < pattern.length) {
+                        i++;
+                    }
+                    literals[length] = pattern[i];
+                    ops[length++] = LITERAL;
+                }
+                default -> {
+                    literals[length] = b;
+                    ops[length++] = LITERAL;
+                }
+            }
+        }
+        byte[] exact = null;
+        if (!hasWildcards) {
+            exact = new byte[length];
+            System.arraycopy(literals, 0, exact, 0, length);
+        }
+        byte[] compiledOps = new byte[length];
+        System.arraycopy(ops, 0, compiledOps, 0, length);
+        return new GlobPattern(compiledOps, literals, classes, length, exact);
+    }
+
+    private static void add(long[] set, int from, int to) {
+        for (int c = from & 0xFF; c <= (to & 0xFF); c++) {
+            set[c >>> 6] |= 1L << c;
+        }
+    }
+
+    public boolean matchesAll() {
+        return matchesAll;
+    }
+
+    // The literal key when the pattern has no wildcards, so callers can do a direct lookup instead of a scan.
+    public byte[] exactKey() {
+        return exact;
+    }
+
+    public boolean matches(byte[] key) {
+        if (matchesAll) {
+            return true;
+        }
+        int p = 0;
+        int k = 0;
+        // position after the most recent star, and the key position it is currently standing in for
+        int starOp = -1;
+        int starKey = 0;
+        while (k < key.length) {
+            if (p < ops.length && ops[p] != STAR && matchesOne(p, key[k])) {
+                p++;
+                k++;
+            } else if (p < ops.length && ops[p] == STAR) {
+                starOp = ++p;
+                starKey = k;
+            } else if (starOp >= 0) {
+                // let the last star swallow one more byte and retry
+                p = starOp;
+                k = ++starKey;
+            } else {
+                return false;
+            }
+        }
+        while (p < ops.length && ops[p] == STAR) {
+            p++;
+        }
+        return p == ops.length;
+    }
+
+    private boolean matchesOne(int op, byte b) {
+        return switch (ops[op]) {
+            case ANY -> true;
+            case LITERAL -> literals[op] == b;
+            default -> {
+                int c = b & 0xFF;
+                yield (classes[op][c >>> 6] & (1L << c)) != 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,337 @@
+import java.util.Arrays;
+import java.util.List;
+
+// A Redis hash of field -> value byte strings.
+// Small hashes are one packed byte array of [varint length][field][varint length][value] pairs in insertion
+// order, scanned linearly: a few bytes of framing per field instead of objects. Past --hash-max-listpack-entries
+// fields, or once a field or value is longer than --hash-max-listpack-value bytes, the hash converts for good to
+// a chained table with power-of-two buckets, which HSCAN walks in reverse-binary bucket order so a cursor stays
+// valid across resizes, as Redis's dict does.
+// Not thread-safe; the keyspace only touches it with the key's shard locked.
+public class Hash implements MutableValue {
+    private static final int MIN_BUCKETS = 8;
+    // the node and the field and value array headers
+    private static final long TABLE_ENTRY_OVERHEAD = 32 + 16 + 16;
+    private static final long HASH_OVERHEAD = 40;
+
+    private static volatile int packedMaxEntries = 128;
+    private static volatile int packedMaxValueBytes = 64;
+
+    // Receives the fields of the hash.
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(byte[] field, byte[] value);
+    }
+
+    private static final class Node {
+        final byte[] field;
+        final int hash;
+        // replaced, never changed in place, so a copy can share it
+        byte[] value;
+        Node next;
+
+        Node(byte[] field, int hash, byte[] value, Node next) {
+            this.field = field;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private int size;
+    // packed encoding, used while buckets is null
+    private byte[] packed = new byte[32];
+    private int packedBytes;
+    // table encoding
+    private Node[] buckets;
+    private long dataBytes;
+
+    public static void configure(int maxEntries, int maxValueBytes) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Invalid --hash-max-listpack-entries: " + maxEntries);
+        }
+        if (maxValueBytes < 0) {
+            throw new IllegalArgumentException("Invalid --hash-max-listpack-value: " + maxValueBytes);
+        }
+        packedMaxEntries = maxEntries;
+        packedMaxValueBytes = maxValueBytes;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String typeName() {
+        return "hash";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public long estimatedSize() {
+        if (buckets == null) {
+            return HASH_OVERHEAD + 16 + packed.length;
+        }
+        return HASH_OVERHEAD + 16 + 4L * buckets.length + size * TABLE_ENTRY_OVERHEAD + dataBytes;
+    }
+
+    @Override
+    public Hash copy() {
+        Hash copy = new Hash();
+        copy.size = size;
+        if (buckets == null) {
+            copy.packed = Arrays.copyOf(packed, packedBytes);
+            copy.packedBytes = packedBytes;
+            return copy;
+        }
+        // fields and values are never written in place, so only the nodes are cloned
+        copy.buckets = new Node[buckets.length];
+        copy.dataBytes = dataBytes;
+        for (int i = 0; i < buckets.length; i++) {
+            for (Node node = buckets[i]; node != null; node = node.next) {
+                copy.buckets[i] = new Node(node.field, node.hash, node.value, copy.buckets[i]);
+            }
+        }
+        return copy;
+    }
+
+    // The field's value, or null if the hash has no such field.
+    public byte[] get(byte[] field) {
+        if (buckets != null) {
+            Node node = findNode(field, hashOf(field));
+            return node != null ? node.value : null;
+        }
+        int position = packedFind(field);
+        if (position < 0) {
+            return null;
+        }
+        long header = QuickList.readVarint(packed, skipString(position));
+        int valueStart = (int) header;
+        return Arrays.copyOfRange(packed, valueStart, valueStart + (int) (header >>> 32));
+    }
+
+    // Sets the field to value. Returns true if the field was added.
+    public boolean put(byte[] field, byte[] value) {
+        if (buckets == null) {
+            int position = packedFind(field);
+            if (field.length > packedMaxValueBytes || value.length > packedMaxValueBytes
+                    || (position < 0 && size >= packedMaxEntries)) {
+                convertToTable();
+            } else if (position >= 0) {
+                int valueAt = skipString(position);
+                packedWrite(valueAt, skipString(valueAt), value);
+                return false;
+            } else {
+                packedWrite(packedBytes, packedBytes, field);
+                packedWrite(packedBytes, packedBytes, value);
+                size++;
+                return true;
+            }
+        }
+        int hash = hashOf(field);
+        Node node = findNode(field, hash);
+        if (node != null) {
+            dataBytes += value.length - node.value.length;
+            node.value = value;
+            return false;
+        }
+        int bucket = hash & (buckets.length - 1);
+        buckets[bucket] = new Node(field, hash, value, buckets[bucket]);
+        dataBytes += field.length + value.length;
+        if (++size > buckets.length) {
+            resize(buckets.length * 2);
+        }
+        return true;
+    }
+
+    // Returns true if the field was in the hash.
+    public boolean remove(byte[] field) {
+        if (buckets == null) {
+            int position = packedFind(field);
+            if (position < 0) {
+                return false;
+            }
+            packedWrite(position, skipString(skipString(position)), null);
+            size--;
+            // give back the space of a hash that shrank a lot
+            if (packed.length > 64 && packedBytes < packed.length / 4) {
+                packed = Arrays.copyOf(packed, Math.max(packedBytes * 2, 32));
+            }
+            return true;
+        }
+        int hash = hashOf(field);
+        int bucket = hash & (buckets.length - 1);
+        for (Node node = buckets[bucket], prev = null; node != null; prev = node, node = node.next) {
+            if (node.hash == hash && Arrays.equals(node.field, field)) {
+                if (prev == null) {
+                    buckets[bucket] = node.next;
+                } else {
+                    prev.next = node.next;
+                }
+                dataBytes -= node.field.length + node.value.length;
+                if (--size < buckets.length / 8 && buckets.length > MIN_BUCKETS) {
+                    resize(buckets.length / 2);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Every field with its value: in insertion order while packed, in bucket order after.
+    public void forEach(EntryConsumer consumer) {
+        if (buckets != null) {
+            for (Node bucket : buckets) {
+                for (Node node = bucket; node != null; node = node.next) {
+                    consumer.accept(node.field, node.value);
+                }
+            }
+            return;
+        }
+        int position = 0;
+        while (position < packedBytes) {
+            long fieldHeader = QuickList.readVarint(packed, position);
+            int fieldStart = (int) fieldHeader;
+            int fieldEnd = fieldStart + (int) (fieldHeader >>> 32);
+            long valueHeader = QuickList.readVarint(packed, fieldEnd);
+            int valueStart = (int) valueHeader;
+            position = valueStart + (int) (valueHeader >>> 32);
+            consumer.accept(Arrays.copyOfRange(packed, fieldStart, fieldEnd), Arrays.copyOfRange(packed, valueStart, position));
+        }
+    }
+
+    // HSCAN: adds the fields matching pattern (each followed by its value when withValues) from the buckets
+    // starting at cursor, until about count fields were visited, and returns the cursor to resume from, or 0
+    // once every bucket was walked. A packed hash is returned whole, as Redis does for a listpack. The cursor
+    // counts in bit-reversed order, so buckets that a resize split or merged are never skipped: a field present
+    // for the whole iteration is returned at least once.
+    public long scan(long cursor, int count, GlobPattern pattern, boolean withValues, List<byte[]> result) {
+        if (buckets == null) {
+            forEach((field, value) -> {
+                if (pattern.matches(field)) {
+                    result.add(field);
+                    if (withValues) {
+                        result.add(value);
+                    }
+                }
+            });
+            return 0;
+        }
+        int mask = buckets.length - 1;
+        int bucket = (int) (cursor & mask);
+        int visited = 0;
+        int emptyBuckets = 0;
+        do {
+            Node node = buckets[bucket];
+            if (node == null) {
+                emptyBuckets++;
+            }
+            for (; node != null; node = node.next) {
+                visited++;
+                if (pattern.matches(node.field)) {
+                    result.add(node.field);
+                    if (withValues) {
+                        result.add(node.value);
+                    }
+                }
+            }
+            // increment the reversed cursor: set the bits above the mask so the carry runs off the top
+            bucket = Integer.reverse(Integer.reverse(bucket | ~mask) + 1);
+        } while (bucket != 0 && visited < count && emptyBuckets < count * 10L);
+        return bucket;
+    }
+
+    private void convertToTable() {
+        int capacity = MIN_BUCKETS;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        byte[] data = packed;
+        int dataLength = packedBytes;
+        buckets = new Node[capacity];
+        packed = null;
+        packedBytes = 0;
+        size = 0;
+        int position = 0;
+        while (position < dataLength) {
+            long fieldHeader = QuickList.readVarint(data, position);
+            int fieldStart = (int) fieldHeader;
+            int fieldEnd = fieldStart + (int) (fieldHeader >>> 32);
+            long valueHeader = QuickList.readVarint(data, fieldEnd);
+            int valueStart = (int) valueHeader;
+            position = valueStart + (int) (valueHeader >>> 32);
+            put(Arrays.copyOfRange(data, fieldStart, fieldEnd), Arrays.copyOfRange(data, valueStart, position));
+        }
+    }
+
+    private void resize(int capacity) {
+        Node[] old = buckets;
+        buckets = new Node[capacity];
+        for (Node bucket : old) {
+            Node node = bucket;
+            while (node != null) {
+                Node next = node.next;
+                int index = node.hash & (capacity - 1);
+                node.next = buckets[index];
+                buckets[index] = node;
+                node = next;
+            }
+        }
+    }
+
+    private Node findNode(byte[] field, int hash) {
+        for (Node node = buckets[hash & (buckets.length - 1)]; node != null; node = node.next) {
+            if (node.hash == hash && Arrays.equals(node.field, field)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static int hashOf(byte[] field) {
+        int hash = Arrays.hashCode(field);
+        // the bucket index takes the low bits only
+        return hash ^ (hash >>> 16);
+    }
+
+    // The position of the field's pair in packed, or -1.
+    private int packedFind(byte[] field) {
+        int position = 0;
+        while (position < packedBytes) {
+            long header = QuickList.readVarint(packed, position);
+            int fieldStart = (int) header;
+            int length = (int) (header >>> 32);
+            if (length == field.length && Arrays.equals(packed, fieldStart, fieldStart + length, field, 0, length)) {
+                return position;
+            }
+            position = skipString(fieldStart + length);
+        }
+        return -1;
+    }
+
+    // The position just after the length-prefixed string starting at position.
+    private int skipString(int position) {
+        long header = QuickList.readVarint(packed, position);
+        return (int) header + (int) (header >>> 32);
+    }
+
+    // Replaces packed[from, to) with bytes as a length-prefixed string, or with nothing when bytes is null,
+    // moving whatever follows.
+    private void packedWrite(int from, int to, byte[] bytes) {
+        int length = bytes == null ? 0 : QuickList.varintSize(bytes.length) + bytes.length;
+        int grown = packedBytes + length - (to - from);
+        if (grown > packed.length) {
+            packed = Arrays.copyOf(packed, Math.max(grown, packed.length + packed.length / 2));
+        }
+        System.arraycopy(packed, to, packed, from + length, packedBytes - to);
+        packedBytes = grown;
+        if (bytes != null) {
+            int position = QuickList.writeVarint(packed, from, bytes.length);
+            System.arraycopy(bytes, 0, packed, position, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+
+// A string value that is a canonical decimal integer, stored as a primitive long instead of its digits.
+// INCR and friends update it in place with a CAS, so a counter neither allocates nor takes the shard lock.
+public final class IntValue {
+    // longest canonical long: "-9223372036854775808"
+    private static final int MAX_DIGITS = 20;
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(IntValue.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long value;
+
+    IntValue(long value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return value;
+    }
+
+    // Atomically adds delta and returns the result. Throws ArithmeticException, leaving the value as it was,
+    // if the result would overflow.
+    public long addAndGet(long delta) {
+        while (true) {
+            long current = value;
+            long next = Math.addExact(current, delta);
+            if (VALUE.compareAndSet(this, current, next)) {
+                return next;
+            }
+        }
+    }
+
+    public byte[] toBytes() {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // The stored form of a string: an IntValue when it is exactly the decimal text of a long, as Redis only
+    // integer-encodes strings that convert back to the same bytes; otherwise the bytes themselves.
+    public static Object encode(byte[] bytes) {
+        if (bytes.length == 0 || bytes.length > MAX_DIGITS) {
+            return bytes;
+        }
+        Long parsed = parseCanonical(bytes);
+        return parsed != null ? new IntValue(parsed) : bytes;
+    }
+
+    // The string bytes of a stored string value, or null if the value is not a string.
+    public static byte[] bytesOf(Object value) {
+        if (value instanceof byte[] bytes) {
+            return bytes;
+        }
+        if (value instanceof IntValue intValue) {
+            return intValue.toBytes();
+        }
+        return null;
+    }
+
+    // Parses a canonical decimal long: optional '-', no '+', no leading zeros, no "-0". Returns null otherwise.
+    static Long parseCanonical(byte[] bytes) {
+        int length = bytes.length;
+        if (length == 0 || length > MAX_DIGITS) {
+            return null;
+        }
+        int index = 0;
+        boolean negative = bytes[0] == '-';
+        if (negative) {
+            index = 1;
+            if (length == 1) {
+                return null;
+            }
+        }
+        if (bytes[index] == '0' && (length > index + 1 || negative)) {
+            return null;
+        }
+        // accumulate negatively so Long.MIN_VALUE parses too
+        long result = 0;
+        for (; index < length; index++) {
+            int digit = bytes[index] - '0';
+            if (digit < 0 || digit > 9) {
+                return null;
+            }
+            if (result < (Long.MIN_VALUE + digit) / 10) {
+                return null;
+            }
+            result = result * 10 - digit;
+        }
+        if (negative) {
+            return result;
+        }
+        return result == Long.MIN_VALUE ? null : -result;
+    }
+}
@@ -1,56 +1,742 @@
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
 
+// The keyspace. Keys are Key byte wrappers; string values are stored as raw byte arrays, and other types as
+// MutableValues that commands change in place through mutate.
+// Expiry times live in each Entry and are checked on every read; a background sweeper walks an ExpiryWheel
+// to reclaim keys that expire without being read again.
+// Keys are spread over fixed hash slots so SCAN can resume from a slot index that stays valid as maps resize.
+// Slots are grouped into shards, each with its own lock and expiry wheel. Writes lock their key's shard and
+// reads validate against it optimistically; multi-key commands lock every shard they touch, in ascending
+// order, so they are atomic without a global lock.
+// While a Snapshot is active every mutation goes through it, so the snapshot stays point-in-time.
 public class KeyValueStore {
-    private final Map<String, Object> store;
-    private ScheduledExecutorService executorService;
-    private Map<String, ScheduledFuture> expirationTasks;
-    private static KeyValueStore instance;
+    private static final int SLOT_BITS = 14;
+    static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SHARD_BITS = 6;
+    static final int SHARDS = 1 << SHARD_BITS;
+    static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    // SCAN gives up after visiting this many empty slots per requested key, as Redis bounds empty buckets
+    private static final int EMPTY_SLOTS_PER_KEY = 10;
 
+    private final Map<Key, Entry>[] slots;
+    private final Shard[] shards;
+    private final ScheduledExecutorService expirySweeper;
+    private volatile Snapshot activeSnapshot;
+
+    // A lock stripe of the keyspace: it owns every slot whose low SHARD_BITS equal its index.
+    private static final class Shard {
+        final StampedLock lock = new StampedLock();
+        final ExpiryWheel expiryWheel;
+        // estimated bytes of the shard's entries; written under the write lock
+        volatile long usedMemory;
+
+        Shard(long now) {
+            expiryWheel = new ExpiryWheel(now);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
     private KeyValueStore() {
-        store = new ConcurrentHashMap<>();
-        executorService = Executors.newScheduledThreadPool(1);
-        expirationTasks = new ConcurrentHashMap<>();
+        slots = new Map[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new ConcurrentHashMap<>();
+        }
+        long now = System.currentTimeMillis();
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(now);
+        }
+        expirySweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expirySweeper.scheduleAtFixedRate(this::expireDueKeys, ExpiryWheel.TICK_MILLIS, ExpiryWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Holder idiom rather than a synchronized getter: a monitor would pin virtual threads to their carrier.
+    private static class Holder {
+        private static final KeyValueStore INSTANCE = new KeyValueStore();
+    }
+
+    public static KeyValueStore getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    // Fibonacci hashing on the key's hash, so the slot uses different bits than the map's own bins.
+    private static int slotOf(Key key) {
+        return (key.hashCode() * 0x9E3779B9) >>> (32 - SLOT_BITS);
+    }
+
+    private static int shardOf(int slot) {
+        return slot & (SHARDS - 1);
+    }
+
+    private Shard shardFor(Key key) {
+        return shards[shardOf(slotOf(key))];
+    }
+
+    // String values are stored through IntValue.encode, so integers are kept as primitive longs.
+    public void put(Key key, byte[] value) {
+        putEntry(new Entry(key, IntValue.encode(value), Entry.NO_EXPIRY));
+    }
+
+    public void put(Key key, byte[] value, long ttlMilliseconds) {
+        putEntry(new Entry(key, IntValue.encode(value), System.currentTimeMillis() + ttlMilliseconds));
+    }
+
+    // SET with an absolute expiry time; a time already in the past deletes the key.
+    public void putAt(Key key, byte[] value, long expiresAt) {
+        if (expiresAt <= System.currentTimeMillis()) {
+            delete(key);
+            return;
+        }
+        putEntry(new Entry(key, IntValue.encode(value), expiresAt));
+    }
+
+    // Inserts a loaded entry with an absolute expiry time, skipping it if it has already expired or is empty.
+    public void restore(Key key, Object value, long expiresAt) {
+        Entry entry = new Entry(key, value instanceof byte[] bytes ? IntValue.encode(bytes) : value, expiresAt);
+        if (entry.isExpired(System.currentTimeMillis()) || (value instanceof MutableValue mutable && mutable.isEmpty())) {
+            return;
+        }
+        putEntry(entry);
+    }
+
+    public Object get(Key key) {
+        int slot = slotOf(key);
+        StampedLock lock = shards[shardOf(slot)].lock;
+        // optimistic: no shared state is written unless a multi-key write was in progress on this shard
+        long stamp = lock.tryOptimisticRead();
+        Entry entry = slots[slot].get(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                entry = slots[slot].get(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return liveValue(entry);
+    }
+
+    private Object liveValue(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            removeEntry(entry);
+            return null;
+        }
+        Eviction.touch(entry);
+        return entry.value;
     }
 
-    public static synchronized KeyValueStore getInstance() {
-        if (instance == null) {
-            instance = new KeyValueStore();
+    // Returns whether a live key was removed.
+    public boolean delete(Key key) {
+        StampedLock lock = shardFor(key).lock;
+        long stamp = lock.writeLock();
+        try {
+            boolean deleted = deleteLocked(key);
+            CommandExecutor.propagateWrite();
+            return deleted;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return instance;
     }
 
-    public void put(String key, Object value) {
-        store.put(key, value);
+    // INCRBY: adds delta to the integer at key, starting from 0 if the key is missing, and returns the result.
+    // An integer that is already encoded is updated in place with a CAS under the shard's read lock, unless a
+    // snapshot has to see its old value; write commands run under the write gate, so no snapshot can begin
+    // meanwhile. The read lock keeps out every other write to the shard, and increments commute with each
+    // other, so propagating under it orders the INCR against SET or DEL exactly as the keyspace did.
+    // Throws IllegalArgumentException with the error reply if the value is not an integer or would overflow.
+    public long incrementBy(Key key, long delta) {
+        int slot = slotOf(key);
+        StampedLock lock = shards[shardOf(slot)].lock;
+        long stamp = lock.readLock();
+        try {
+            Entry entry = slots[slot].get(key);
+            if (entry != null && entry.value instanceof IntValue counter && activeSnapshot == null
+                    && !entry.isExpired(System.currentTimeMillis())) {
+                Eviction.touch(entry);
+                long next;
+                try {
+                    next = counter.addAndGet(delta);
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("ERR increment or decrement would overflow");
+                }
+                CommandExecutor.propagateWrite();
+                return next;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        stamp = lock.writeLock();
+        try {
+            Entry entry = liveEntryLocked(slot, key);
+            long current = 0;
+            if (entry != null) {
+                if (entry.value instanceof MutableValue) {
+                    throw new IllegalArgumentException(WRONGTYPE);
+                }
+                Long parsed = entry.value instanceof IntValue counter ? Long.valueOf(counter.get()) : parseInteger(entry.value);
+                if (parsed == null) {
+                    throw new IllegalArgumentException("ERR value is not an integer or out of range");
+                }
+                current = parsed;
+            }
+            long next;
+            try {
+                next = Math.addExact(current, delta);
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("ERR increment or decrement would overflow");
+            }
+            // a fresh IntValue, so a snapshot holding the old entry keeps the old number
+            putEntryLocked(new Entry(key, new IntValue(next), entry != null ? entry.expiresAt : Entry.NO_EXPIRY));
+            CommandExecutor.propagateWrite();
+            return next;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // INCRBYFLOAT: adds delta to the number at key and returns the result as it is stored, without
+    // exponent or trailing zeros. Throws IllegalArgumentException with the error reply on a bad value.
+    public byte[] incrementByFloat(Key key, double delta) {
+        int slot = slotOf(key);
+        StampedLock lock = shards[shardOf(slot)].lock;
+        long stamp = lock.writeLock();
+        try {
+            Entry entry = liveEntryLocked(slot, key);
+            double current = 0;
+            if (entry != null) {
+                if (entry.value instanceof MutableValue) {
+                    throw new IllegalArgumentException(WRONGTYPE);
+                }
+                byte[] bytes = IntValue.bytesOf(entry.value);
+                Double parsed = bytes != null ? parseFloat(bytes) : null;
+                if (parsed == null) {
+                    throw new IllegalArgumentException("ERR value is not a valid float");
+                }
+                current = parsed;
+            }
+            double next = current + delta;
+            if (Double.isNaN(next) || Double.isInfinite(next)) {
+                throw new IllegalArgumentException("ERR increment would produce NaN or Infinity");
+            }
+            byte[] formatted = formatDouble(next);
+            putEntryLocked(new Entry(key, IntValue.encode(formatted), entry != null ? entry.expiresAt : Entry.NO_EXPIRY));
+            CommandExecutor.propagateWrite();
+            return formatted;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Reads a value of the given type with the key's shard read-locked, so reader sees no change half made.
+    // reader gets null if the key is missing and must copy out whatever it keeps.
+    // Throws IllegalArgumentException with the WRONGTYPE reply if the key holds another type.
+    public <V extends MutableValue, R> R read(Key key, Class<V> type, Function<V, R> reader) {
+        int slot = slotOf(key);
+        StampedLock lock = shards[shardOf(slot)].lock;
+        long stamp = lock.readLock();
+        try {
+            Entry entry = slots[slot].get(key);
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                return reader.apply(null);
+            }
+            if (!type.isInstance(entry.value)) {
+                throw new IllegalArgumentException(WRONGTYPE);
+            }
+            Eviction.touch(entry);
+            return reader.apply(type.cast(entry.value));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Changes a value of the given type in place with the key's shard write-locked. mutation gets the live
+    // value, or a new one from factory if the key is missing (null when factory is null); a new value is only
+    // stored if mutation left something in it, and a value left empty deletes the key.
+    // While a snapshot is active the value is first copied into a new entry, unless this snapshot has seen
+    // that done already, so the snapshot keeps the contents it began with. Memory accounting follows the change.
+    // Throws IllegalArgumentException with the WRONGTYPE reply if the key holds another type.
+    public <V extends MutableValue, R> R mutate(Key key, Class<V> type, Supplier<V> factory, Function<V, R> mutation) {
+        int slot = slotOf(key);
+        Shard shard = shards[shardOf(slot)];
+        long stamp = shard.lock.writeLock();
+        try {
+            R result = mutateLocked(slot, shard, key, type, factory, mutation);
+            CommandExecutor.propagateWrite();
+            return result;
+        } finally {
+            shard.lock.unlockWrite(stamp);
+        }
+    }
+
+    private <V extends MutableValue, R> R mutateLocked(int slot, Shard shard, Key key, Class<V> type, Supplier<V> factory,
+                                                       Function<V, R> mutation) {
+        Entry entry = liveEntryLocked(slot, key);
+        Snapshot snapshot = activeSnapshot;
+        if (entry == null) {
+            if (factory == null) {
+                return mutation.apply(null);
+            }
+            V value = factory.get();
+            R result = mutation.apply(value);
+            if (!value.isEmpty()) {
+                entry = new Entry(key, value, Entry.NO_EXPIRY);
+                entry.snapshotEpoch = snapshot != null ? snapshot.epoch : 0;
+                putEntryLocked(entry);
+            }
+            return result;
+        }
+        if (!type.isInstance(entry.value)) {
+            throw new IllegalArgumentException(WRONGTYPE);
+        }
+        V value = type.cast(entry.value);
+        if (snapshot != null && entry.snapshotEpoch != snapshot.epoch) {
+            value = type.cast(value.copy());
+            entry = new Entry(key, value, entry.expiresAt);
+            entry.snapshotEpoch = snapshot.epoch;
+            putEntryLocked(entry);
+        }
+        long sizeBefore = value.estimatedSize();
+        R result = mutation.apply(value);
+        shard.usedMemory += value.estimatedSize() - sizeBefore;
+        if (value.isEmpty()) {
+            deleteLocked(key);
+        } else {
+            Eviction.touch(entry);
+        }
+        return result;
     }
 
-    public void put(String key, Object value, long ttlMilliseconds) {
-        cancelExpiration(key);
-        put(key, value);
-        scheduleExpiration(key, ttlMilliseconds);
+    // PEXPIREAT: sets the absolute expiry time of an existing key; a time already in the past deletes it.
+    // allowed sees the key's current expiry time (Entry.NO_EXPIRY if it has none) and can refuse the change.
+    // Returns false if the key does not exist or the change was refused.
+    public boolean expireAt(Key key, long expiresAt, LongPredicate allowed) {
+        int slot = slotOf(key);
+        StampedLock lock = shards[shardOf(slot)].lock;
+        long stamp = lock.writeLock();
+        try {
+            Entry entry = liveEntryLocked(slot, key);
+            boolean set = entry != null && allowed.test(entry.expiresAt);
+            if (set) {
+                if (expiresAt <= System.currentTimeMillis()) {
+                    deleteLocked(key);
+                } else {
+                    putEntryLocked(new Entry(key, entry.value, expiresAt));
+                }
+            }
+            CommandExecutor.propagateWrite();
+            return set;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
     }
 
-    private void scheduleExpiration(String key, long ttlMilliseconds) {
-        ScheduledFuture future = executorService.schedule(() -> {
-            store.remove(key);
-            expirationTasks.remove(key);
-        }, ttlMilliseconds, TimeUnit.MILLISECONDS);
-        expirationTasks.put(key, future);
+    // Called with the shard write-locked; an expired entry counts as missing.
+    private Entry liveEntryLocked(int slot, Key key) {
+        Entry entry = slots[slot].get(key);
+        return entry != null && !entry.isExpired(System.currentTimeMillis()) ? entry : null;
     }
 
-    public Object get(String key) {
-        return store.get(key);
+    private static Long parseInteger(Object value) {
+        byte[] bytes = IntValue.bytesOf(value);
+        return bytes != null ? IntValue.parseCanonical(bytes) : null;
     }
 
-    public void delete(String key) {
-        cancelExpiration(key);
-        store.remove(key);
+    // Decimal floats only: Double.parseDouble alone would also take hex, "NaN", "Infinity" and surrounding spaces.
+    static Double parseFloat(byte[] bytes) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        for (byte b : bytes) {
+            if (!((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+' || b == 'e' || b == 'E')) {
+                return null;
+            }
+        }
+        try {
+            double parsed = Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+            return Double.isInfinite(parsed) ? null : parsed;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // A sorted set score: a decimal float, or inf, +inf or -inf in any case. Returns null otherwise.
+    static Double parseScore(byte[] bytes) {
+        String text = new String(bytes, StandardCharsets.US_ASCII);
+        if (text.equalsIgnoreCase("inf") || text.equalsIgnoreCase("+inf")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (text.equalsIgnoreCase("-inf")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return parseFloat(bytes);
+    }
+
+    // The shortest decimal that reads back as the same double, without exponent or trailing zeros.
+    static byte[] formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return (value > 0 ? "inf" : "-inf").getBytes(StandardCharsets.US_ASCII);
+        }
+        return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // MSET: every pair becomes visible at once.
+    public void putAll(List<Key> keys, List<byte[]> values) {
+        long[] locked = lockShards(keys);
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                putEntryLocked(new Entry(keys.get(i), IntValue.encode(values.get(i)), Entry.NO_EXPIRY));
+            }
+            CommandExecutor.propagateWrite();
+        } finally {
+            unlockShards(locked);
+        }
+    }
+
+    // MGET: the values of all keys at one point in time, null for missing keys.
+    public Object[] getAll(List<Key> keys) {
+        Object[] values = new Object[keys.size()];
+        Entry[] entries = new Entry[keys.size()];
+        long[] locked = lockShards(keys);
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                entries[i] = slots[slotOf(keys.get(i))].get(keys.get(i));
+            }
+        } finally {
+            unlockShards(locked);
+        }
+        for (int i = 0; i < entries.length; i++) {
+            values[i] = liveValue(entries[i]);
+        }
+        return values;
+    }
+
+    // DEL k1 k2 ...: returns how many live keys were removed.
+    public int deleteAll(List<Key> keys) {
+        int deleted = 0;
+        long[] locked = lockShards(keys);
+        try {
+            for (Key key : keys) {
+                if (deleteLocked(key)) {
+                    deleted++;
+                }
+            }
+            CommandExecutor.propagateWrite();
+        } finally {
+            unlockShards(locked);
+        }
+        return deleted;
+    }
+
+    // Moves the value and its expiry time from source to destination, replacing any destination value.
+    // Returns false if source does not exist.
+    public boolean rename(Key source, Key destination) {
+        long[] locked = lockShards(List.of(source, destination));
+        try {
+            Entry entry = slots[slotOf(source)].get(source);
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+            if (!source.equals(destination)) {
+                deleteLocked(source);
+                putEntryLocked(new Entry(destination, entry.value, entry.expiresAt));
+            }
+            CommandExecutor.propagateWrite();
+            return true;
+        } finally {
+            unlockShards(locked);
+        }
+    }
+
+    // Write-locks the distinct shards of keys in ascending order, so two multi-key commands cannot deadlock.
+    // Returns (shard index, stamp) pairs for unlockShards.
+    private long[] lockShards(List<Key> keys) {
+        int[] shardIndexes = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            shardIndexes[i] = shardOf(slotOf(keys.get(i)));
+        }
+        Arrays.sort(shardIndexes);
+        long[] locked = new long[shardIndexes.length * 2];
+        int count = 0;
+        for (int i = 0; i < shardIndexes.length; i++) {
+            if (i > 0 && shardIndexes[i] == shardIndexes[i - 1]) {
+                continue;
+            }
+            locked[count++] = shardIndexes[i];
+            locked[count++] = shards[shardIndexes[i]].lock.writeLock();
+        }
+        return Arrays.copyOf(locked, count);
+    }
+
+    private void unlockShards(long[] locked) {
+        for (int i = locked.length - 2; i >= 0; i -= 2) {
+            shards[(int) locked[i]].lock.unlockWrite(locked[i + 1]);
+        }
+    }
+
+    private void putEntry(Entry entry) {
+        StampedLock lock = shardFor(entry.key).lock;
+        long stamp = lock.writeLock();
+        try {
+            putEntryLocked(entry);
+            CommandExecutor.propagateWrite();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Called with the key's shard write-locked.
+    private void putEntryLocked(Entry entry) {
+        int slot = slotOf(entry.key);
+        Shard shard = shards[shardOf(slot)];
+        Snapshot snapshot = activeSnapshot;
+        Entry previous;
+        if (snapshot == null) {
+            previous = slots[slot].put(entry.key, entry);
+        } else {
+            Lock lock = snapshot.writerLock(slot);
+            lock.lock();
+            try {
+                snapshot.preserve(slot, entry.key, slots[slot].get(entry.key));
+                previous = slots[slot].put(entry.key, entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+        long delta = entry.estimatedSize();
+        if (previous != null) {
+            delta -= previous.estimatedSize();
+            Eviction.inherit(entry, previous);
+        }
+        shard.usedMemory += delta;
+        if (entry.isVolatile()) {
+            shard.expiryWheel.schedule(entry);
+        }
+    }
+
+    // Called with the key's shard write-locked. Returns whether a live key was removed.
+    private boolean deleteLocked(Key key) {
+        int slot = slotOf(key);
+        Entry current = slots[slot].get(key);
+        if (current == null) {
+            return false;
+        }
+        Snapshot snapshot = activeSnapshot;
+        if (snapshot == null) {
+            slots[slot].remove(key);
+        } else {
+            Lock lock = snapshot.writerLock(slot);
+            lock.lock();
+            try {
+                snapshot.preserve(slot, key, current);
+                slots[slot].remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        shards[shardOf(slot)].usedMemory -= current.estimatedSize();
+        return !current.isExpired(System.currentTimeMillis());
+    }
+
+    // Removes the entry only if it is still the one mapped to its key.
+    private boolean removeEntry(Entry entry) {
+        return removeEntry(entry, false);
+    }
+
+    private boolean removeEntry(Entry entry, boolean isEviction) {
+        int slot = slotOf(entry.key);
+        StampedLock shardLock = shards[shardOf(slot)].lock;
+        long stamp = shardLock.writeLock();
+        try {
+            if (slots[slot].get(entry.key) != entry) {
+                return false;
+            }
+            Snapshot snapshot = activeSnapshot;
+            if (snapshot == null) {
+                slots[slot].remove(entry.key, entry);
+            } else {
+                Lock lock = snapshot.writerLock(slot);
+                lock.lock();
+                try {
+                    snapshot.preserve(slot, entry.key, entry);
+                    slots[slot].remove(entry.key, entry);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            shards[shardOf(slot)].usedMemory -= entry.estimatedSize();
+            if (isEviction) {
+                CommandExecutor.propagateEviction(entry.key);
+            }
+            return true;
+        } finally {
+            shardLock.unlockWrite(stamp);
+        }
+    }
+
+    // Removes an eviction victim if it is still the entry mapped to its key, and propagates it as a DEL before
+    // the shard is unlocked, so a write to the key right after it cannot overtake it.
+    public boolean evict(Entry entry) {
+        return removeEntry(entry, true);
+    }
+
+    public boolean isCurrent(Entry entry) {
+        return slots[slotOf(entry.key)].get(entry.key) == entry;
+    }
+
+    // A random entry for eviction sampling: a random slot, or the next non-empty one, and a random entry in it.
+    public Entry randomEntry(ThreadLocalRandom random) {
+        int start = random.nextInt(SLOTS);
+        for (int i = 0; i < SLOTS; i++) {
+            Map<Key, Entry> slot = slots[(start + i) & (SLOTS - 1)];
+            int size = slot.size();
+            if (size == 0) {
+                continue;
+            }
+            int skip = random.nextInt(size);
+            for (Entry entry : slot.values()) {
+                if (skip-- == 0) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Estimated bytes held by the keyspace.
+    public long usedMemory() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += shard.usedMemory;
+        }
+        return used;
+    }
+
+    // Starts a point-in-time snapshot, or returns null if one is already running.
+    public Snapshot beginSnapshot() {
+        return beginSnapshot(1);
+    }
+
+    // A snapshot that can be read passes times, each read seeing the same point-in-time image.
+    public synchronized Snapshot beginSnapshot(int passes) {
+        if (activeSnapshot != null) {
+            return null;
+        }
+        activeSnapshot = new Snapshot(size(), passes);
+        return activeSnapshot;
+    }
+
+    public synchronized void endSnapshot(Snapshot snapshot) {
+        if (activeSnapshot == snapshot) {
+            activeSnapshot = null;
+        }
+    }
+
+    public List<Entry> snapshotSlot(Snapshot snapshot, int slot) {
+        return snapshot.copySlot(slot, slots[slot]);
+    }
+
+    // Removes every key, e.g. before a replica loads a full resync.
+    public void clear() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            StampedLock lock = shards[shardOf(slot)].lock;
+            long stamp = lock.writeLock();
+            try {
+                if (activeSnapshot == null) {
+                    for (Entry entry : slots[slot].values()) {
+                        shards[shardOf(slot)].usedMemory -= entry.estimatedSize();
+                    }
+                    slots[slot].clear();
+                } else {
+                    for (Key key : slots[slot].keySet()) {
+                        deleteLocked(key);
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<Key, Entry> slot : slots) {
+            size += slot.size();
+        }
+        return size;
+    }
+
+    // Every live key matching the pattern.
+    public void keys(GlobPattern pattern, List<Key> result) {
+        byte[] exactKey = pattern.exactKey();
+        if (exactKey != null) {
+            Key key = new Key(exactKey);
+            if (get(key) != null) {
+                result.add(key);
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map<Key, Entry> slot : slots) {
+            collect(slot, pattern, now, result);
+        }
+    }
+
+    // Walks whole slots from cursor until at least count keys were visited and returns the cursor to resume
+    // from, or 0 once every slot was walked. A key present for the whole iteration is returned at least once.
+    public int scan(int cursor, int count, GlobPattern pattern, List<Key> result) {
+        long now = System.currentTimeMillis();
+        int visited = 0;
+        int emptySlots = 0;
+        int maxEmptySlots = Math.max(count, 1) * EMPTY_SLOTS_PER_KEY;
+        int slot = cursor;
+        while (slot < SLOTS && visited < count && emptySlots < maxEmptySlots) {
+            int size = slots[slot].size();
+            if (size == 0) {
+                emptySlots++;
+            } else {
+                visited += size;
+                collect(slots[slot], pattern, now, result);
+            }
+            slot++;
+        }
+        return slot >= SLOTS ? 0 : slot;
+    }
+
+    private static void collect(Map<Key, Entry> slot, GlobPattern pattern, long now, List<Key> result) {
+        for (Entry entry : slot.values()) {
+            if (!entry.isExpired(now) && pattern.matches(entry.key.bytes())) {
+                result.add(entry.key);
+            }
+        }
     }
 
-    private void cancelExpiration(String key) {
-        ScheduledFuture future = expirationTasks.get(key);
-        if (future != null) {
-            future.cancel(false);
+    private void expireDueKeys() {
+        long now = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            try {
+                shard.expiryWheel.advance(now,
+                        this::isCurrent,
+                        this::removeEntry);
+            } catch (RuntimeException e) {
+                System.out.println("Failed to expire keys: " + e.getMessage());
+            }
         }
     }
 
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Decoder for the listpack blobs Redis 7 writes into RDB files for small lists, hashes and sorted sets, and
+// for stream nodes: a 6-byte header, then entries of [encoding + data][backlen], then 0xFF. Integer entries come
+// back as their decimal text, as RDB integer strings do. Writer builds one, for streams, whose RDB encoding has
+// no other form.
+public class Listpack {
+    private static final int HEADER_SIZE = 6;
+    private static final int END = 0xFF;
+
+    public static List<byte[]> decode(byte[] blob) throws IOException {
+        if (blob.length < HEADER_SIZE + 1) {
+            throw new IOException("Invalid RDB file: listpack too short");
+        }
+        int declared = (blob[4] & 0xFF) | (blob[5] & 0xFF) << 8;
+        // 65535 means the count did not fit and the entries must be counted
+        List<byte[]> entries = new ArrayList<>(declared == 0xFFFF ? 16 : declared);
+        int position = HEADER_SIZE;
+        while (true) {
+            if (position >= blob.length) {
+                throw new IOException("Invalid RDB file: listpack without end marker");
+            }
+            int encoding = blob[position] & 0xFF;
+            if (encoding == END) {
+                return entries;
+            }
+            int start = position;
+            if ((encoding & 0x80) == 0) {
+                // 7-bit unsigned integer
+                entries.add(integer(encoding & 0x7F));
+                position += 1;
+            } else if ((encoding & 0xC0) == 0x80) {
+                int length = encoding & 0x3F;
+                entries.add(slice(blob, position + 1, length));
+                position += 1 + length;
+            } else if ((encoding & 0xE0) == 0xC0) {
+                entries.add(integer(signExtend(((encoding & 0x1F) << 8) | (blob[position + 1] & 0xFF), 13)));
+                position += 2;
+            } else if ((encoding & 0xF0) == 0xE0) {
+                int length = ((encoding & 0x0F) << 8) | (blob[position + 1] & 0xFF);
+                entries.add(slice(blob, position + 2, length));
+                position += 2 + length;
+            } else {
+                switch (encoding) {
+                    case 0xF0 -> {
+                        int length = (int) littleEndian(blob, position + 1, 4);
+                        entries.add(slice(blob, position + 5, length));
+                        position += 5 + length;
+                    }
+                    case 0xF1 -> {
+                        entries.add(integer(signExtend(littleEndian(blob, position + 1, 2), 16)));
+                        position += 3;
+                    }
+                    case 0xF2 -> {
+                        entries.add(integer(signExtend(littleEndian(blob, position + 1, 3), 24)));
+                        position += 4;
+                    }
+                    case 0xF3 -> {
+                        entries.add(integer((int) littleEndian(blob, position + 1, 4)));
+                        position += 5;
+                    }
+                    case 0xF4 -> {
+                        entries.add(integer(littleEndian(blob, position + 1, 8)));
+                        position += 9;
+                    }
+                    default -> throw new IOException("Invalid RDB file: unknown listpack encoding " + encoding);
+                }
+            }
+            position += backlenSize(position - start);
+        }
+    }
+
+    // Bytes of the back-length that follows an entry of entryLength bytes: 7 bits per byte, with Redis's bounds.
+    private static int backlenSize(int entryLength) {
+        if (entryLength <= 127) {
+            return 1;
+        } else if (entryLength < 16383) {
+            return 2;
+        } else if (entryLength < 2097151) {
+            return 3;
+        } else if (entryLength < 268435455) {
+            return 4;
+        }
+        return 5;
+    }
+
+    static final class Writer {
+        private byte[] data = new byte[256];
+        private int position = HEADER_SIZE;
+        private int count;
+
+        Writer addString(byte[] value) {
+            int length = value.length;
+            int start = position;
+            if (length < 64) {
+                ensureRoom(1 + length + 5);
+                data[position++] = (byte) (0x80 | length);
+            } else if (length < 4096) {
+                ensureRoom(2 + length + 5);
+                data[position++] = (byte) (0xE0 | (length >> 8));
+                data[position++] = (byte) length;
+            } else {
+                ensureRoom(5 + length + 5);
+                data[position++] = (byte) 0xF0;
+                putLittleEndian(length, 4);
+            }
+            System.arraycopy(value, 0, data, position, length);
+            position += length;
+            return finishEntry(start);
+        }
+
+        Writer addInteger(long value) {
+            ensureRoom(9 + 5);
+            int start = position;
+            if (value >= 0 && value <= 127) {
+                data[position++] = (byte) value;
+            } else if (value >= -4096 && value <= 4095) {
+                data[position++] = (byte) (0xC0 | ((value >> 8) & 0x1F));
+                data[position++] = (byte) value;
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                data[position++] = (byte) 0xF1;
+                putLittleEndian(value, 2);
+            } else if (value >= -(1 << 23) && value < (1 << 23)) {
+                data[position++] = (byte) 0xF2;
+                putLittleEndian(value, 3);
+            } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                data[position++] = (byte) 0xF3;
+                putLittleEndian(value, 4);
+            } else {
+                data[position++] = (byte) 0xF4;
+                putLittleEndian(value, 8);
+            }
+            return finishEntry(start);
+        }
+
+        byte[] toBytes() {
+            ensureRoom(1);
+            data[position++] = (byte) END;
+            int total = position;
+            position = 0;
+            putLittleEndian(total, 4);
+            putLittleEndian(Math.min(count, 0xFFFF), 2);
+            position = total;
+            return Arrays.copyOf(data, total);
+        }
+
+        // Appends the back-length, most significant 7 bits first so it reads backwards from the entry's end.
+        private Writer finishEntry(int start) {
+            int length = position - start;
+            int bytes = backlenSize(length);
+            for (int i = bytes - 1; i >= 0; i--) {
+                int digit = (length >>> (7 * i)) & 0x7F;
+                data[position++] = (byte) (i == bytes - 1 ? digit : digit | 0x80);
+            }
+            count++;
+            return this;
+        }
+
+        private void putLittleEndian(long value, int bytes) {
+            for (int i = 0; i < bytes; i++) {
+                data[position++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void ensureRoom(int bytes) {
+            if (position + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, position + bytes));
+            }
+        }
+    }
+
+    static long littleEndian(byte[] blob, int position, int bytes) throws IOException {
+        if (position + bytes > blob.length) {
+            throw new IOException("Invalid RDB file: truncated packed entry");
+        }
+        long value = 0;
+        for (int i = bytes - 1; i >= 0; i--) {
+            value = (value << 8) | (blob[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    static byte[] slice(byte[] blob, int position, int length) throws IOException {
+        if (length < 0 || position + length > blob.length) {
+            throw new IOException("Invalid RDB file: truncated packed entry");
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(blob, position, bytes, 0, length);
+        return bytes;
+    }
+
+    static byte[] integer(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+}
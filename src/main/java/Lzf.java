@@ -0,0 +1,43 @@
+import java.io.IOException;
+
+// LZF decompressor for RDB strings saved with rdbcompression enabled.
+public class Lzf {
+    public static byte[] decompress(byte[] input, int outputLength) throws IOException {
+        byte[] output = new byte[outputLength];
+        int in = 0;
+        int out = 0;
+        try {
+            while (in < input.length) {
+                int ctrl = input[in++] & 0xFF;
+                if (ctrl < 32) {
+                    // literal run of ctrl + 1 bytes
+                    int run = ctrl + 1;
+                    System.arraycopy(input, in, output, out, run);
+                    in += run;
+                    out += run;
+                } else {
+                    // back reference: 3 bit length (7 means an extra length byte) and 13 bit distance
+                    int length = ctrl >> 5;
+                    if (length == 7) {
+                        length += input[in++] & 0xFF;
+                    }
+                    int ref = out - ((ctrl & 0x1F) << 8) - (input[in++] & 0xFF) - 1;
+                    if (ref < 0) {
+                        throw new IOException("Invalid LZF data: back reference before start of output");
+                    }
+                    length += 2;
+                    // byte by byte because the reference may overlap the bytes being written
+                    for (int i = 0; i < length; i++) {
+                        output[out++] = output[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid LZF data: truncated or longer than expected");
+        }
+        if (out != outputLength) {
+            throw new IOException("Invalid LZF data: expected " + outputLength + " bytes but got " + out);
+        }
+        return output;
+    }
+}
@@ -1,64 +1,139 @@
 import com.beust.jcommander.JCommander;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Base64;
 import java.io.FileOutputStream;
 import java.io.File;
 
 public class Main {
-    private static final int THREAD_POOL_SIZE = 10;
     public static String rdbFilePath = null;
     private static int port;
+    private static int ioThreads;
+    private static boolean virtualThreads;
     static String masterHostAndPort;
-    public static String masterReplId;
-    public static int masterReplOffset;
+    private static final long RECONNECT_MIN_BACKOFF_MILLIS = 100;
+    private static final long RECONNECT_MAX_BACKOFF_MILLIS = 5000;
+    // on a master: this server's replication id and the length of its replication stream;
+    // on a replica: the master's id and how much of its stream has been applied here
+    public static volatile String masterReplId;
+    public static volatile long masterReplOffset;
+    public static ReplicationBacklog backlog;
+    private static Socket masterSocket;
     public static DataInputStream masterInputStream;
-    public static DataOutputStream masterOutputStream;
-    public static ConcurrentHashMap<DataOutputStream, DataInputStream> replicaMap = new ConcurrentHashMap<>();
+    public static RespEncoder masterOutputStream;
+    public static Set<Replica> replicas = ConcurrentHashMap.newKeySet();
 
     public static void main(String[] args){
           setup(args);
-          ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-          System.out.println("Starting server on port " + port);
           if (masterHostAndPort != null) {
-              threadPool.execute(() -> listenToMaster());
+              if (virtualThreads) {
+                  Thread.ofVirtual().name("master-link").start(Main::listenToMaster);
+              } else {
+                  new Thread(Main::listenToMaster, "master-link").start();
+              }
           }
-          try (ServerSocket serverSocket = new ServerSocket(port)) {
-              serverSocket.setReuseAddress(true);
-              while (true) {
-                  // Wait for connection from client.
-                  Socket clientSocket = serverSocket.accept();
-                  System.out.println("Accepted connection from client");
-                  threadPool.execute(new ClientHandler(clientSocket));
+          try {
+              if (virtualThreads) {
+                  System.out.println("Starting server on port " + port + " with a virtual thread per connection");
+                  runVirtualThreadServer();
+              } else {
+                  System.out.println("Starting server on port " + port + " with " + ioThreads + " I/O threads");
+                  new NioServer(port, ioThreads).run();
               }
-
-            } catch (IOException e) {
+          } catch (IOException e) {
               System.out.println("IOException: " + e.getMessage());
-            } finally {
-              threadPool.shutdown();
+          }
+    }
+
+    private static void runVirtualThreadServer() throws IOException {
+        Thread.Builder clientThreads = Thread.ofVirtual().name("client-", 0);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            serverSocket.setReuseAddress(true);
+            while (true) {
+                // Wait for connection from client.
+                Socket clientSocket = serverSocket.accept();
+                clientSocket.setTcpNoDelay(true);
+                System.out.println("Accepted connection from client");
+                clientThreads.start(new ClientHandler(clientSocket));
             }
+        }
     }
 
+    // Applies the master's replication stream, reconnecting with backoff whenever the link drops.
     private static void listenToMaster() {
-        System.out.println("Listening to master");
+        String host = masterHostAndPort.split(" ")[0];
+        int port = Integer.parseInt(masterHostAndPort.split(" ")[1]);
+        long backoff = RECONNECT_MIN_BACKOFF_MILLIS;
         while (true) {
+            if (masterInputStream != null) {
+                System.out.println("Listening to master");
+                backoff = RECONNECT_MIN_BACKOFF_MILLIS;
+                applyReplicationStream();
+                closeMasterLink();
+            }
             try {
-                Command command = CommandParser.parse(masterInputStream);
-                System.out.println("Received command from master: " + command.getCommand());
-                CommandExecutor.execute(command, masterOutputStream, true);
-            } catch (Exception e) {
-                System.out.println("Failed to read from master: " + e.getMessage());
-                break;
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_BACKOFF_MILLIS);
+            sendHandshakeToMaster(host, port);
+        }
+    }
+
+    // The replication offset advances by the exact size of each frame once its command has been applied,
+    // so a GETACK reports the stream up to, but not including, itself.
+    private static void applyReplicationStream() {
+        RespParser parser = new RespParser();
+        try {
+            while (parser.readFrom(masterInputStream) != -1) {
+                Command command;
+                while ((command = parser.next()) != null) {
+                    // executors rely on the command table's arity, which nothing else checks on this stream
+                    if (command.getCommand() == null || !command.getCommand().acceptsArgCount(command.getArgCount())) {
+                        System.out.println("Ignoring malformed command from master: " + command.getNameText());
+                        masterReplOffset += command.wireLength();
+                        continue;
+                    }
+                    // under the write gate like client writes, so a local BGSAVE snapshot never starts mid-command
+                    FullSync.writeGate.readLock().lock();
+                    try {
+                        CommandExecutor.execute(command, masterOutputStream, true);
+                    } finally {
+                        FullSync.writeGate.readLock().unlock();
+                    }
+                    if (command.getCommand().isWrite()) {
+                        AppendOnlyFile.append(AppendOnlyFile.toLogEntry(command));
+                    }
+                    masterReplOffset += command.wireLength();
+                }
+                masterOutputStream.flush();
+            }
+            System.out.println("Master closed the replication link");
+        } catch (Exception e) {
+            System.out.println("Failed to read from master: " + e.getMessage());
+        }
+    }
+
+    private static void closeMasterLink() {
+        masterInputStream = null;
+        masterOutputStream = null;
+        try {
+            masterSocket.close();
+        } catch (IOException e) {
+            // already broken
         }
     }
 
@@ -76,18 +151,36 @@ public class Main {
             createDefaultRdbFile(rdbFilePath);
         }
         port = commandLineArgs.port;
+        ioThreads = commandLineArgs.ioThreads;
+        switch (commandLineArgs.ioMode.toLowerCase()) {
+            case "nio" -> virtualThreads = false;
+            case "virtual" -> virtualThreads = true;
+            default -> throw new IllegalArgumentException("Invalid --io-mode: " + commandLineArgs.ioMode);
+        }
+        Eviction.configure(commandLineArgs.maxmemory, commandLineArgs.maxmemoryPolicy, commandLineArgs.maxmemorySamples);
+        Hash.configure(commandLineArgs.hashMaxListpackEntries, commandLineArgs.hashMaxListpackValue);
+        // a replica loads its own file first; a full resync from the master then replaces it.
+        // With the append only file on, the log wins over the RDB file when both exist.
+        if (commandLineArgs.appendonly.equalsIgnoreCase("yes")) {
+            String dir = commandLineArgs.dir != null ? commandLineArgs.dir : "persistence";
+            loadAppendOnlyFile(dir + "/" + commandLineArgs.appendfilename, commandLineArgs.appendfsync);
+        } else {
+            loadRdbFileIntoKeyValueStore(rdbFilePath);
+        }
+
+        backlog = new ReplicationBacklog(commandLineArgs.replBacklogSize);
+        Replica.configureOutputLimits(commandLineArgs.replicaOutputBufferLimit);
         masterHostAndPort = commandLineArgs.replicaof;
         if (masterHostAndPort != null) {
             String host = masterHostAndPort.split(" ")[0];
             int port = Integer.parseInt(masterHostAndPort.split(" ")[1]);
             sendHandshakeToMaster(host, port);
         } else {
-            replicaMap = new ConcurrentHashMap<>();
-            masterReplId = "8371b4fb1155b71f4a04d3e1bc3e18c4a990aeeb";
+            replicas = ConcurrentHashMap.newKeySet();
+            masterReplId = newReplicationId();
             masterReplOffset = 0;
         }
 
-        loadRdbFileIntoKeyValueStore(rdbFilePath);
     }
 
     private static void createDefaultRdbFile(String rdbFilePath) {
@@ -103,29 +196,61 @@ public class Main {
         }
     }
 
+    private static void loadAppendOnlyFile(String aofFilePath, String appendfsync) {
+        boolean replayed;
+        try {
+            replayed = AppendOnlyFile.replay(aofFilePath);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to load the append only file: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (!replayed) {
+            loadRdbFileIntoKeyValueStore(rdbFilePath);
+        }
+        try {
+            AppendOnlyFile.open(aofFilePath, appendfsync);
+        } catch (IOException e) {
+            System.out.println("Failed to open the append only file: " + e.getMessage());
+            System.exit(1);
+        }
+        // a new log starts from whatever the RDB file held
+        if (!replayed && KeyValueStore.getInstance().size() > 0) {
+            AppendOnlyFile.backgroundRewrite();
+        }
+    }
+
     private static void loadRdbFileIntoKeyValueStore(String rdbFilePath) {
         KeyValueStore keyValueStore = KeyValueStore.getInstance();
-        RdbFileReader rdbFileReader = new RdbFileReader();
+        long start = System.currentTimeMillis();
         try {
-            List<RdbEntry> entries = rdbFileReader.getEntries(rdbFilePath);
-            for (RdbEntry entry : entries) {
-                if (entry.getExpiryTime() > 0) {
-                    keyValueStore.put(entry.getKey(), entry.getValue(), entry.getExpiryTime() - System.currentTimeMillis());
-                } else {
-                    keyValueStore.put(entry.getKey(), entry.getValue());
-                }
-            }
-            System.out.println("RDB file loaded into KeyValueStore");
+            // entries go straight into the store as they are decoded instead of being collected first
+            RdbFileReader.load(rdbFilePath, entry -> keyValueStore.restore(new Key(entry.getKey()), entry.getValue(), entry.getExpiryTime()));
+            System.out.println("RDB file loaded into KeyValueStore: " + keyValueStore.size() + " keys in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (NoSuchFileException e) {
+            System.out.println("No RDB file at " + rdbFilePath + ", starting with an empty keyspace");
         } catch (IOException e) {
+            // entries are loaded as they stream in, so a corrupt file would leave a partial keyspace behind
             System.out.println("Failed to load RDB file into KeyValueStore: " + e.getMessage());
+            System.exit(1);
         }
     }
 
+    // A fresh 40 hex character id, so replicas can tell this run's replication stream from any other.
+    private static String newReplicationId() {
+        byte[] bytes = new byte[20];
+        new SecureRandom().nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    // Connects to the master and asks to continue from where this replica left off, falling back to a full
+    // resync when the master cannot. Failures are logged and the master link retries.
     public static void sendHandshakeToMaster(String host, int port) {
+        Socket socket = null;
         try {
             System.out.println("Sending handshake to master");
-            Socket socket = new Socket(host, port);
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            socket = new Socket(host, port);
+            RespEncoder out = new RespEncoder(socket.getOutputStream());
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
             sendCommand(out, "PING");
@@ -137,48 +262,80 @@ public class Main {
             sendCommand(out, "REPLCONF", "capa", "psync2");
             validateResponse(in, "OK");
 
-            sendCommand(out, "PSYNC", "?", "-1");
+            if (masterReplId != null) {
+                // the offset of the next byte needed, counting from 1
+                sendCommand(out, "PSYNC", masterReplId, String.valueOf(masterReplOffset + 1));
+            } else {
+                sendCommand(out, "PSYNC", "?", "-1");
+            }
 
-            List<String> response = CommandParser.process(in, new ArrayList<>());
-            if (response.get(0).startsWith("FULLRESYNC")) {
+            String response = new String(CommandParser.process(in, new ArrayList<>()).get(0), StandardCharsets.UTF_8);
+            if (response.startsWith("CONTINUE")) {
+                System.out.println("Received CONTINUE response from master, resuming at offset " + masterReplOffset);
+                String[] parts = response.split(" ");
+                if (parts.length > 1) {
+                    masterReplId = parts[1];
+                }
+            } else if (response.startsWith("FULLRESYNC")) {
                 System.out.println("Received FULLRESYNC response from master");
+                String[] parts = response.split(" ");
+                // until the new dataset is fully loaded this replica can only ask for another full resync
+                masterReplId = null;
+                loadRdbFromMaster(in);
+                masterReplId = parts[1];
+                masterReplOffset = Long.parseLong(parts[2]);
 
-                // Read the RDB file from the master. It will be of the form $<length>\r\n<bytes>
-                in.readByte(); // Consume the '$' byte
-                int rdbLength = CommandParser.readIntCRLF(in);
-                byte[] rdbFileData = new byte[rdbLength];
-                in.readFully(rdbFileData);
-            
-                // Write the RDB file to disk
-                CommandExecutor.writeRdbFile(rdbFileData, "dump.rdb");
-                
-                System.out.println("RDB file loaded successfully");
-
-                CommandParser.totalCommandBytesProcessed = 0;
             } else {
-                throw new RuntimeException("Unexpected response from master: " + response.get(0));
+                throw new RuntimeException("Unexpected response from master: " + response);
             }
 
+            masterSocket = socket;
             masterInputStream = in;
             masterOutputStream = out;
 
             System.out.println("Handshake with master successful");
 
-        } catch (IOException e) {
-            System.out.println("Failed to send handshake to master: " + e.getMessage());
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            System.out.println("Failed to send handshake to master: " + e.getMessage());
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException closeFailure) {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+    // The RDB follows FULLRESYNC as $<length>\r\n<bytes>. It is decoded straight off the socket into the
+    // keyspace, which replaces the old dataset, without holding the payload in memory or writing it to disk.
+    private static void loadRdbFromMaster(DataInputStream in) throws IOException {
+        if (in.readByte() != CommandParser.DOLLAR_BYTE) {
+            throw new IOException("Expected the RDB payload after FULLRESYNC");
+        }
+        long rdbLength = CommandParser.readLongCRLF(in);
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        long start = System.currentTimeMillis();
+        keyValueStore.clear();
+        // the reader never consumes more than rdbLength bytes, so the replication stream after it stays unread
+        new RdbFileReader(Channels.newChannel(in), rdbLength)
+                .read(entry -> keyValueStore.restore(new Key(entry.getKey()), entry.getValue(), entry.getExpiryTime()));
+        System.out.println("Loaded " + rdbLength + " byte RDB from master: " + keyValueStore.size() + " keys in " + (System.currentTimeMillis() - start) + " ms");
+        // the old log describes the dataset that was just replaced
+        if (AppendOnlyFile.isEnabled() && !AppendOnlyFile.backgroundRewrite()) {
+            System.out.println("Append only file rewrite already in progress; the log may not match the new dataset until the next rewrite");
         }
     }
 
-    private static void sendCommand(DataOutputStream out, String... command) throws IOException {
-        CommandExecutor.writeArray(out, command);
+    private static void sendCommand(RespEncoder out, String... command) throws IOException {
+        out.writeArray(command);
+        out.flush();
     }
 
     private static void validateResponse(DataInputStream in, String expectedResponse) throws Exception {
-        List<String> response = CommandParser.process(in, new ArrayList<>());
-        if (!response.get(0).equals(expectedResponse)) {
-            throw new RuntimeException("Failed to handshake with master: expected " + expectedResponse + ", received " + response.get(0) + " instead");
+        String response = new String(CommandParser.process(in, new ArrayList<>()).get(0), StandardCharsets.UTF_8);
+        if (!response.equals(expectedResponse)) {
+            throw new RuntimeException("Failed to handshake with master: expected " + expectedResponse + ", received " + response + " instead");
         }
     }
 
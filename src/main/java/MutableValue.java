@@ -0,0 +1,12 @@
+// A value that commands change in place, such as a list. The keyspace copies it before a change while a snapshot
+// still needs the old contents, keeps its memory estimate current, and deletes the key once it is empty.
+public interface MutableValue {
+    // the TYPE reply
+    String typeName();
+
+    MutableValue copy();
+
+    boolean isEmpty();
+
+    long estimatedSize();
+}
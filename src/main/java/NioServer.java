@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Accepts connections on the calling thread and shards them round-robin across a fixed set of event loops.
+public class NioServer {
+    private final int port;
+    private final EventLoop[] eventLoops;
+
+    public NioServer(int port, int ioThreads) throws IOException {
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("io-" + i);
+        }
+    }
+
+    public void run() throws IOException {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                System.out.println("Accepted connection from client");
+                eventLoops[next].register(clientChannel);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+
+// Coordinates RDB snapshots for SAVE, BGSAVE and LASTSAVE. Only one snapshot runs at a time.
+public class Persistence {
+    private static volatile long lastSaveTime = System.currentTimeMillis() / 1000;
+
+    // Writes a snapshot from the calling thread; other clients keep reading and writing meanwhile.
+    // Returns false if another snapshot is already in progress.
+    public static boolean save() throws IOException {
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Snapshot snapshot = beginSnapshot(keyValueStore);
+        if (snapshot == null) {
+            return false;
+        }
+        try {
+            writeSnapshot(keyValueStore, snapshot);
+        } finally {
+            keyValueStore.endSnapshot(snapshot);
+        }
+        return true;
+    }
+
+    // Starts a snapshot on a background thread. Returns false if another snapshot is already in progress.
+    public static boolean backgroundSave() {
+        KeyValueStore keyValueStore = KeyValueStore.getInstance();
+        Snapshot snapshot = beginSnapshot(keyValueStore);
+        if (snapshot == null) {
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                writeSnapshot(keyValueStore, snapshot);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Background saving failed: " + e.getMessage());
+            } finally {
+                keyValueStore.endSnapshot(snapshot);
+            }
+        }, "rdb-bgsave");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    // Between two write commands, never during one: counters are updated in place while no snapshot is active.
+    private static Snapshot beginSnapshot(KeyValueStore keyValueStore) {
+        FullSync.writeGate.writeLock().lock();
+        try {
+            return keyValueStore.beginSnapshot();
+        } finally {
+            FullSync.writeGate.writeLock().unlock();
+        }
+    }
+
+    public static long getLastSaveTime() {
+        return lastSaveTime;
+    }
+
+    private static void writeSnapshot(KeyValueStore keyValueStore, Snapshot snapshot) throws IOException {
+        long start = System.currentTimeMillis();
+        RdbFileWriter.save(keyValueStore, snapshot, Main.rdbFilePath);
+        lastSaveTime = System.currentTimeMillis() / 1000;
+        System.out.println("DB saved on disk to " + Main.rdbFilePath + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
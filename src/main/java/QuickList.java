@@ -0,0 +1,366 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+// Redis-style quicklist: a doubly linked list of nodes, each packing its elements into one byte array as
+// [varint length][bytes][the length's varint bytes reversed], so a node can be walked from either end.
+// An element costs its bytes plus two bytes of framing up to 127 bytes long, instead of an object per element.
+// Each node keeps free space at both ends so pushes and pops at either end do not shift its contents.
+// Not thread-safe; the keyspace only touches it with the key's shard locked.
+public class QuickList implements MutableValue, Iterable<byte[]> {
+    private static final int NODE_MAX_BYTES = 8 * 1024;
+    private static final int NODE_MIN_BYTES = 64;
+    // headers and fields of a node and its array, and of the list itself
+    private static final long NODE_OVERHEAD = 40 + 16;
+    private static final long LIST_OVERHEAD = 40;
+
+    private static final class Node {
+        Node prev;
+        Node next;
+        byte[] data;
+        // elements occupy data[start, end)
+        int start;
+        int end;
+        int count;
+
+        Node(int capacity, boolean atFront) {
+            data = new byte[capacity];
+            start = atFront ? capacity : 0;
+            end = start;
+        }
+
+        int used() {
+            return end - start;
+        }
+    }
+
+    private Node head;
+    private Node tail;
+    private long size;
+    private int nodes;
+    private long nodeBytes;
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public String typeName() {
+        return "list";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public long estimatedSize() {
+        return LIST_OVERHEAD + nodes * NODE_OVERHEAD + nodeBytes;
+    }
+
+    @Override
+    public QuickList copy() {
+        // node by node, trimming the free space
+        QuickList copy = new QuickList();
+        for (Node node = head; node != null; node = node.next) {
+            Node clone = new Node(node.used(), false);
+            System.arraycopy(node.data, node.start, clone.data, 0, node.used());
+            clone.end = node.used();
+            clone.count = node.count;
+            clone.prev = copy.tail;
+            if (copy.tail != null) {
+                copy.tail.next = clone;
+            } else {
+                copy.head = clone;
+            }
+            copy.tail = clone;
+            copy.nodes++;
+            copy.nodeBytes += clone.data.length;
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    public void pushHead(byte[] value) {
+        pushHead(value, 0, value.length);
+    }
+
+    public void pushTail(byte[] value) {
+        pushTail(value, 0, value.length);
+    }
+
+    // Pushes value[offset, offset + length), e.g. straight from a command's read buffer.
+    public void pushHead(byte[] value, int offset, int length) {
+        int encoded = encodedSize(length);
+        Node node = head;
+        if (node == null || node.used() + encoded > NODE_MAX_BYTES) {
+            node = new Node(Math.max(NODE_MIN_BYTES, encoded), true);
+            nodes++;
+            nodeBytes += node.data.length;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            } else {
+                tail = node;
+            }
+            head = node;
+        } else if (node.start < encoded) {
+            makeRoom(node, encoded, true);
+        }
+        node.start -= encoded;
+        writeElement(node.data, node.start, value, offset, length);
+        node.count++;
+        size++;
+    }
+
+    public void pushTail(byte[] value, int offset, int length) {
+        int encoded = encodedSize(length);
+        Node node = tail;
+        if (node == null || node.used() + encoded > NODE_MAX_BYTES) {
+            node = new Node(Math.max(NODE_MIN_BYTES, encoded), false);
+            nodes++;
+            nodeBytes += node.data.length;
+            node.prev = tail;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+        } else if (node.data.length - node.end < encoded) {
+            makeRoom(node, encoded, false);
+        }
+        writeElement(node.data, node.end, value, offset, length);
+        node.end += encoded;
+        node.count++;
+        size++;
+    }
+
+    // Returns the first element, or null if the list is empty.
+    public byte[] popHead() {
+        Node node = head;
+        if (node == null) {
+            return null;
+        }
+        long header = readVarint(node.data, node.start);
+        int length = (int) (header >>> 32);
+        int valueStart = (int) header;
+        byte[] value = Arrays.copyOfRange(node.data, valueStart, valueStart + length);
+        node.start = valueStart + length + varintSize(length);
+        removedFrom(node);
+        return value;
+    }
+
+    // Returns the last element, or null if the list is empty.
+    public byte[] popTail() {
+        Node node = tail;
+        if (node == null) {
+            return null;
+        }
+        long trailer = readVarintBackwards(node.data, node.end - 1);
+        int length = (int) (trailer >>> 32);
+        int valueEnd = (int) trailer + 1;
+        byte[] value = Arrays.copyOfRange(node.data, valueEnd - length, valueEnd);
+        node.end = valueEnd - length - varintSize(length);
+        removedFrom(node);
+        return value;
+    }
+
+    // The element at index, counting from the tail when negative, or null if out of range.
+    public byte[] get(long index) {
+        if (index < 0) {
+            index += size;
+        }
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        byte[][] found = new byte[1][];
+        range(index, index, value -> found[0] = value);
+        return found[0];
+    }
+
+    // Hands each element from start to stop inclusive, with LRANGE's index rules, to the consumer in order.
+    public void range(long start, long stop, Consumer<byte[]> consumer) {
+        if (start < 0) {
+            start = Math.max(0, start + size);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            return;
+        }
+        // skip whole nodes before the first element, from whichever end is nearer
+        Node node;
+        long skipped;
+        if (start <= size / 2) {
+            node = head;
+            skipped = 0;
+            while (skipped + node.count <= start) {
+                skipped += node.count;
+                node = node.next;
+            }
+        } else {
+            node = tail;
+            skipped = size - node.count;
+            while (skipped > start) {
+                node = node.prev;
+                skipped -= node.count;
+            }
+        }
+        long index = skipped;
+        int position = node.start;
+        while (index <= stop) {
+            if (position == node.end) {
+                node = node.next;
+                position = node.start;
+                continue;
+            }
+            long header = readVarint(node.data, position);
+            int length = (int) (header >>> 32);
+            int valueStart = (int) header;
+            if (index >= start) {
+                consumer.accept(Arrays.copyOfRange(node.data, valueStart, valueStart + length));
+            }
+            position = valueStart + length + varintSize(length);
+            index++;
+        }
+    }
+
+    // Head to tail.
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iterator<>() {
+            private Node node = head;
+            private int position = head != null ? head.start : 0;
+
+            @Override
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                long header = readVarint(node.data, position);
+                int length = (int) (header >>> 32);
+                int valueStart = (int) header;
+                byte[] value = Arrays.copyOfRange(node.data, valueStart, valueStart + length);
+                position = valueStart + length + varintSize(length);
+                if (position == node.end) {
+                    node = node.next;
+                    position = node != null ? node.start : 0;
+                }
+                return value;
+            }
+        };
+    }
+
+    private void removedFrom(Node node) {
+        node.count--;
+        size--;
+        if (node.count > 0) {
+            return;
+        }
+        nodes--;
+        nodeBytes -= node.data.length;
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            tail = node.prev;
+        }
+    }
+
+    // Grows the node up to NODE_MAX_BYTES if needed and re-centres its contents so encoded bytes fit at the
+    // requested end, leaving half of the remaining free space at each end.
+    private void makeRoom(Node node, int encoded, boolean atFront) {
+        int used = node.used();
+        int capacity = node.data.length;
+        if (used + encoded > capacity) {
+            capacity = Math.min(NODE_MAX_BYTES, Math.max(capacity * 2, used + encoded));
+        }
+        int free = capacity - used - encoded;
+        int newStart = atFront ? encoded + free / 2 : free / 2;
+        byte[] data = capacity == node.data.length ? node.data : new byte[capacity];
+        System.arraycopy(node.data, node.start, data, newStart, used);
+        nodeBytes += capacity - node.data.length;
+        node.data = data;
+        node.start = newStart;
+        node.end = newStart + used;
+    }
+
+    private static int encodedSize(int length) {
+        return 2 * varintSize(length) + length;
+    }
+
+    private static void writeElement(byte[] data, int position, byte[] value, int offset, int length) {
+        position = writeVarint(data, position, length);
+        System.arraycopy(value, offset, data, position, length);
+        position += length;
+        // the same varint bytes in reverse order, read from the end back towards the value
+        int lengthBytes = varintSize(length);
+        int written = writeVarint(data, position, length);
+        for (int i = 0; i < lengthBytes / 2; i++) {
+            byte swap = data[position + i];
+            data[position + i] = data[written - 1 - i];
+            data[written - 1 - i] = swap;
+        }
+    }
+
+    static int varintSize(int value) {
+        int bytes = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    static int writeVarint(byte[] data, int position, int value) {
+        while (value >= 0x80) {
+            data[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+
+    // Returns the value in the high 32 bits and the position just after the varint in the low 32 bits.
+    static long readVarint(byte[] data, int position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[position++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ((long) value << 32) | position;
+            }
+            shift += 7;
+        }
+    }
+
+    // Reads a reversed varint ending at position; returns the value in the high 32 bits and the position just
+    // before the varint in the low 32 bits.
+    private static long readVarintBackwards(byte[] data, int position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[position--];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return ((long) value << 32) | (position & 0xFFFFFFFFL);
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+// RdbEntry class to hold key, value, and expiry time
+public class RdbEntry {
+    private final byte[] key;
+    private final Object value;
+    private final long expiryTime;
+
+    public RdbEntry(byte[] key, Object value, long expiryTime) {
+        this.key = key;
+        this.value = value;
+        this.expiryTime = expiryTime;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+}
@@ -1,310 +1,473 @@
-import java.io.DataInputStream;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PushbackInputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.function.Consumer;
 
+// Streaming RDB decoder. Reads any channel through one large buffer, decodes every length and string encoding
+// (including LZF), hands each entry to a callback as it is parsed and verifies the CRC64 trailer.
 public class RdbFileReader {
-    private static final byte[] HEADER_MAGIC = "REDIS".getBytes();
-    private static final byte[] HEADER_VERSION = "0011".getBytes();
+    private static final byte[] HEADER_MAGIC = "REDIS".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_SUPPORTED_VERSION = 12;
+    private static final int BUFFER_SIZE = 1024 * 1024;
 
-    public List<RdbEntry> getEntries(String filePath) throws IOException {
-        List<RdbEntry> entries = new ArrayList<>();
-        try (PushbackInputStream in = new PushbackInputStream(new DataInputStream(new FileInputStream(filePath)))) {
-            parseHeader(in);
-            parseMetadata(in);
-            parseDatabase(in, entries);
-            parseEndOfFile(in);
-        }
-        return entries;
+    private static final int OPCODE_FUNCTION = 0xF5;
+    private static final int OPCODE_MODULE_AUX = 0xF7;
+    private static final int OPCODE_IDLE = 0xF8;
+    private static final int OPCODE_FREQ = 0xF9;
+    private static final int OPCODE_AUX = 0xFA;
+    private static final int OPCODE_RESIZEDB = 0xFB;
+    private static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    private static final int OPCODE_EXPIRETIME = 0xFD;
+    private static final int OPCODE_SELECTDB = 0xFE;
+    private static final int OPCODE_EOF = 0xFF;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LIST = 1;
+    private static final int TYPE_ZSET = 3;
+    private static final int TYPE_HASH = 4;
+    private static final int TYPE_ZSET_2 = 5;
+    private static final int TYPE_LIST_ZIPLIST = 10;
+    private static final int TYPE_ZSET_ZIPLIST = 12;
+    private static final int TYPE_HASH_ZIPLIST = 13;
+    private static final int TYPE_LIST_QUICKLIST = 14;
+    private static final int TYPE_HASH_LISTPACK = 16;
+    private static final int TYPE_STREAM_LISTPACKS = 15;
+    private static final int TYPE_ZSET_LISTPACK = 17;
+    private static final int TYPE_LIST_QUICKLIST_2 = 18;
+    private static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    private static final int TYPE_STREAM_LISTPACKS_3 = 21;
+    // stream listpack entry flags
+    private static final int STREAM_ITEM_FLAG_DELETED = 1;
+    private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+    // QUICKLIST_2 node containers
+    private static final int QUICKLIST_NODE_PLAIN = 1;
+    private static final int QUICKLIST_NODE_PACKED = 2;
+
+    private static final int ENCODING_INT8 = 0;
+    private static final int ENCODING_INT16 = 1;
+    private static final int ENCODING_INT32 = 2;
+    private static final int ENCODING_LZF = 3;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final Crc64 crc = new Crc64();
+    // bytes of the buffer before this index are already included in the checksum
+    private int checksummed = 0;
+    private long remaining;
+    private int version;
+
+    public RdbFileReader(ReadableByteChannel channel) {
+        this(channel, Long.MAX_VALUE);
     }
 
-    public String readValueFromKey(String filePath, String key) throws IOException {
-        try (PushbackInputStream in = new PushbackInputStream(new DataInputStream(new FileInputStream(filePath))) ) {
-            parseHeader(in);
-            parseMetadata(in);
-            return readValueFromKey(in, key);
+    // Reads at most limit bytes from the channel, for an RDB payload embedded in a larger stream.
+    public RdbFileReader(ReadableByteChannel channel, long limit) {
+        this.channel = channel;
+        this.remaining = limit;
+        this.buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(limit, 64))).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.limit(0);
+    }
+
+    public static void load(String filePath, Consumer<RdbEntry> consumer) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            new RdbFileReader(fileChannel, fileChannel.size()).read(consumer);
         }
     }
 
-    private String readValueFromKey(PushbackInputStream in, String key) throws IOException {
+    public void read(Consumer<RdbEntry> consumer) throws IOException {
+        parseHeader();
+        long expiryTime = 0;
         while (true) {
-            byte marker = (byte) in.read();
-            if (marker == (byte) 0xFF) {
-                break;
-            }
-            if (marker != (byte) 0xFE) {
-                throw new RuntimeException("Invalid RDB file: unexpected database marker: " + marker);
-            }
-            try {
-                int index = (byte) in.read(); // read database index
-            } catch (IOException e) {
-                throw new RuntimeException("Invalid RDB file: failed to parse database index", e);
-            }
-            int size = 0;
-            try {
-                size = parseHashTableSize(in);
-            } catch (IOException e) {
-                throw new RuntimeException("Invalid RDB file: failed to parse hash table size: " + e);
-            }
-            // parse hash table
-            try {
-                for (int i = 0; i < size; i++) {
-                    byte type = (byte) in.read();
-                    boolean isExpired = false;
-                    if (type == (byte) 0xFC || type == (byte) 0xFD) {
-                        isExpired = parseExpire(in, type) < System.currentTimeMillis();
-                        type = (byte) in.read();
-                    }
-                    String currentKey = parseString(in);
-                    String value = parseValue(in, type);
-                    if (currentKey.equals(key) && !isExpired) {
-                        return value;
-                    }
+            int type = readUnsignedByte();
+            switch (type) {
+                case OPCODE_EOF -> {
+                    parseEndOfFile();
+                    return;
+                }
+                case OPCODE_SELECTDB -> readLength();
+                case OPCODE_RESIZEDB -> {
+                    readLength(); // key-value hash table size
+                    readLength(); // expires hash table size
+                }
+                case OPCODE_AUX -> {
+                    String name = new String(readString(), StandardCharsets.UTF_8);
+                    String value = new String(readString(), StandardCharsets.UTF_8);
+                    System.out.println("Metadata " + name + ": " + value);
+                }
+                case OPCODE_EXPIRETIME_MS -> expiryTime = readLong();
+                case OPCODE_EXPIRETIME -> expiryTime = (readInt() & 0xFFFFFFFFL) * 1000L;
+                case OPCODE_IDLE -> readLength();
+                case OPCODE_FREQ -> readUnsignedByte();
+                case OPCODE_MODULE_AUX, OPCODE_FUNCTION -> throw new IOException("Invalid RDB file: modules and functions are not supported");
+                default -> {
+                    byte[] key = readString();
+                    Object value = readValue(type);
+                    consumer.accept(new RdbEntry(key, value, expiryTime));
+                    expiryTime = 0;
                 }
-            } catch (IOException e) {
-                throw new RuntimeException("Invalid RDB file: failed to parse hash table entry: " + e);
             }
         }
-        return null;
     }
 
-    private void parseHeader(PushbackInputStream in) throws IOException {
-        byte[] magic = new byte[HEADER_MAGIC.length];
-        in.read(magic, 0, HEADER_MAGIC.length);
-        if (!new String(magic).equals("REDIS")) {
+    private void parseHeader() throws IOException {
+        byte[] magic = readBytes(HEADER_MAGIC.length);
+        if (!new String(magic, StandardCharsets.US_ASCII).equals("REDIS")) {
             throw new IOException("Invalid RDB file: missing magic string");
         }
+        String version = new String(readBytes(4), StandardCharsets.US_ASCII);
+        try {
+            this.version = Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid RDB file: bad version " + version);
+        }
+        if (this.version < 1 || this.version > MAX_SUPPORTED_VERSION) {
+            throw new IOException("Invalid RDB file: unsupported version " + version);
+        }
+    }
 
-        byte[] version = new byte[HEADER_VERSION.length];
-        in.read(version, 0, HEADER_VERSION.length);
-        if (!new String(version).equals("0011")) {
-            throw new IOException("Invalid RDB file: unsupported version");
+    private void parseEndOfFile() throws IOException {
+        updateChecksum();
+        long expected = crc.getValue();
+        // version 1-4 files end at the EOF opcode
+        if (version < 5) {
+            return;
+        }
+        long checksum = readLong();
+        // a zero checksum means the writer had checksums disabled
+        if (checksum != 0 && checksum != expected) {
+            throw new IOException("Invalid RDB file: checksum mismatch, expected " + Long.toHexString(expected) + " but file has " + Long.toHexString(checksum));
         }
     }
 
-    private void parseMetadata(PushbackInputStream in) throws IOException {
-        while (true) {
-            byte marker = (byte) in.read();
-            if (marker == (byte) 0xFE || marker == (byte) 0xFF) {
-                in.unread(marker);
-                break;
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case TYPE_STRING -> {
+                return readString();
             }
-            if (marker != (byte) 0xFA) {
-                System.out.println("Invalid RDB file: unexpected metadata marker: " + marker);
-                throw new IOException("Invalid RDB file: unexpected metadata marker");
+            case TYPE_LIST -> {
+                QuickList list = new QuickList();
+                for (long i = readLength(); i > 0; i--) {
+                    list.pushTail(readString());
+                }
+                return list;
+            }
+            case TYPE_LIST_ZIPLIST -> {
+                QuickList list = new QuickList();
+                Ziplist.decode(readString()).forEach(list::pushTail);
+                return list;
+            }
+            case TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2 -> {
+                QuickList list = new QuickList();
+                for (long nodes = readLength(); nodes > 0; nodes--) {
+                    int container = type == TYPE_LIST_QUICKLIST_2 ? (int) readLength() : QUICKLIST_NODE_PACKED;
+                    byte[] node = readString();
+                    if (container == QUICKLIST_NODE_PLAIN) {
+                        list.pushTail(node);
+                    } else {
+                        (type == TYPE_LIST_QUICKLIST ? Ziplist.decode(node) : Listpack.decode(node)).forEach(list::pushTail);
+                    }
+                }
+                return list;
+            }
+            case TYPE_ZSET, TYPE_ZSET_2 -> {
+                SortedSet set = new SortedSet();
+                for (long i = readLength(); i > 0; i--) {
+                    byte[] member = readString();
+                    double score = type == TYPE_ZSET_2 ? Double.longBitsToDouble(readLong()) : readStringDouble();
+                    if (Double.isNaN(score)) {
+                        throw new IOException("Invalid RDB file: sorted set score is NaN");
+                    }
+                    set.put(member, score);
+                }
+                return set;
+            }
+            case TYPE_ZSET_ZIPLIST, TYPE_ZSET_LISTPACK -> {
+                byte[] blob = readString();
+                List<byte[]> entries = type == TYPE_ZSET_ZIPLIST ? Ziplist.decode(blob) : Listpack.decode(blob);
+                SortedSet set = new SortedSet();
+                for (int i = 0; i + 1 < entries.size(); i += 2) {
+                    Double score = KeyValueStore.parseScore(entries.get(i + 1));
+                    if (score == null || Double.isNaN(score)) {
+                        throw new IOException("Invalid RDB file: bad sorted set score");
+                    }
+                    set.put(entries.get(i), score);
+                }
+                return set;
             }
-            String name = parseString(in); // metadata name
-            System.out.println("Metadata name: " + name);
-            String value = parseString(in); // metadata value
-            System.out.println("Metadata value: " + value);
+            case TYPE_HASH -> {
+                Hash hash = new Hash();
+                for (long i = readLength(); i > 0; i--) {
+                    hash.put(readString(), readString());
+                }
+                return hash;
+            }
+            case TYPE_HASH_ZIPLIST, TYPE_HASH_LISTPACK -> {
+                byte[] blob = readString();
+                List<byte[]> entries = type == TYPE_HASH_ZIPLIST ? Ziplist.decode(blob) : Listpack.decode(blob);
+                Hash hash = new Hash();
+                for (int i = 0; i + 1 < entries.size(); i += 2) {
+                    hash.put(entries.get(i), entries.get(i + 1));
+                }
+                return hash;
+            }
+            case TYPE_STREAM_LISTPACKS, TYPE_STREAM_LISTPACKS_2, TYPE_STREAM_LISTPACKS_3 -> {
+                return readStream(type);
+            }
+            default -> throw new IOException("Invalid RDB file: unsupported value type " + type);
         }
     }
 
-    private void parseDatabase(PushbackInputStream in, List<RdbEntry> entries) throws IOException {
-        while (true) {
-            byte marker = (byte) in.read();
-            if (marker == (byte) 0xFF) {
-                break;
+    // Stream nodes, each its master ID and a listpack of a master entry and the entries, then the stream's
+    // metadata and its consumer groups, which are read past and dropped.
+    private Stream readStream(int type) throws IOException {
+        Stream stream = new Stream();
+        for (long nodes = readLength(); nodes > 0; nodes--) {
+            byte[] nodeKey = readString();
+            if (nodeKey.length != 16) {
+                throw new IOException("Invalid RDB file: bad stream node key");
             }
-            if (marker != (byte) 0xFE) {
-                throw new IOException("Invalid RDB file: unexpected database marker: " + marker);
+            ByteBuffer master = ByteBuffer.wrap(nodeKey);
+            long masterMs = master.getLong();
+            long masterSeq = master.getLong();
+            List<byte[]> items = Listpack.decode(readString());
+            int position = 0;
+            long count = listpackInteger(items, position++);
+            long deleted = listpackInteger(items, position++);
+            int masterFieldCount = (int) listpackInteger(items, position++);
+            if (position + masterFieldCount >= items.size()) {
+                throw new IOException("Invalid RDB file: truncated stream node");
             }
-            try {
-                int index = (byte) in.read(); // read database index
-                System.out.println("Database index: " + index);
-            } catch (IOException e) {
-                throw new RuntimeException("Invalid RDB file: failed to parse database index", e);
+            List<byte[]> masterFields = items.subList(position, position + masterFieldCount);
+            // the master entry ends with a 0
+            position += masterFieldCount + 1;
+            for (long i = count + deleted; i > 0; i--) {
+                int flags = (int) listpackInteger(items, position++);
+                long ms = masterMs + listpackInteger(items, position++);
+                long seq = masterSeq + listpackInteger(items, position++);
+                boolean sameFields = (flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0;
+                int pairs = sameFields ? masterFieldCount : (int) listpackInteger(items, position++);
+                if (pairs < 0 || position + (sameFields ? pairs : 2 * pairs) >= items.size()) {
+                    throw new IOException("Invalid RDB file: truncated stream node");
+                }
+                byte[][] fields = new byte[2 * pairs][];
+                for (int j = 0; j < pairs; j++) {
+                    fields[2 * j] = sameFields ? masterFields.get(j) : items.get(position++);
+                    fields[2 * j + 1] = items.get(position++);
+                }
+                // lp-count
+                position++;
+                if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                    stream.append(new StreamId(ms, seq), fields);
+                }
             }
-
-            try {
-                int size = parseHashTableSize(in);
-                System.out.println("Hash table size: " + size);
-                // parse hash table
-                for (int i = 0; i < size; i++) {
-                    byte type = (byte) in.read();
-                    long expiryTime = 0;
-                    if (type == (byte) 0xFC || type == (byte) 0xFD) {
-                        expiryTime = parseExpire(in, type);
-                        type = (byte) in.read();
-                    }
-                    String key = parseString(in);
-                    String value = parseValue(in, type);
-                    entries.add(new RdbEntry(key, value, expiryTime));
+        }
+        readLength();
+        StreamId lastId = new StreamId(readLength(), readLength());
+        long entriesAdded = 0;
+        if (type >= TYPE_STREAM_LISTPACKS_2) {
+            // first ID and largest deleted ID
+            for (int i = 0; i < 4; i++) {
+                readLength();
+            }
+            entriesAdded = readLength();
+        }
+        stream.setLastId(lastId, entriesAdded);
+        long groups = readLength();
+        if (groups > 0) {
+            System.out.println("Dropping " + groups + " stream consumer group(s) from the RDB file: consumer groups are not supported");
+        }
+        for (; groups > 0; groups--) {
+            readString();
+            readLength();
+            readLength();
+            if (type >= TYPE_STREAM_LISTPACKS_2) {
+                readLength();
+            }
+            for (long pending = readLength(); pending > 0; pending--) {
+                readBytes(16);
+                readLong();
+                readLength();
+            }
+            for (long consumers = readLength(); consumers > 0; consumers--) {
+                readString();
+                readLong();
+                if (type >= TYPE_STREAM_LISTPACKS_3) {
+                    readLong();
+                }
+                for (long pending = readLength(); pending > 0; pending--) {
+                    readBytes(16);
                 }
-            } catch (IOException e) {
-                throw new RuntimeException("Invalid RDB file: failed to parse hash table size", e);
             }
         }
+        return stream;
     }
 
-    private int parseHashTableSize(PushbackInputStream in) throws IOException {
-        byte marker = (byte) in.read();
-        if (marker != (byte) 0xFB) {
-            throw new IOException("Invalid RDB file: unexpected hash table size marker");
+    private static long listpackInteger(List<byte[]> items, int position) throws IOException {
+        if (position >= items.size()) {
+            throw new IOException("Invalid RDB file: truncated stream node");
+        }
+        try {
+            return Long.parseLong(new String(items.get(position), StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid RDB file: bad stream node integer");
         }
-        int keyValueSize = parseSize(in); // total key-value hash table size
-        System.out.println("Key-value hash table size: " + keyValueSize);
-        int keyValueWithExpirySize = parseSize(in); // number of keys with an expiry
-        System.out.println("Key-value hash table size with expiry: " + keyValueWithExpirySize);
-        return keyValueSize;
     }
 
-    private void parseEndOfFile(PushbackInputStream in) throws IOException {
-        // read 8 bytes of checksum
-        byte[] checksum = new byte[8];
-        in.read(checksum, 0, 8);
-
+    // The old sorted set score encoding: a length byte and the score as text, or a marker for NaN and infinities.
+    private double readStringDouble() throws IOException {
+        int length = readUnsignedByte();
+        return switch (length) {
+            case 253 -> Double.NaN;
+            case 254 -> Double.POSITIVE_INFINITY;
+            case 255 -> Double.NEGATIVE_INFINITY;
+            default -> {
+                try {
+                    yield Double.parseDouble(new String(readBytes(length), StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid RDB file: bad sorted set score");
+                }
+            }
+        };
     }
 
-    private long parseExpire(PushbackInputStream in, byte type) throws IOException {
-        if (type == (byte) 0xFC) {
-            byte[] expireTimestamp = new byte[8];
-            in.read(expireTimestamp, 0, 8); // expire timestamp in milliseconds
-            return ByteBuffer.wrap(expireTimestamp).order(ByteOrder.LITTLE_ENDIAN).getLong();
-        } else {
-            byte[] expireTimestamp = new byte[4];
-            in.read(expireTimestamp, 0, 4); // expire timestamp in seconds
-            return ByteBuffer.wrap(expireTimestamp).order(ByteOrder.LITTLE_ENDIAN).getInt() * 1000L;
+    // RDB length encoding. The top two bits pick 6-bit, 14-bit or 32/64-bit big-endian lengths;
+    // 0b11 marks a special string encoding, returned as a negative number (-1 - encoding).
+    private long readLengthOrEncoding() throws IOException {
+        int first = readUnsignedByte();
+        switch (first >> 6) {
+            case 0 -> {
+                return first & 0x3F;
+            }
+            case 1 -> {
+                return ((first & 0x3F) << 8) | readUnsignedByte();
+            }
+            case 2 -> {
+                if (first == 0x80) {
+                    return Integer.reverseBytes(readInt()) & 0xFFFFFFFFL;
+                }
+                if (first == 0x81) {
+                    long length = Long.reverseBytes(readLong());
+                    if (length < 0) {
+                        throw new IOException("Invalid RDB file: length out of range");
+                    }
+                    return length;
+                }
+                throw new IOException("Invalid RDB file: unknown length encoding " + first);
+            }
+            default -> {
+                return -1 - (first & 0x3F);
+            }
         }
     }
 
-    private void parseKeyValue(PushbackInputStream in, List<String> keys, byte valueType) throws IOException {
-        String key = parseString(in);
-        parseValue(in, valueType);
-        keys.add(key);
+    private long readLength() throws IOException {
+        long length = readLengthOrEncoding();
+        if (length < 0) {
+            throw new IOException("Invalid RDB file: expected a length, got string encoding " + (-1 - length));
+        }
+        return length;
     }
 
-    private String parseValue(PushbackInputStream in, byte valueType) throws IOException {
-        switch (valueType) {
-            // string
-            case 0x00 -> {
-                return parseString(in);
-            }
-            // Add cases for other value types if needed
-            default -> throw new IOException("Invalid RDB file: unknown value type");
+    // RDB strings are binary-safe; integer encodings are returned as their decimal text.
+    private byte[] readString() throws IOException {
+        long length = readLengthOrEncoding();
+        if (length >= 0) {
+            return readBytes(toArrayLength(length));
         }
+        int encoding = (int) (-1 - length);
+        return switch (encoding) {
+            case ENCODING_INT8 -> encodeInteger((byte) readUnsignedByte());
+            case ENCODING_INT16 -> encodeInteger(readShort());
+            case ENCODING_INT32 -> encodeInteger(readInt());
+            case ENCODING_LZF -> {
+                int compressedLength = toArrayLength(readLength());
+                int uncompressedLength = toArrayLength(readLength());
+                yield Lzf.decompress(readBytes(compressedLength), uncompressedLength);
+            }
+            default -> throw new IOException("Invalid RDB file: unknown string encoding " + encoding);
+        };
     }
 
-    private String parseString(PushbackInputStream in) throws IOException {
-        byte firstByte = (byte) in.read();
-        int length;
-        if ((firstByte & 0xC0) == 0x00) {
-            // 6-bit encoding
-            length = firstByte & 0x3F;
-            // 14-bit encoding
-        } else if ((firstByte & 0xC0) == 0x40) {
-            length = ((firstByte & 0x3F) << 8) | (in.read() & 0xFF);
-            // 32-bit encoding
-        } else if ((firstByte & 0xC0) == 0x80) {
-            byte[] buf = new byte[4];
-            length = in.read(buf, 0, 4);
-            // string encoding
-        } else if ((firstByte & 0xC0) == 0xC0) {
-            switch (firstByte & 0x3F) {
-                case 0x00: // 8-bit integer
-                    byte byteLength = (byte) in.read();
-                    return Byte.toString(byteLength);
-                case 0x01: // 16-bit integer
-                    short shortLength = readLittleEndianShort(in);
-                    return Short.toString(shortLength);
-                case 0x02: // 32-bit integer
-                    int intLength = readLittleEndianInt(in);
-                    return Integer.toString(intLength);
-                case 0x03: // 64-bit integer
-                    throw new IOException("LFZ integer encoding not supported");
-                default:
-                    throw new IOException("unknown string encoding: " + firstByte);
-            }
-        } else {
-            throw new IOException("Invalid RDB file: unknown size encoding");
+    private static int toArrayLength(long length) throws IOException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid RDB file: string of " + length + " bytes is too large");
         }
-        byte[] data = new byte[length];
-        in.read(data);
-        return new String(data);
+        return (int) length;
     }
 
-    private short readLittleEndianShort(PushbackInputStream in) throws IOException {
-        byte[] bytes = new byte[4];
-        int bytesRead = in.read(bytes);
-        if (bytesRead != 4) {
-            throw new RuntimeException("Failed to read 2 bytes for short");
-        }
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        return buffer.getShort();
+    private static byte[] encodeInteger(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
     }
 
-    private int readLittleEndianInt(PushbackInputStream in) throws IOException {
-        byte[] bytes = new byte[4];
-        int bytesRead = in.read(bytes);
-        if (bytesRead != 4) {
-            throw new RuntimeException("Failed to read 4 bytes for int");
-        }
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        return buffer.getInt();
+    private int readUnsignedByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
     }
 
-    private int parseSize(PushbackInputStream in) {
-        try {
-            byte firstByte = (byte) in.read();
-            int length;
-            if ((firstByte & 0xC0) == 0x00) {
-                length = firstByte & 0x3F;
-            } else if ((firstByte & 0xC0) == 0x40) {
-                length = ((firstByte & 0x3F) << 8) | (in.read() & 0xFF);
-            } else if ((firstByte & 0xC0) == 0x80) {
-                byte[] bytes = new byte[4];
-                length = in.read(bytes);
-            } else if ((firstByte & 0xC0) == 0xC0) {
-                switch (firstByte & 0x3F) {
-                    case 0x00: // 8-bit integer
-                        length = in.read();
-                    case 0x01: // 16-bit integer
-                        byte[] shortBytes = new byte[2];
-                        length = in.read(shortBytes);
-                    case 0x02: // 32-bit integer
-                        byte[] intBytes = new byte[4];
-                        length = in.read(intBytes);
-                    default:
-                        throw new IOException("Invalid RDB file: unknown string encoding");
-                }
-            } else {
-                throw new IOException("Invalid RDB file: unknown size encoding");
-            }
-            return length;
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to parse size: " + e.getMessage());
-        }
+    private short readShort() throws IOException {
+        require(2);
+        return buffer.getShort();
+    }
 
+    private int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
     }
-}
 
-// RdbEntry class to hold key, value, and expiry time
-class RdbEntry {
-    private final String key;
-    private final String value;
-    private final long expiryTime;
+    private long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
 
-    public RdbEntry(String key, String value, long expiryTime) {
-        this.key = key;
-        this.value = value;
-        this.expiryTime = expiryTime;
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = Math.min(buffer.remaining(), length - offset);
+            buffer.get(bytes, offset, chunk);
+            offset += chunk;
+        }
+        return bytes;
     }
 
-    public String getKey() {
-        return key;
+    private void require(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            fill();
+        }
     }
 
-    public String getValue() {
-        return value;
+    // Checksums what was consumed, keeps the unread tail and reads more from the channel.
+    private void fill() throws IOException {
+        updateChecksum();
+        buffer.compact();
+        int read = 0;
+        if (remaining > 0) {
+            int limit = (int) Math.min(buffer.remaining(), remaining);
+            int savedLimit = buffer.limit();
+            buffer.limit(buffer.position() + limit);
+            read = channel.read(buffer);
+            buffer.limit(savedLimit);
+        }
+        buffer.flip();
+        checksummed = 0;
+        if (read <= 0) {
+            throw new EOFException("Invalid RDB file: unexpected end of file");
+        }
+        remaining -= read;
     }
 
-    public long getExpiryTime() {
-        return expiryTime;
+    private void updateChecksum() {
+        crc.update(buffer.array(), checksummed, buffer.position() - checksummed);
+        checksummed = buffer.position();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Streams an RDB image of a keyspace Snapshot through a fixed buffer into any channel, checksumming as it goes.
+public class RdbFileWriter {
+    private static final byte[] HEADER = "REDIS0011".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final byte OPCODE_AUX = (byte) 0xFA;
+    static final byte OPCODE_RESIZEDB = (byte) 0xFB;
+    static final byte OPCODE_EXPIRETIME_MS = (byte) 0xFC;
+    static final byte OPCODE_SELECTDB = (byte) 0xFE;
+    static final byte OPCODE_EOF = (byte) 0xFF;
+    static final byte TYPE_STRING = 0x00;
+    static final byte TYPE_LIST = 0x01;
+    static final byte TYPE_HASH = 0x04;
+    static final byte TYPE_ZSET_2 = 0x05;
+    static final byte TYPE_STREAM_LISTPACKS_3 = 0x15;
+    // stream listpack entry flags
+    private static final int STREAM_ITEM_FLAG_NONE = 0;
+    private static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+    private static final int ENCODING_INT8 = 0;
+    private static final int ENCODING_INT16 = 1;
+    private static final int ENCODING_INT32 = 2;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Crc64 crc = new Crc64();
+
+    public RdbFileWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    // Writes the snapshot to a temporary file next to path, fsyncs it and atomically renames it into place.
+    public static void save(KeyValueStore keyValueStore, Snapshot snapshot, String path) throws IOException {
+        Path target = Path.of(path).toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + "-" + Thread.currentThread().threadId() + ".rdb");
+        try (FileChannel fileChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new RdbFileWriter(fileChannel).write(keyValueStore, snapshot);
+            fileChannel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public void write(KeyValueStore keyValueStore, Snapshot snapshot) throws IOException {
+        writeBytes(HEADER);
+        writeAux("redis-ver", "7.2.0");
+        writeAux("redis-bits", "64");
+        writeAux("ctime", Long.toString(snapshot.getStartedAt() / 1000));
+
+        writeByte(OPCODE_SELECTDB);
+        writeLength(0);
+        // sizes are only hints for the loader's table sizing
+        writeByte(OPCODE_RESIZEDB);
+        writeLength(snapshot.getKeyCount());
+        writeLength(0);
+        for (int slot = 0; slot < KeyValueStore.SLOTS; slot++) {
+            List<Entry> entries = keyValueStore.snapshotSlot(snapshot, slot);
+            for (Entry entry : entries) {
+                if (!entry.isExpired(snapshot.getStartedAt())) {
+                    writeEntry(entry);
+                }
+            }
+        }
+
+        writeByte(OPCODE_EOF);
+        flushBuffer();
+        ByteBuffer checksum = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(crc.getValue());
+        checksum.flip();
+        while (checksum.hasRemaining()) {
+            channel.write(checksum);
+        }
+    }
+
+    private void writeEntry(Entry entry) throws IOException {
+        if (entry.isVolatile()) {
+            writeByte(OPCODE_EXPIRETIME_MS);
+            ensureRoom(8);
+            buffer.putLong(entry.expiresAt);
+        }
+        if (entry.value instanceof QuickList list) {
+            writeByte(TYPE_LIST);
+            writeString(entry.key.bytes());
+            writeList(list);
+            return;
+        }
+        if (entry.value instanceof SortedSet set) {
+            writeByte(TYPE_ZSET_2);
+            writeString(entry.key.bytes());
+            writeSortedSet(set);
+            return;
+        }
+        if (entry.value instanceof Hash hash) {
+            writeByte(TYPE_HASH);
+            writeString(entry.key.bytes());
+            writeHash(hash);
+            return;
+        }
+        if (entry.value instanceof Stream stream) {
+            writeByte(TYPE_STREAM_LISTPACKS_3);
+            writeString(entry.key.bytes());
+            writeStream(stream);
+            return;
+        }
+        writeByte(TYPE_STRING);
+        writeString(entry.key.bytes());
+        if (entry.value instanceof IntValue intValue) {
+            writeInteger(intValue.get());
+        } else {
+            writeString((byte[]) entry.value);
+        }
+    }
+
+    // The plain list encoding: a length, then every element as a string. Every Redis version still loads it.
+    private void writeList(QuickList list) throws IOException {
+        writeLength(list.size());
+        for (byte[] value : list) {
+            writeString(value);
+        }
+    }
+
+    // A length, then each member with its score as a little-endian binary double.
+    private void writeSortedSet(SortedSet set) throws IOException {
+        writeLength(set.size());
+        try {
+            set.forEach((member, score) -> {
+                try {
+                    writeString(member);
+                    ensureRoom(8);
+                    buffer.putDouble(score);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // A length, then each field followed by its value.
+    private void writeHash(Hash hash) throws IOException {
+        writeLength(hash.size());
+        try {
+            hash.forEach((field, value) -> {
+                try {
+                    writeString(field);
+                    writeString(value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Redis's stream layout: each block as its first ID, big-endian, and a listpack of a master entry (the
+    // block's field names) followed by the entries as [flags][ms diff][seq diff][fields][lp-count]. Then the
+    // length, last ID, first ID, largest deleted ID and entries added, and no consumer groups.
+    private void writeStream(Stream stream) throws IOException {
+        writeLength(stream.blockCount());
+        StreamId[] firstId = {null};
+        try {
+            stream.forEachBlock((first, masterFields, entries) -> {
+                if (firstId[0] == null) {
+                    firstId[0] = entries.get(0).id();
+                }
+                byte[] nodeKey = new byte[16];
+                ByteBuffer.wrap(nodeKey).putLong(first.ms()).putLong(first.seq());
+                Listpack.Writer listpack = new Listpack.Writer()
+                        .addInteger(entries.size())
+                        .addInteger(0)
+                        .addInteger(masterFields.length);
+                for (byte[] field : masterFields) {
+                    listpack.addString(field);
+                }
+                listpack.addInteger(0);
+                for (Stream.StreamEntry streamEntry : entries) {
+                    byte[][] fields = streamEntry.fields();
+                    boolean sameFields = Stream.hasFieldNames(fields, masterFields);
+                    listpack.addInteger(sameFields ? STREAM_ITEM_FLAG_SAMEFIELDS : STREAM_ITEM_FLAG_NONE)
+                            .addInteger(streamEntry.id().ms() - first.ms())
+                            .addInteger(streamEntry.id().seq() - first.seq());
+                    if (!sameFields) {
+                        listpack.addInteger(fields.length / 2);
+                    }
+                    for (int i = sameFields ? 1 : 0; i < fields.length; i += sameFields ? 2 : 1) {
+                        listpack.addString(fields[i]);
+                    }
+                    // how many listpack entries this one spans, for walking backwards
+                    listpack.addInteger(sameFields ? fields.length / 2 + 3 : fields.length + 4);
+                }
+                try {
+                    writeString(nodeKey);
+                    writeString(listpack.toBytes());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        StreamId first = firstId[0] != null ? firstId[0] : StreamId.MIN;
+        writeLength(stream.length());
+        writeLength(stream.lastId().ms());
+        writeLength(stream.lastId().seq());
+        writeLength(first.ms());
+        writeLength(first.seq());
+        // nothing is ever deleted from the middle
+        writeLength(0);
+        writeLength(0);
+        writeLength(stream.entriesAdded());
+        writeLength(0);
+    }
+
+    // Integers that fit 32 bits use the RDB integer string encodings; larger ones are written as decimal text.
+    private void writeInteger(long value) throws IOException {
+        ensureRoom(5);
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            buffer.put((byte) (0xC0 | ENCODING_INT8));
+            buffer.put((byte) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            buffer.put((byte) (0xC0 | ENCODING_INT16));
+            buffer.putShort((short) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            buffer.put((byte) (0xC0 | ENCODING_INT32));
+            buffer.putInt((int) value);
+        } else {
+            writeString(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private void writeAux(String name, String value) throws IOException {
+        writeByte(OPCODE_AUX);
+        writeString(name.getBytes(StandardCharsets.US_ASCII));
+        writeString(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void writeString(byte[] value) throws IOException {
+        writeLength(value.length);
+        writeBytes(value);
+    }
+
+    // RDB length encoding: 6-bit, 14-bit, or a marker byte followed by a big-endian 32 or 64-bit length.
+    private void writeLength(long length) throws IOException {
+        ensureRoom(9);
+        if (length < (1 << 6)) {
+            buffer.put((byte) length);
+        } else if (length < (1 << 14)) {
+            buffer.put((byte) (0x40 | (length >>> 8)));
+            buffer.put((byte) length);
+        } else if (length <= 0xFFFFFFFFL) {
+            buffer.put((byte) 0x80);
+            buffer.order(ByteOrder.BIG_ENDIAN).putInt((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            buffer.put((byte) 0x81);
+            buffer.order(ByteOrder.BIG_ENDIAN).putLong(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void writeByte(byte b) throws IOException {
+        ensureRoom(1);
+        buffer.put(b);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            ensureRoom(1);
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A replica connected to this master. Propagated writes go onto its own ordered queue, which a dedicated
+// sender drains into one socket write per batch, so a slow replica never holds up writers or other replicas.
+public class Replica {
+    enum State {
+        // waiting for a sync job to take its snapshot; writes until then end up in the snapshot
+        WAIT_SNAPSHOT,
+        // the RDB image or backlog tail is being sent; later writes queue up behind it
+        SENDING_RDB,
+        ONLINE,
+        DISCONNECTED
+    }
+
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+    private static final byte[] STOP = new byte[0];
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    // client-output-buffer-limit for replicas: disconnect above the hard limit, or when above the soft
+    // limit for longer than softSeconds
+    private static volatile long hardLimitBytes = 256L * 1024 * 1024;
+    private static volatile long softLimitBytes = 64L * 1024 * 1024;
+    private static volatile long softLimitMillis = 60_000;
+
+    private final int id = ids.getAndIncrement();
+    private final OutputStream sink;
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // not a monitor: writers may be virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private State state;
+    private long softLimitSince = 0;
+    // replication offset of the last byte written to the socket
+    private volatile long sentOffset;
+    // replication offset the replica last confirmed with REPLCONF ACK
+    private volatile long ackOffset = 0;
+    private volatile long lastAckTime = System.currentTimeMillis();
+
+    public Replica(OutputStream sink) {
+        this(sink, State.WAIT_SNAPSHOT, 0);
+    }
+
+    Replica(OutputStream sink, State state, long offset) {
+        this.sink = sink;
+        this.state = state;
+        this.sentOffset = offset;
+    }
+
+    // Parses "<hard> <soft> <seconds>" with optional kb/mb/gb suffixes, like client-output-buffer-limit.
+    public static void configureOutputLimits(String limits) {
+        String[] parts = limits.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid replica output buffer limit: " + limits);
+        }
+        hardLimitBytes = parseBytes(parts[0]);
+        softLimitBytes = parseBytes(parts[1]);
+        softLimitMillis = Long.parseLong(parts[2]) * 1000;
+    }
+
+    static long parseBytes(String value) {
+        String lower = value.toLowerCase();
+        long multiplier = 1;
+        if (lower.endsWith("kb")) {
+            multiplier = 1024;
+        } else if (lower.endsWith("mb")) {
+            multiplier = 1024 * 1024;
+        } else if (lower.endsWith("gb")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            lower = lower.substring(0, lower.length() - 2);
+        }
+        return Long.parseLong(lower) * multiplier;
+    }
+
+    public OutputStream sink() {
+        return sink;
+    }
+
+    // The replica behind a connection, or null if the connection is not a replica.
+    public static Replica forSink(OutputStream sink) {
+        for (Replica replica : Main.replicas) {
+            if (replica.sink == sink) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    public long ackOffset() {
+        return ackOffset;
+    }
+
+    void acknowledged(long offset) {
+        lastAckTime = System.currentTimeMillis();
+        if (offset > ackOffset) {
+            ackOffset = offset;
+            ReplicaAckWaiters.onAck();
+        }
+    }
+
+    // Called when a client connection closes, in case it was a replica.
+    public static void connectionClosed(OutputStream sink) {
+        for (Replica replica : Main.replicas) {
+            if (replica.sink == sink) {
+                replica.disconnect();
+            }
+        }
+    }
+
+    // Queues a piece of the replication stream. Called in stream order, under the replication stream lock.
+    void enqueue(byte[] bytes) {
+        lock.lock();
+        try {
+            if (state == State.WAIT_SNAPSHOT || state == State.DISCONNECTED) {
+                // the snapshot still to be taken will contain this write
+                return;
+            }
+            long pending = queuedBytes.addAndGet(bytes.length);
+            queue.add(bytes);
+            if (exceedsOutputLimit(pending)) {
+                System.out.println("Replica " + id + " is " + pending + " bytes behind, disconnecting");
+                disconnect();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean exceedsOutputLimit(long pending) {
+        if (hardLimitBytes > 0 && pending > hardLimitBytes) {
+            return true;
+        }
+        if (softLimitBytes <= 0 || pending <= softLimitBytes) {
+            softLimitSince = 0;
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (softLimitSince == 0) {
+            softLimitSince = now;
+        }
+        return now - softLimitSince > softLimitMillis;
+    }
+
+    // Called while no write command is between execution and propagation.
+    void snapshotTaken(long offset) {
+        lock.lock();
+        try {
+            state = State.SENDING_RDB;
+            sentOffset = offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The RDB image or backlog tail is on the wire; start sending what queued up behind it.
+    void syncFinished() {
+        lock.lock();
+        try {
+            if (state == State.DISCONNECTED) {
+                return;
+            }
+            state = State.ONLINE;
+        } finally {
+            lock.unlock();
+        }
+        Thread sender = new Thread(this::sendLoop, "replica-sender-" + id);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private void sendLoop() {
+        byte[] batch = new byte[64 * 1024];
+        List<byte[]> drained = new ArrayList<>();
+        try {
+            while (true) {
+                drained.add(queue.take());
+                queue.drainTo(drained);
+                int length = 0;
+                for (byte[] bytes : drained) {
+                    if (bytes == STOP) {
+                        return;
+                    }
+                    if (length > 0 && length + bytes.length > MAX_BATCH_BYTES) {
+                        send(batch, length);
+                        length = 0;
+                    }
+                    if (bytes.length >= MAX_BATCH_BYTES) {
+                        send(bytes, bytes.length);
+                        continue;
+                    }
+                    if (length + bytes.length > batch.length) {
+                        batch = Arrays.copyOf(batch, Math.min(MAX_BATCH_BYTES, Math.max(batch.length * 2, length + bytes.length)));
+                    }
+                    System.arraycopy(bytes, 0, batch, length, bytes.length);
+                    length += bytes.length;
+                }
+                if (length > 0) {
+                    send(batch, length);
+                }
+                drained.clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to send to replica " + id + ": " + e.getMessage());
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(byte[] batch, int length) throws IOException {
+        sink.write(batch, 0, length);
+        queuedBytes.addAndGet(-length);
+        sentOffset += length;
+    }
+
+    // Drops the replica: stops its sender and closes its connection. Safe to call more than once.
+    void disconnect() {
+        lock.lock();
+        try {
+            if (state == State.DISCONNECTED) {
+                return;
+            }
+            state = State.DISCONNECTED;
+            queue.clear();
+            queue.add(STOP);
+        } finally {
+            lock.unlock();
+        }
+        Main.replicas.remove(this);
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // already broken
+        }
+    }
+
+    // One line of INFO replication: acked offset, seconds since the last ack, and how far the send queue is behind
+    String info() {
+        long lagBytes = Main.masterReplOffset - sentOffset;
+        long lagSeconds = (System.currentTimeMillis() - lastAckTime) / 1000;
+        return "state=" + state.name().toLowerCase() + ",offset=" + ackOffset + ",sent_offset=" + sentOffset
+                + ",lag=" + lagSeconds + ",lag_bytes=" + lagBytes + ",pending_commands=" + queue.size() + ",pending_bytes=" + queuedBytes.get();
+    }
+}
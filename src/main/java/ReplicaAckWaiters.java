@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// WAIT callers parked until enough replicas have acknowledged their offset. Waiters are plain records on one
+// shared list, re-checked on every REPLCONF ACK; a single timer thread handles every timeout.
+public class ReplicaAckWaiters {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wait-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final List<Waiter> waiters = new ArrayList<>();
+
+    private static class Waiter {
+        final long offset;
+        final int needed;
+        final CompletableFuture<DeferredReply> future = new CompletableFuture<>();
+        ScheduledFuture<?> timeout;
+
+        Waiter(long offset, int needed) {
+            this.offset = offset;
+            this.needed = needed;
+        }
+
+        // Completes with the number of replicas at or past the offset; only the first call has an effect.
+        void complete(int acked) {
+            future.complete(out -> out.writeInteger(acked));
+        }
+    }
+
+    // Parks until needed replicas have acked offset, or until the timeout (0 waits forever).
+    public static CompletableFuture<DeferredReply> await(long offset, int needed, long timeoutMillis) {
+        Waiter waiter = new Waiter(offset, needed);
+        lock.lock();
+        try {
+            // an ack may have arrived since the caller last counted
+            int acked = countAcked(offset);
+            if (acked >= needed) {
+                waiter.complete(acked);
+                return waiter.future;
+            }
+            waiters.add(waiter);
+            if (timeoutMillis > 0) {
+                waiter.timeout = timer.schedule(() -> expire(waiter), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // a connection closed while blocked cancels the future; without this a WAIT 0 would stay listed forever
+        waiter.future.whenComplete((reply, error) -> {
+            if (error != null) {
+                withdraw(waiter);
+            }
+        });
+        return waiter.future;
+    }
+
+    public static int countAcked(long offset) {
+        int acked = 0;
+        for (Replica replica : Main.replicas) {
+            if (replica.ackOffset() >= offset) {
+                acked++;
+            }
+        }
+        return acked;
+    }
+
+    // Called after a replica's acknowledged offset moved forward.
+    public static void onAck() {
+        lock.lock();
+        try {
+            Iterator<Waiter> iterator = waiters.iterator();
+            while (iterator.hasNext()) {
+                Waiter waiter = iterator.next();
+                int acked = countAcked(waiter.offset);
+                if (acked >= waiter.needed) {
+                    iterator.remove();
+                    if (waiter.timeout != null) {
+                        waiter.timeout.cancel(false);
+                    }
+                    waiter.complete(acked);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void withdraw(Waiter waiter) {
+        lock.lock();
+        try {
+            waiters.remove(waiter);
+            if (waiter.timeout != null) {
+                waiter.timeout.cancel(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void expire(Waiter waiter) {
+        lock.lock();
+        try {
+            if (!waiters.remove(waiter)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.complete(countAcked(waiter.offset));
+    }
+}
@@ -0,0 +1,44 @@
+// Fixed-size ring holding the most recent bytes of the replication stream, so a replica that reconnects
+// can continue from its offset instead of doing a full resync. Callers serialize access.
+public class ReplicationBacklog {
+    private final byte[] ring;
+    // bytes ever appended to the stream, which is the master replication offset
+    private long offset;
+
+    public ReplicationBacklog(int size) {
+        this.ring = new byte[size];
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    public void append(byte[] bytes) {
+        int off = 0;
+        int len = bytes.length;
+        if (len > ring.length) {
+            // only the tail fits
+            off = len - ring.length;
+            offset += off;
+            len = ring.length;
+        }
+        int position = (int) (offset % ring.length);
+        int first = Math.min(len, ring.length - position);
+        System.arraycopy(bytes, off, ring, position, first);
+        System.arraycopy(bytes, off + first, ring, 0, len - first);
+        offset += len;
+    }
+
+    // The stream from position from (0-based) up to the current offset, or null if it is no longer held.
+    public byte[] copyFrom(long from) {
+        if (from > offset || from < offset - ring.length || from < 0) {
+            return null;
+        }
+        byte[] tail = new byte[(int) (offset - from)];
+        int position = (int) (from % ring.length);
+        int first = Math.min(tail.length, ring.length - position);
+        System.arraycopy(ring, position, tail, 0, first);
+        System.arraycopy(ring, 0, tail, first, tail.length - first);
+        return tail;
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Encodes RESP replies straight into a reusable byte buffer and hands the whole buffer to the sink on flush.
+// Length prefixes are written as digits in place, and constant replies are shared pre-encoded arrays.
+// Not thread-safe: each connection owns one encoder, and out-of-band writers use their own.
+public class RespEncoder {
+    public static final byte[] OK = encodeConstant("+OK\r\n");
+    public static final byte[] PONG = encodeConstant("+PONG\r\n");
+    public static final byte[] NULL_BULK_STRING = encodeConstant("$-1\r\n");
+    public static final byte[] NULL_ARRAY = encodeConstant("*-1\r\n");
+    public static final byte[] EMPTY_ARRAY = encodeConstant("*0\r\n");
+
+    private static final int SHARED_INTEGERS = 10000;
+    private static final int SHARED_HEADERS = 64;
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = encodeConstant(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            ARRAY_HEADERS[i] = encodeConstant("*" + i + "\r\n");
+            BULK_HEADERS[i] = encodeConstant("$" + i + "\r\n");
+        }
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    // values at least this large bypass the buffer and go to the sink directly
+    private static final int DIRECT_WRITE_THRESHOLD = 64 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    // "-9223372036854775808\r\n" plus the type byte
+    private static final int MAX_NUMBER_LINE = 23;
+
+    private final OutputStream sink;
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private int count = 0;
+
+    public RespEncoder(OutputStream sink) {
+        this.sink = sink;
+    }
+
+    public OutputStream sink() {
+        return sink;
+    }
+
+    public void writeRaw(byte[] bytes) {
+        writeRaw(bytes, 0, bytes.length);
+    }
+
+    public void writeRaw(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    // Simple strings and errors are protocol text, so every char is expected to be ASCII.
+    public void writeSimpleString(String value) {
+        writeLine(CommandParser.PLUS_BYTE, value);
+    }
+
+    public void writeError(String message) {
+        writeLine(CommandParser.MINUS_BYTE, message);
+    }
+
+    public void writeInteger(long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            writeRaw(INTEGERS[(int) value]);
+        } else {
+            writeNumberLine(CommandParser.COLON_BYTE, value);
+        }
+    }
+
+    public void writeNullBulkString() {
+        writeRaw(NULL_BULK_STRING);
+    }
+
+    public void writeArrayHeader(int length) {
+        if (length >= 0 && length < SHARED_HEADERS) {
+            writeRaw(ARRAY_HEADERS[length]);
+        } else {
+            writeNumberLine(CommandParser.ASTERISK_BYTE, length);
+        }
+    }
+
+    public void writeBulkStringHeader(int length) {
+        if (length < SHARED_HEADERS) {
+            writeRaw(BULK_HEADERS[length]);
+        } else {
+            writeNumberLine(CommandParser.DOLLAR_BYTE, length);
+        }
+    }
+
+    public void writeBulkString(byte[] value) {
+        writeBulkString(value, 0, value.length);
+    }
+
+    public void writeBulkString(byte[] value, int offset, int length) {
+        writeBulkStringHeader(length);
+        if (length >= DIRECT_WRITE_THRESHOLD) {
+            writeDirect(value, offset, length);
+        } else {
+            writeRaw(value, offset, length);
+        }
+        writeCRLF();
+    }
+
+    public void writeBulkString(String value) {
+        writeBulkString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeArray(String[] values) {
+        writeArrayHeader(values.length);
+        for (String value : values) {
+            writeBulkString(value);
+        }
+    }
+
+    // Re-encodes a parsed command as an array of bulk strings, name included.
+    public void writeCommand(Command command) {
+        writeArrayHeader(command.getArgCount() + 1);
+        writeBulkString(command.getCommand().getName());
+        for (int i = 0; i < command.getArgCount(); i++) {
+            writeBulkString(command.buffer(), command.argOffset(i), command.argLength(i));
+        }
+    }
+
+    public void flush() throws IOException {
+        if (count > 0) {
+            sink.write(buf, 0, count);
+            count = 0;
+        }
+        sink.flush();
+        if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+            buf = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    private void writeDirect(byte[] value, int offset, int length) {
+        try {
+            if (count > 0) {
+                sink.write(buf, 0, count);
+                count = 0;
+            }
+            sink.write(value, offset, length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeLine(byte prefix, String value) {
+        int length = value.length();
+        ensureCapacity(length + 3);
+        buf[count++] = prefix;
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) value.charAt(i);
+        }
+        writeCRLF();
+    }
+
+    private void writeNumberLine(byte prefix, long value) {
+        ensureCapacity(MAX_NUMBER_LINE);
+        buf[count++] = prefix;
+        writeDigits(value);
+        buf[count++] = CommandParser.CARRIAGE_RETURN_BYTE;
+        buf[count++] = CommandParser.LINE_FEED_BYTE;
+    }
+
+    private void writeDigits(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(encodeConstant(Long.toString(value)));
+            return;
+        }
+        if (value < 0) {
+            buf[count++] = CommandParser.MINUS_BYTE;
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void writeCRLF() {
+        ensureCapacity(2);
+        buf[count++] = CommandParser.CARRIAGE_RETURN_BYTE;
+        buf[count++] = CommandParser.LINE_FEED_BYTE;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            byte[] larger = new byte[Math.max(buf.length * 2, count + extra)];
+            System.arraycopy(buf, 0, larger, 0, count);
+            buf = larger;
+        }
+    }
+
+    private static byte[] encodeConstant(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
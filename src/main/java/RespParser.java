@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+// Incremental RESP parser over a reusable per-connection buffer. Whole frames are parsed from whatever
+// bytes have arrived; a partial frame stays in the buffer until the rest of it is read.
+// Commands returned by next() point into the buffer and are only valid until the next readFrom call.
+public class RespParser {
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    // Redis's limits on client-declared sizes: checked before anything is allocated for them
+    static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    // slices allocated up front; a longer command grows them as its arguments arrive
+    private static final int INITIAL_SLICES = 1024;
+
+    private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(buf);
+    private int readIndex = 0;
+    private int writeIndex = 0;
+    // size of the partial frame at readIndex, when its declared lengths say it needs a bigger buffer
+    private int pendingFrameSize = 0;
+
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        prepareForRead();
+        view.limit(buf.length).position(writeIndex);
+        int read = channel.read(view);
+        if (read > 0) {
+            writeIndex += read;
+        }
+        return read;
+    }
+
+    public int readFrom(InputStream in) throws IOException {
+        prepareForRead();
+        int read = in.read(buf, writeIndex, buf.length - writeIndex);
+        if (read > 0) {
+            writeIndex += read;
+        }
+        return read;
+    }
+
+    public boolean hasBufferedInput() {
+        return readIndex < writeIndex;
+    }
+
+    public int bufferedBytes() {
+        return writeIndex - readIndex;
+    }
+
+    // Returns the next complete command in the buffer, or null if more bytes are needed.
+    public Command next() {
+        while (readIndex < writeIndex) {
+            int frameStart = readIndex;
+            int pos = readIndex;
+            if (buf[pos] != CommandParser.ASTERISK_BYTE) {
+                throw new IllegalArgumentException("Protocol error: expected '*', got '" + (char) buf[pos] + "'");
+            }
+            int lineEnd = indexOfCRLF(pos + 1);
+            if (lineEnd < 0) {
+                return null;
+            }
+            int argc = parseLength(pos + 1, lineEnd);
+            if (argc > MAX_MULTIBULK_LENGTH) {
+                throw new IllegalArgumentException("Protocol error: invalid multibulk length");
+            }
+            pos = lineEnd + 2;
+            if (argc <= 0) {
+                // empty and null arrays carry no command
+                readIndex = pos;
+                continue;
+            }
+            int[] slices = new int[Math.min(argc, INITIAL_SLICES) * 2];
+            for (int i = 0; i < argc; i++) {
+                if (2 * i == slices.length) {
+                    slices = Arrays.copyOf(slices, Math.min(argc, 2 * i) * 2);
+                }
+                if (pos >= writeIndex) {
+                    return null;
+                }
+                if (buf[pos] != CommandParser.DOLLAR_BYTE) {
+                    throw new IllegalArgumentException("Protocol error: expected '$', got '" + (char) buf[pos] + "'");
+                }
+                lineEnd = indexOfCRLF(pos + 1);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                int len = parseLength(pos + 1, lineEnd);
+                // a null bulk string cannot be an argument
+                if (len < 0 || len > MAX_BULK_LENGTH) {
+                    throw new IllegalArgumentException("Protocol error: invalid bulk length");
+                }
+                int start = lineEnd + 2;
+                if (start + len + 2 > writeIndex) {
+                    pendingFrameSize = start + len + 2 - readIndex;
+                    return null;
+                }
+                slices[2 * i] = start;
+                slices[2 * i + 1] = len;
+                pos = start + len + 2;
+            }
+            readIndex = pos;
+            pendingFrameSize = 0;
+            return new Command(buf, slices, frameStart, pos - frameStart);
+        }
+        return null;
+    }
+
+    // Moves unread bytes to the front of the buffer and makes room for the pending frame.
+    private void prepareForRead() {
+        int unread = writeIndex - readIndex;
+        if (unread == 0 && buf.length > INITIAL_BUFFER_SIZE) {
+            // drop buffers grown for a single large frame so idle connections stay small
+            setBuffer(new byte[INITIAL_BUFFER_SIZE]);
+        } else if (readIndex > 0) {
+            System.arraycopy(buf, readIndex, buf, 0, unread);
+        }
+        readIndex = 0;
+        writeIndex = unread;
+        int needed = Math.max(pendingFrameSize, unread + 1);
+        if (needed > buf.length) {
+            byte[] larger = new byte[Math.max(needed, buf.length * 2)];
+            System.arraycopy(buf, 0, larger, 0, unread);
+            setBuffer(larger);
+        }
+    }
+
+    private void setBuffer(byte[] buffer) {
+        buf = buffer;
+        view = ByteBuffer.wrap(buf);
+    }
+
+    private int indexOfCRLF(int from) {
+        for (int i = from; i + 1 < writeIndex; i++) {
+            if (buf[i] == CommandParser.CARRIAGE_RETURN_BYTE) {
+                if (buf[i + 1] != CommandParser.LINE_FEED_BYTE) {
+                    throw new IllegalArgumentException("Protocol error: expected LF after CR");
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // A length line's value: digits, or -1 for a null; other negative values are malformed.
+    private int parseLength(int from, int to) {
+        if (from == to) {
+            throw new IllegalArgumentException("Protocol error: missing length");
+        }
+        boolean isNegative = buf[from] == CommandParser.MINUS_BYTE;
+        if (isNegative && (to - from != 2 || buf[from + 1] != '1')) {
+            throw new IllegalArgumentException("Protocol error: invalid length");
+        }
+        long result = 0;
+        for (int i = isNegative ? from + 1 : from; i < to; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Protocol error: invalid length");
+            }
+            result = result * 10 + digit;
+            if (result > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Protocol error: length too large");
+            }
+        }
+        return isNegative ? (int) -result : (int) result;
+    }
+}
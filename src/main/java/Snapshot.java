@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Copy-on-write, point-in-time view of the keyspace used while an RDB image is being produced.
+// Until the snapshot has copied a slot, writers to that slot first preserve the entry they are about to
+// replace, so the snapshot sees every slot as it was when it began even though writes keep flowing.
+public class Snapshot {
+    // marks a key that did not exist when the snapshot began
+    private static final Entry ABSENT = new Entry(null, null, Entry.NO_EXPIRY);
+    private static final int LOCK_STRIPES = 256;
+    private static final AtomicInteger epochs = new AtomicInteger();
+
+    // values changed in place (lists) are copied first unless their entry was created under this epoch,
+    // as the snapshot may still read an entry after it has copied the entry's slot
+    final int epoch = epochs.incrementAndGet();
+
+    private final long startedAt = System.currentTimeMillis();
+    // fixed when the snapshot begins so every image written from it is byte-for-byte identical
+    private final long keyCount;
+    // how many times the image is read; slots stay preserved until the last read has copied them
+    private final int passes;
+    private final int[] passesDone = new int[KeyValueStore.SLOTS];
+    private final boolean[] copied = new boolean[KeyValueStore.SLOTS];
+    private final AtomicReferenceArray<Map<Key, Entry>> preserved = new AtomicReferenceArray<>(KeyValueStore.SLOTS);
+    // writers hold the read side while preserving and mutating; the snapshot takes the write side to copy a slot
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    Snapshot(long keyCount, int passes) {
+        this.keyCount = keyCount;
+        this.passes = passes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    Lock writerLock(int slot) {
+        return stripes[slot % LOCK_STRIPES].readLock();
+    }
+
+    // Called with writerLock(slot) held, before the entry for key is replaced or removed.
+    void preserve(int slot, Key key, Entry current) {
+        if (copied[slot]) {
+            return;
+        }
+        Map<Key, Entry> slotPreserved = preserved.get(slot);
+        if (slotPreserved == null) {
+            preserved.compareAndSet(slot, null, new ConcurrentHashMap<>());
+            slotPreserved = preserved.get(slot);
+        }
+        slotPreserved.putIfAbsent(key, current != null ? current : ABSENT);
+    }
+
+    // The slot's entries as of when the snapshot began. After the last pass the slot is no longer preserved.
+    List<Entry> copySlot(int slot, Map<Key, Entry> live) {
+        Lock lock = stripes[slot % LOCK_STRIPES].writeLock();
+        lock.lock();
+        try {
+            Map<Key, Entry> slotPreserved = preserved.get(slot);
+            List<Entry> entries = new ArrayList<>(live.size());
+            for (Entry entry : live.values()) {
+                if (slotPreserved == null || !slotPreserved.containsKey(entry.key)) {
+                    entries.add(entry);
+                }
+            }
+            if (slotPreserved != null) {
+                for (Entry entry : slotPreserved.values()) {
+                    if (entry != ABSENT) {
+                        entries.add(entry);
+                    }
+                }
+            }
+            if (++passesDone[slot] == passes) {
+                copied[slot] = true;
+                preserved.set(slot, null);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
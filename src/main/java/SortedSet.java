@@ -0,0 +1,459 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// A Redis sorted set, ordered by score and then by member bytes.
+// Small sets are one packed byte array of [score as 8 bytes][member length][member] entries kept in order, which
+// is scanned linearly. Past PACKED_MAX_ENTRIES members, or once a member is longer than PACKED_MAX_MEMBER_BYTES,
+// the set converts for good to a skiplist of primitive doubles whose links count the elements they skip, so
+// ranks and rank ranges are O(log n), plus a member -> node hash for O(1) score lookups.
+// Not thread-safe; the keyspace only touches it with the key's shard locked.
+public class SortedSet implements MutableValue {
+    static final int PACKED_MAX_ENTRIES = 128;
+    static final int PACKED_MAX_MEMBER_BYTES = 64;
+    private static final int MAX_LEVEL = 32;
+    private static final VarHandle DOUBLE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+    // the node, its two level arrays at the average 1.33 levels, the index's Key and map node
+    private static final long SKIPLIST_ENTRY_OVERHEAD = 40 + 24 + 24 + 24 + 48;
+    private static final long SET_OVERHEAD = 48;
+
+    // Receives the members of a range in order.
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(byte[] member, double score);
+    }
+
+    private static final class Node {
+        final byte[] member;
+        double score;
+        Node backward;
+        final Node[] forward;
+        // span[i]: how many elements forward[i] moves ahead
+        final int[] span;
+
+        Node(int level, byte[] member, double score) {
+            this.member = member;
+            this.score = score;
+            this.forward = new Node[level];
+            this.span = new int[level];
+        }
+    }
+
+    private int size;
+    // packed encoding, used while index is null
+    private byte[] packed = new byte[64];
+    private int packedBytes;
+    // skiplist encoding
+    private Node header;
+    private Node tail;
+    private int level;
+    private Map<Key, Node> index;
+    private long memberBytes;
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String typeName() {
+        return "zset";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public long estimatedSize() {
+        if (index == null) {
+            return SET_OVERHEAD + 16 + packed.length;
+        }
+        return SET_OVERHEAD + size * SKIPLIST_ENTRY_OVERHEAD + memberBytes;
+    }
+
+    @Override
+    public SortedSet copy() {
+        SortedSet copy = new SortedSet();
+        if (index == null) {
+            copy.packed = Arrays.copyOf(packed, packedBytes);
+            copy.packedBytes = packedBytes;
+            copy.size = size;
+        } else {
+            copy.convertToSkiplist();
+            for (Node x = header.forward[0]; x != null; x = x.forward[0]) {
+                copy.index.put(new Key(x.member), copy.insertNode(x.member, x.score));
+            }
+        }
+        return copy;
+    }
+
+    // The member's score, or null if it is not in the set.
+    public Double score(byte[] member) {
+        if (index != null) {
+            Node node = index.get(new Key(member));
+            return node != null ? node.score : null;
+        }
+        int offset = packedFind(member);
+        return offset >= 0 ? packedScore(offset) : null;
+    }
+
+    // Adds the member or moves it to the new score. Returns true if it was added.
+    public boolean put(byte[] member, double score) {
+        if (index == null && (member.length > PACKED_MAX_MEMBER_BYTES
+                || (size >= PACKED_MAX_ENTRIES && packedFind(member) < 0))) {
+            convertToSkiplist();
+        }
+        if (index == null) {
+            int offset = packedFind(member);
+            if (offset >= 0) {
+                if (packedScore(offset) == score) {
+                    return false;
+                }
+                packedRemove(offset);
+                packedInsert(member, score);
+                return false;
+            }
+            packedInsert(member, score);
+            return true;
+        }
+        Key key = new Key(member);
+        Node node = index.get(key);
+        if (node == null) {
+            index.put(key, insertNode(member, score));
+            return true;
+        }
+        if (node.score != score) {
+            updateScore(node, score);
+        }
+        return false;
+    }
+
+    // Returns true if the member was in the set.
+    public boolean remove(byte[] member) {
+        if (index == null) {
+            int offset = packedFind(member);
+            if (offset < 0) {
+                return false;
+            }
+            packedRemove(offset);
+            return true;
+        }
+        Node node = index.remove(new Key(member));
+        if (node == null) {
+            return false;
+        }
+        deleteNode(node);
+        return true;
+    }
+
+    // 0-based rank in ascending order, or -1 if the member is not in the set.
+    public long rank(byte[] member) {
+        if (index == null) {
+            int rank = 0;
+            for (int offset = 0; offset < packedBytes; offset = packedNext(offset), rank++) {
+                if (packedMemberEquals(offset, member)) {
+                    return rank;
+                }
+            }
+            return -1;
+        }
+        Node node = index.get(new Key(member));
+        if (node == null) {
+            return -1;
+        }
+        long rank = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], node.score, node.member) <= 0) {
+                rank += x.span[i];
+                x = x.forward[i];
+            }
+            if (x == node) {
+                return rank - 1;
+            }
+        }
+        return -1;
+    }
+
+    // How many members score below score, or at most score when orEqual.
+    public long countBelow(double score, boolean orEqual) {
+        if (index == null) {
+            long count = 0;
+            for (int offset = 0; offset < packedBytes; offset = packedNext(offset), count++) {
+                double current = packedScore(offset);
+                if (current > score || (current == score && !orEqual)) {
+                    break;
+                }
+            }
+            return count;
+        }
+        long count = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && (x.forward[i].score < score || (orEqual && x.forward[i].score == score))) {
+                count += x.span[i];
+                x = x.forward[i];
+            }
+        }
+        return count;
+    }
+
+    // How many members sort below member, or at most member when orEqual. Like Redis, lexicographic ranges
+    // assume every member has the same score.
+    public long countBelowLex(byte[] member, boolean orEqual) {
+        if (index == null) {
+            long count = 0;
+            for (int offset = 0; offset < packedBytes; offset = packedNext(offset), count++) {
+                int cmp = packedCompareMember(offset, member);
+                if (cmp > 0 || (cmp == 0 && !orEqual)) {
+                    break;
+                }
+            }
+            return count;
+        }
+        long count = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null) {
+                int cmp = Arrays.compareUnsigned(x.forward[i].member, member);
+                if (cmp > 0 || (cmp == 0 && !orEqual)) {
+                    break;
+                }
+                count += x.span[i];
+                x = x.forward[i];
+            }
+        }
+        return count;
+    }
+
+    // Hands the members ranked start to end inclusive (0-based, ascending, both in range) to the consumer,
+    // from end down to start when reverse.
+    public void range(long start, long end, boolean reverse, EntryConsumer consumer) {
+        if (index == null) {
+            int count = (int) (end - start + 1);
+            int[] offsets = new int[count];
+            int rank = 0;
+            for (int offset = 0; rank <= end; offset = packedNext(offset), rank++) {
+                if (rank >= start) {
+                    offsets[rank - (int) start] = offset;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int offset = offsets[reverse ? count - 1 - i : i];
+                consumer.accept(packedMember(offset), packedScore(offset));
+            }
+            return;
+        }
+        Node x = nodeByRank((reverse ? end : start) + 1);
+        for (long i = start; i <= end; i++) {
+            consumer.accept(x.member, x.score);
+            x = reverse ? x.backward : x.forward[0];
+        }
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        if (size > 0) {
+            range(0, size - 1, false, consumer);
+        }
+    }
+
+    private void convertToSkiplist() {
+        header = new Node(MAX_LEVEL, null, 0);
+        level = 1;
+        index = new HashMap<>();
+        byte[] oldPacked = packed;
+        int oldBytes = packedBytes;
+        size = 0;
+        packed = null;
+        packedBytes = 0;
+        for (int offset = 0; offset < oldBytes; ) {
+            int length = oldPacked[offset + 8] & 0xFF;
+            byte[] member = Arrays.copyOfRange(oldPacked, offset + 9, offset + 9 + length);
+            index.put(new Key(member), insertNode(member, (double) DOUBLE.get(oldPacked, offset)));
+            offset += 9 + length;
+        }
+    }
+
+    // Skiplist encoding
+
+    private static int compare(Node node, double score, byte[] member) {
+        if (node.score != score) {
+            return node.score < score ? -1 : 1;
+        }
+        return Arrays.compareUnsigned(node.member, member);
+    }
+
+    private static int randomLevel() {
+        int level = 1;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // each level holds a quarter of the one below, as in Redis
+        while (level < MAX_LEVEL && random.nextInt(4) == 0) {
+            level++;
+        }
+        return level;
+    }
+
+    private Node insertNode(byte[] member, double score) {
+        Node[] update = new Node[MAX_LEVEL];
+        long[] rank = new long[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.forward[i] != null && compare(x.forward[i], score, member) < 0) {
+                rank[i] += x.span[i];
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = header;
+                header.span[i] = size;
+            }
+            level = nodeLevel;
+        }
+        x = new Node(nodeLevel, member, score);
+        for (int i = 0; i < nodeLevel; i++) {
+            x.forward[i] = update[i].forward[i];
+            update[i].forward[i] = x;
+            x.span[i] = update[i].span[i] - (int) (rank[0] - rank[i]);
+            update[i].span[i] = (int) (rank[0] - rank[i]) + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        x.backward = update[0] == header ? null : update[0];
+        if (x.forward[0] != null) {
+            x.forward[0].backward = x;
+        } else {
+            tail = x;
+        }
+        size++;
+        memberBytes += member.length;
+        return x;
+    }
+
+    private void deleteNode(Node node) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && compare(x.forward[i], node.score, node.member) < 0) {
+                x = x.forward[i];
+            }
+            update[i] = x;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].forward[i] == node) {
+                update[i].span[i] += node.span[i] - 1;
+                update[i].forward[i] = node.forward[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        if (node.forward[0] != null) {
+            node.forward[0].backward = node.backward;
+        } else {
+            tail = node.backward;
+        }
+        while (level > 1 && header.forward[level - 1] == null) {
+            level--;
+        }
+        size--;
+        memberBytes -= node.member.length;
+    }
+
+    // Moves a node to a new score, in place when its neighbours still bracket it.
+    private void updateScore(Node node, double score) {
+        Node next = node.forward[0];
+        if ((node.backward == null || compare(node.backward, score, node.member) < 0)
+                && (next == null || compare(next, score, node.member) > 0)) {
+            node.score = score;
+            return;
+        }
+        deleteNode(node);
+        index.put(new Key(node.member), insertNode(node.member, score));
+    }
+
+    // 1-based, as skiplist spans count.
+    private Node nodeByRank(long rank) {
+        long traversed = 0;
+        Node x = header;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.forward[i] != null && traversed + x.span[i] <= rank) {
+                traversed += x.span[i];
+                x = x.forward[i];
+            }
+            if (traversed == rank) {
+                return x;
+            }
+        }
+        return null;
+    }
+
+    // Packed encoding
+
+    private int packedNext(int offset) {
+        return offset + 9 + (packed[offset + 8] & 0xFF);
+    }
+
+    private double packedScore(int offset) {
+        return (double) DOUBLE.get(packed, offset);
+    }
+
+    private byte[] packedMember(int offset) {
+        return Arrays.copyOfRange(packed, offset + 9, offset + 9 + (packed[offset + 8] & 0xFF));
+    }
+
+    private int packedCompareMember(int offset, byte[] member) {
+        return Arrays.compareUnsigned(packed, offset + 9, offset + 9 + (packed[offset + 8] & 0xFF), member, 0, member.length);
+    }
+
+    private boolean packedMemberEquals(int offset, byte[] member) {
+        return (packed[offset + 8] & 0xFF) == member.length
+                && Arrays.equals(packed, offset + 9, offset + 9 + member.length, member, 0, member.length);
+    }
+
+    private int packedFind(byte[] member) {
+        for (int offset = 0; offset < packedBytes; offset = packedNext(offset)) {
+            if (packedMemberEquals(offset, member)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private void packedInsert(byte[] member, double score) {
+        int offset = 0;
+        while (offset < packedBytes) {
+            double current = packedScore(offset);
+            if (current > score || (current == score && packedCompareMember(offset, member) > 0)) {
+                break;
+            }
+            offset = packedNext(offset);
+        }
+        int entryBytes = 9 + member.length;
+        if (packedBytes + entryBytes > packed.length) {
+            packed = Arrays.copyOf(packed, Math.max(packed.length * 2, packedBytes + entryBytes));
+        }
+        System.arraycopy(packed, offset, packed, offset + entryBytes, packedBytes - offset);
+        DOUBLE.set(packed, offset, score);
+        packed[offset + 8] = (byte) member.length;
+        System.arraycopy(member, 0, packed, offset + 9, member.length);
+        packedBytes += entryBytes;
+        size++;
+    }
+
+    private void packedRemove(int offset) {
+        int next = packedNext(offset);
+        System.arraycopy(packed, next, packed, offset, packedBytes - next);
+        packedBytes -= next - offset;
+        size--;
+    }
+}
@@ -0,0 +1,382 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+// A Redis stream: entries in ID order, packed into blocks of up to BLOCK_MAX_ENTRIES entries or BLOCK_MAX_BYTES
+// bytes, and an ordered map from each block's first ID to the block, as Redis keeps listpacks in a radix tree.
+// A range read finds its first block in O(log blocks) and then decodes consecutive bytes.
+// An entry is [flags][ms delta][seq delta][fields], the deltas varints against the block's first ID. Entries with
+// the same field names as the block's first entry, the common case, store only their values (SAMEFIELDS);
+// the others store a field count and the field/value pairs.
+// Entries are only appended at the tail and trimmed from the head, so a block's bytes before end never change;
+// a copy shares them and only clones the block headers.
+// Not thread-safe; the keyspace only touches it with the key's shard locked.
+public class Stream implements MutableValue {
+    static final int BLOCK_MAX_ENTRIES = 100;
+    static final int BLOCK_MAX_BYTES = 4096;
+    private static final int SAMEFIELDS = 2;
+    private static final int BLOCK_MIN_BYTES = 128;
+    // the block, its map entry and its first ID
+    private static final long BLOCK_OVERHEAD = 48 + 40 + 32 + 16;
+    private static final long STREAM_OVERHEAD = 64;
+
+    // An entry's ID and its fields and values, alternating.
+    public record StreamEntry(StreamId id, byte[][] fields) {
+    }
+
+    private static final class Block {
+        final StreamId first;
+        // the first entry's field names, which SAMEFIELDS entries share
+        final byte[][] masterFields;
+        byte[] data;
+        // live entries occupy data[start, end)
+        int start;
+        int end;
+        int count;
+        StreamId last;
+
+        Block(StreamId first, byte[][] masterFields, byte[] data) {
+            this.first = first;
+            this.masterFields = masterFields;
+            this.data = data;
+        }
+
+        Block copy() {
+            Block copy = new Block(first, masterFields, data);
+            copy.start = start;
+            copy.end = end;
+            copy.count = count;
+            copy.last = last;
+            return copy;
+        }
+    }
+
+    private final TreeMap<StreamId, Block> blocks = new TreeMap<>();
+    private long length;
+    private StreamId lastId = StreamId.MIN;
+    // every entry ever added, trimmed ones included, as RDB files record
+    private long entriesAdded;
+    private long dataBytes;
+
+    public long length() {
+        return length;
+    }
+
+    public StreamId lastId() {
+        return lastId;
+    }
+
+    public int blockCount() {
+        return blocks.size();
+    }
+
+    public long entriesAdded() {
+        return entriesAdded;
+    }
+
+    @Override
+    public String typeName() {
+        return "stream";
+    }
+
+    // A stream outlives its entries, as in Redis: trimming it to nothing keeps the key and its last ID.
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public long estimatedSize() {
+        return STREAM_OVERHEAD + blocks.size() * BLOCK_OVERHEAD + dataBytes;
+    }
+
+    @Override
+    public Stream copy() {
+        Stream copy = new Stream();
+        for (Block block : blocks.values()) {
+            copy.blocks.put(block.first, block.copy());
+        }
+        copy.length = length;
+        copy.lastId = lastId;
+        copy.entriesAdded = entriesAdded;
+        copy.dataBytes = dataBytes;
+        return copy;
+    }
+
+    // Appends an entry; id must be greater than lastId().
+    public void append(StreamId id, byte[][] fields) {
+        Block block = blocks.isEmpty() ? null : blocks.lastEntry().getValue();
+        boolean sameFields = block != null && hasFieldNames(fields, block.masterFields);
+        int size = encodedSize(block, id, fields, sameFields);
+        if (block == null || block.count >= BLOCK_MAX_ENTRIES || block.end - block.start + size > BLOCK_MAX_BYTES) {
+            byte[][] masterFields = new byte[fields.length / 2][];
+            for (int i = 0; i < masterFields.length; i++) {
+                masterFields[i] = fields[2 * i];
+            }
+            block = new Block(id, masterFields, new byte[Math.max(BLOCK_MIN_BYTES, size)]);
+            blocks.put(id, block);
+            dataBytes += block.data.length;
+            sameFields = true;
+            size = encodedSize(block, id, fields, true);
+        } else if (block.end + size > block.data.length) {
+            // a copy may share the old array; growing replaces it, appending past end never disturbs the copy
+            int capacity = Math.max(block.end + size, Math.min(BLOCK_MAX_BYTES, block.data.length * 2));
+            dataBytes += capacity - block.data.length;
+            block.data = Arrays.copyOf(block.data, capacity);
+        }
+        byte[] data = block.data;
+        int position = block.end;
+        data[position++] = (byte) (sameFields ? SAMEFIELDS : 0);
+        position = writeLong(data, position, id.ms() - block.first.ms());
+        position = writeLong(data, position, zigzag(id.seq() - block.first.seq()));
+        if (!sameFields) {
+            position = QuickList.writeVarint(data, position, fields.length / 2);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!sameFields || i % 2 == 1) {
+                position = QuickList.writeVarint(data, position, fields[i].length);
+                System.arraycopy(fields[i], 0, data, position, fields[i].length);
+                position += fields[i].length;
+            }
+        }
+        block.end = position;
+        block.count++;
+        block.last = id;
+        length++;
+        entriesAdded++;
+        lastId = id;
+    }
+
+    // Sets the last ID, which only moves forward; RDB files record it apart from the entries.
+    void setLastId(StreamId id, long added) {
+        if (id.compareTo(lastId) > 0) {
+            lastId = id;
+        }
+        entriesAdded = Math.max(entriesAdded, added);
+    }
+
+    // The entries with IDs from from to to inclusive, at most count of them (count < 0: all), in ascending
+    // order or from to downwards when reverse.
+    public List<StreamEntry> range(StreamId from, StreamId to, long count, boolean reverse) {
+        List<StreamEntry> result = new ArrayList<>();
+        if (from.compareTo(to) > 0 || count == 0) {
+            return result;
+        }
+        if (!reverse) {
+            Map.Entry<StreamId, Block> floor = blocks.floorEntry(from);
+            for (Block block : blocks.tailMap(floor != null ? floor.getKey() : from, true).values()) {
+                if (block.first.compareTo(to) > 0) {
+                    break;
+                }
+                if (block.last.compareTo(from) < 0) {
+                    continue;
+                }
+                for (Iterator<StreamEntry> entries = entries(block); entries.hasNext(); ) {
+                    StreamEntry entry = entries.next();
+                    if (entry.id().compareTo(to) > 0) {
+                        return result;
+                    }
+                    if (entry.id().compareTo(from) >= 0) {
+                        result.add(entry);
+                        if (result.size() == count) {
+                            return result;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+        for (Block block : blocks.headMap(to, true).descendingMap().values()) {
+            if (block.last.compareTo(from) < 0) {
+                break;
+            }
+            // entries only decode forwards: a block's worth at a time
+            List<StreamEntry> decoded = new ArrayList<>(block.count);
+            entries(block).forEachRemaining(decoded::add);
+            for (int i = decoded.size() - 1; i >= 0; i--) {
+                StreamEntry entry = decoded.get(i);
+                if (entry.id().compareTo(from) < 0) {
+                    return result;
+                }
+                if (entry.id().compareTo(to) <= 0) {
+                    result.add(entry);
+                    if (result.size() == count) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Every entry in ID order, a block at a time; the consumer gets each block's first ID and its entries.
+    public void forEachBlock(BlockConsumer consumer) {
+        for (Block block : blocks.values()) {
+            List<StreamEntry> decoded = new ArrayList<>(block.count);
+            entries(block).forEachRemaining(decoded::add);
+            consumer.accept(block.first, block.masterFields, decoded);
+        }
+    }
+
+    @FunctionalInterface
+    public interface BlockConsumer {
+        void accept(StreamId first, byte[][] masterFields, List<StreamEntry> entries);
+    }
+
+    // XTRIM MAXLEN: removes the oldest entries until at most maxLength are left. Approximately drops only whole
+    // blocks, so it may leave up to a block's worth more, and costs O(1) per block instead of per entry.
+    // Returns how many entries were removed.
+    public long trimToLength(long maxLength, boolean approximately) {
+        long removed = 0;
+        while (length > maxLength) {
+            Block block = blocks.firstEntry().getValue();
+            if (length - block.count >= maxLength) {
+                blocks.pollFirstEntry();
+                dataBytes -= block.data.length;
+                length -= block.count;
+                removed += block.count;
+                continue;
+            }
+            if (approximately) {
+                break;
+            }
+            // drop single entries from the head block; its bytes stay until the whole block goes
+            EntryIterator entries = entries(block);
+            while (length > maxLength) {
+                entries.next();
+                block.start = entries.position;
+                block.count--;
+                length--;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static EntryIterator entries(Block block) {
+        return new EntryIterator(block);
+    }
+
+    private static final class EntryIterator implements Iterator<StreamEntry> {
+        private final Block block;
+        // just after the last entry read
+        int position;
+        private int remaining;
+
+        EntryIterator(Block block) {
+            this.block = block;
+            this.position = block.start;
+            this.remaining = block.count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public StreamEntry next() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            byte[] data = block.data;
+            boolean sameFields = (data[position++] & SAMEFIELDS) != 0;
+            long ms = block.first.ms() + readLong(data);
+            long seq = block.first.seq() + unzigzag(readLong(data));
+            int pairs;
+            if (sameFields) {
+                pairs = block.masterFields.length;
+            } else {
+                long count = QuickList.readVarint(data, position);
+                pairs = (int) (count >>> 32);
+                position = (int) count;
+            }
+            byte[][] fields = new byte[pairs * 2][];
+            for (int i = 0; i < fields.length; i++) {
+                if (sameFields && i % 2 == 0) {
+                    fields[i] = block.masterFields[i / 2];
+                    continue;
+                }
+                long string = QuickList.readVarint(data, position);
+                int stringStart = (int) string;
+                position = stringStart + (int) (string >>> 32);
+                fields[i] = Arrays.copyOfRange(data, stringStart, position);
+            }
+            remaining--;
+            return new StreamEntry(new StreamId(ms, seq), fields);
+        }
+
+        private long readLong(byte[] data) {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+
+    static boolean hasFieldNames(byte[][] fields, byte[][] names) {
+        if (fields.length != names.length * 2) {
+            return false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (!Arrays.equals(fields[2 * i], names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int encodedSize(Block block, StreamId id, byte[][] fields, boolean sameFields) {
+        int size = 1;
+        if (block != null) {
+            size += longSize(id.ms() - block.first.ms()) + longSize(zigzag(id.seq() - block.first.seq()));
+        } else {
+            size += 2;
+        }
+        if (!sameFields) {
+            size += QuickList.varintSize(fields.length / 2);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!sameFields || i % 2 == 1) {
+                size += QuickList.varintSize(fields[i].length) + fields[i].length;
+            }
+        }
+        return size;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int longSize(long value) {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private static int writeLong(byte[] data, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        data[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,78 @@
+import java.nio.charset.StandardCharsets;
+
+// A stream entry ID: milliseconds and a sequence number, both unsigned 64-bit, ordered as one 128-bit number.
+public record StreamId(long ms, long seq) implements Comparable<StreamId> {
+    public static final StreamId MIN = new StreamId(0, 0);
+    public static final StreamId MAX = new StreamId(-1L, -1L);
+
+    @Override
+    public int compareTo(StreamId other) {
+        int byMs = Long.compareUnsigned(ms, other.ms);
+        return byMs != 0 ? byMs : Long.compareUnsigned(seq, other.seq);
+    }
+
+    // The smallest ID after this one, or null if this is MAX.
+    public StreamId next() {
+        if (seq != -1L) {
+            return new StreamId(ms, seq + 1);
+        }
+        return ms != -1L ? new StreamId(ms + 1, 0) : null;
+    }
+
+    // The largest ID before this one, or null if this is MIN.
+    public StreamId previous() {
+        if (seq != 0) {
+            return new StreamId(ms, seq - 1);
+        }
+        return ms != 0 ? new StreamId(ms - 1, -1L) : null;
+    }
+
+    public byte[] toBytes() {
+        return toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toUnsignedString(ms) + "-" + Long.toUnsignedString(seq);
+    }
+
+    // Parses "ms-seq", or "ms" alone with the sequence number missingSeq. Returns null if malformed.
+    public static StreamId parse(byte[] text, long missingSeq) {
+        int dash = indexOfDash(text);
+        Long ms = parseUnsigned(text, 0, dash < 0 ? text.length : dash);
+        if (ms == null) {
+            return null;
+        }
+        if (dash < 0) {
+            return new StreamId(ms, missingSeq);
+        }
+        Long seq = parseUnsigned(text, dash + 1, text.length);
+        return seq != null ? new StreamId(ms, seq) : null;
+    }
+
+    static int indexOfDash(byte[] text) {
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '-') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Digits only, up to 2^64 - 1, returned as the unsigned bits of a long; null otherwise.
+    static Long parseUnsigned(byte[] text, int from, int to) {
+        if (from >= to || to - from > 20) {
+            return null;
+        }
+        for (int i = from; i < to; i++) {
+            if (text[i] < '0' || text[i] > '9') {
+                return null;
+            }
+        }
+        try {
+            return Long.parseUnsignedLong(new String(text, from, to - from, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
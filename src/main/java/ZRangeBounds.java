@@ -0,0 +1,65 @@
+import java.util.Arrays;
+
+// What a ZRANGE selects, by rank, score or member, resolved against a set into the inclusive range of
+// ascending ranks {first, last}; first > last selects nothing.
+@FunctionalInterface
+interface ZRangeBounds {
+    long[] resolve(SortedSet set);
+
+    // start and stop as given, negative counting from the end; with reverse they count from the highest score.
+    static ZRangeBounds byRank(long start, long stop, boolean reverse) {
+        return set -> {
+            long size = set.size();
+            long first = Math.max(start < 0 ? start + size : start, 0);
+            long last = Math.min(stop < 0 ? stop + size : stop, size - 1);
+            return reverse ? new long[]{size - 1 - last, size - 1 - first} : new long[]{first, last};
+        };
+    }
+
+    // min and max are scores, exclusive when prefixed with '('. Returns null if either is not a float.
+    static ZRangeBounds byScore(byte[] min, byte[] max) {
+        boolean minExclusive = min.length > 0 && min[0] == '(';
+        boolean maxExclusive = max.length > 0 && max[0] == '(';
+        Double minScore = KeyValueStore.parseScore(minExclusive ? stripPrefix(min) : min);
+        Double maxScore = KeyValueStore.parseScore(maxExclusive ? stripPrefix(max) : max);
+        if (minScore == null || maxScore == null) {
+            return null;
+        }
+        return set -> new long[]{set.countBelow(minScore, minExclusive), set.countBelow(maxScore, !maxExclusive) - 1};
+    }
+
+    // min and max are '-', '+', or a member prefixed with '[' (inclusive) or '(' (exclusive).
+    // Returns null if either is malformed.
+    static ZRangeBounds byLex(byte[] min, byte[] max) {
+        if (!isLexBound(min) || !isLexBound(max)) {
+            return null;
+        }
+        return set -> new long[]{lexRank(set, min, true), lexRank(set, max, false) - 1};
+    }
+
+    private static boolean isLexBound(byte[] bound) {
+        if (bound.length == 0) {
+            return false;
+        }
+        if (bound[0] == '-' || bound[0] == '+') {
+            return bound.length == 1;
+        }
+        return bound[0] == '[' || bound[0] == '(';
+    }
+
+    // How many members sort before the bound: for a lower bound, the first rank in range; for an upper bound,
+    // one past the last.
+    private static long lexRank(SortedSet set, byte[] bound, boolean isLower) {
+        return switch (bound[0]) {
+            case '-' -> 0;
+            case '+' -> set.size();
+            // [x: a lower bound excludes what sorts before x, an upper bound keeps x itself
+            case '[' -> set.countBelowLex(stripPrefix(bound), !isLower);
+            default -> set.countBelowLex(stripPrefix(bound), isLower);
+        };
+    }
+
+    private static byte[] stripPrefix(byte[] bound) {
+        return Arrays.copyOfRange(bound, 1, bound.length);
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Decoder for the ziplist blobs older RDB files (Redis 3.2 to 6.2) hold for small lists, hashes and sorted sets:
+// a 10-byte header, then entries of [prevlen][encoding][data], then 0xFF. Integer entries come back as their
+// decimal text.
+public class Ziplist {
+    private static final int HEADER_SIZE = 10;
+    private static final int END = 0xFF;
+
+    public static List<byte[]> decode(byte[] blob) throws IOException {
+        if (blob.length < HEADER_SIZE + 1) {
+            throw new IOException("Invalid RDB file: ziplist too short");
+        }
+        List<byte[]> entries = new ArrayList<>((blob[8] & 0xFF) | (blob[9] & 0xFF) << 8);
+        int position = HEADER_SIZE;
+        while (true) {
+            if (position >= blob.length) {
+                throw new IOException("Invalid RDB file: ziplist without end marker");
+            }
+            if ((blob[position] & 0xFF) == END) {
+                return entries;
+            }
+            // length of the previous entry: one byte, or 0xFE and four more
+            position += (blob[position] & 0xFF) == 0xFE ? 5 : 1;
+            int encoding = blob[position] & 0xFF;
+            switch (encoding >> 6) {
+                case 0 -> {
+                    int length = encoding & 0x3F;
+                    entries.add(Listpack.slice(blob, position + 1, length));
+                    position += 1 + length;
+                }
+                case 1 -> {
+                    int length = ((encoding & 0x3F) << 8) | (blob[position + 1] & 0xFF);
+                    entries.add(Listpack.slice(blob, position + 2, length));
+                    position += 2 + length;
+                }
+                case 2 -> {
+                    // string lengths are big-endian, integers little-endian
+                    int length = Integer.reverseBytes((int) Listpack.littleEndian(blob, position + 1, 4));
+                    entries.add(Listpack.slice(blob, position + 5, length));
+                    position += 5 + length;
+                }
+                default -> {
+                    switch (encoding) {
+                        case 0xC0 -> {
+                            entries.add(Listpack.integer(Listpack.signExtend(Listpack.littleEndian(blob, position + 1, 2), 16)));
+                            position += 3;
+                        }
+                        case 0xD0 -> {
+                            entries.add(Listpack.integer((int) Listpack.littleEndian(blob, position + 1, 4)));
+                            position += 5;
+                        }
+                        case 0xE0 -> {
+                            entries.add(Listpack.integer(Listpack.littleEndian(blob, position + 1, 8)));
+                            position += 9;
+                        }
+                        case 0xF0 -> {
+                            entries.add(Listpack.integer(Listpack.signExtend(Listpack.littleEndian(blob, position + 1, 3), 24)));
+                            position += 4;
+                        }
+                        case 0xFE -> {
+                            entries.add(Listpack.integer(blob[position + 1]));
+                            position += 2;
+                        }
+                        default -> {
+                            if (encoding >= 0xF1 && encoding <= 0xFD) {
+                                // immediate 0 to 12
+                                entries.add(Listpack.integer((encoding & 0x0F) - 1));
+                                position += 1;
+                            } else {
+                                throw new IOException("Invalid RDB file: unknown ziplist encoding " + encoding);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}